@@ -0,0 +1,27 @@
+package rendimiento;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Punto de entrada de benchmarks.jar: acepta las mismas opciones que JMH
+ * (por ejemplo un filtro "Difusion" o "-p sumideros=1000") y añade siempre
+ * el perfilador de GC, que informa de los bytes reservados por operación
+ * (gc.alloc.rate.norm).
+ */
+public final class Benchmarks {
+
+	private Benchmarks() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options opciones = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(opciones).run();
+	}
+}
@@ -0,0 +1,60 @@
+package rendimiento;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import comun.CodecMensaje;
+import comun.Mensaje;
+import servidor.CodificadorLegado;
+
+/**
+ * Codificación y decodificación de un Mensaje público en los dos formatos:
+ * el binario (CodecMensaje) y el antiguo de serialización Java.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+	// Caracteres del contenido (con acentos, para que el UTF-8 no sea solo ASCII)
+	@Param({ "16", "256", "4096" })
+	int largo;
+
+	private Mensaje mensaje;
+	private byte[] binario;
+	private byte[] legado;
+
+	@Setup
+	public void preparar() {
+		String texto = "¿Quedamos mañana a las ocho en la plaza? ".repeat(largo / 40 + 1).substring(0, largo);
+		mensaje = new Mensaje("remitente", null, texto, Mensaje.Tipo.PUBLICO);
+		binario = CodecMensaje.codificar(mensaje);
+		legado = CodificadorLegado.codificarConCabecera(mensaje);
+	}
+
+	@Benchmark
+	public byte[] codificarBinario() {
+		return CodecMensaje.codificar(mensaje);
+	}
+
+	@Benchmark
+	public Mensaje decodificarBinario() throws IOException {
+		return CodecMensaje.decodificarTrama(binario, 0, binario.length);
+	}
+
+	@Benchmark
+	public byte[] codificarLegado() {
+		return CodificadorLegado.codificar(mensaje);
+	}
+
+	@Benchmark
+	public Mensaje decodificarLegado() throws IOException {
+		return CodecMensaje.leerMensajeLegado(new ByteArrayInputStream(legado));
+	}
+}
@@ -0,0 +1,40 @@
+package rendimiento;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import comun.Mensaje;
+import servidor.ServidorMain;
+
+/**
+ * ServidorMain.broadcast con N sesiones en memoria: log, una codificación y
+ * el recorrido de todos los conectados.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DifusionBenchmark {
+
+	@Param({ "10", "100", "1000", "10000" })
+	int sumideros;
+
+	private ServidorMain servidor;
+	private Sumidero emisor;
+	private Mensaje mensaje;
+
+	@Setup
+	public void preparar() {
+		servidor = Entorno.servidor();
+		emisor = Entorno.conectar(servidor, sumideros)[0];
+		mensaje = new Mensaje(emisor.getNombreUsuario(), null, "Hola a todos", Mensaje.Tipo.PUBLICO);
+	}
+
+	@Benchmark
+	public void broadcast() {
+		servidor.broadcast(mensaje, emisor);
+	}
+}
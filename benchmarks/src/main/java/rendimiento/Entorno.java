@@ -0,0 +1,50 @@
+package rendimiento;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import servidor.ConfiguracionServidor;
+import servidor.ServidorMain;
+
+/**
+ * Servidor sin red para los benchmarks: no abre sockets, no guarda historial
+ * ni imprime informes, y el log de auditoría va a un fichero temporal.
+ */
+final class Entorno {
+
+	private Entorno() {
+	}
+
+	static ServidorMain servidor() {
+		ConfiguracionServidor config = new ConfiguracionServidor();
+		config.setMaxClientes(Integer.MAX_VALUE);
+		config.setHistorialMensajes(0);
+		config.setBuzonMensajes(0);
+		config.setSegundosReanudar(0);
+		config.setCapacidadTuberia(0); // se mide el reparto en el hilo que llama
+		config.setSegundosInforme(0);
+		config.setLogArchivo(ficheroLog().getPath());
+		return new ServidorMain(config);
+	}
+
+	// Registra n sumideros "usuario0".."usuario(n-1)"
+	static Sumidero[] conectar(ServidorMain servidor, int n) {
+		Sumidero[] sumideros = new Sumidero[n];
+		for (int i = 0; i < n; i++) {
+			sumideros[i] = new Sumidero("usuario" + i);
+			servidor.registrarCliente(sumideros[i]);
+		}
+		return sumideros;
+	}
+
+	private static File ficheroLog() {
+		try {
+			File log = File.createTempFile("cherrychat-bench-", ".txt");
+			log.deleteOnExit();
+			return log;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package rendimiento;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import servidor.ServidorMain;
+
+/**
+ * ServidorMain.escribirLog: lo que paga el hilo que atiende un mensaje. La
+ * escritura en disco la hace el hilo de RegistroAuditoria; si no da abasto,
+ * las líneas se descartan y se cuentan en vez de frenar a quien registra.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogBenchmark {
+
+	private ServidorMain servidor;
+
+	@Setup
+	public void preparar() {
+		servidor = Entorno.servidor();
+	}
+
+	@Benchmark
+	public void escribirLog() {
+		servidor.escribirLog("Mensaje público de usuario0: Hola a todos");
+	}
+}
@@ -0,0 +1,55 @@
+package rendimiento;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import comun.Mensaje;
+import servidor.ServidorMain;
+
+/**
+ * ServidorMain.enviarPrivado: búsqueda del destinatario por nombre (sin
+ * distinguir mayúsculas) y envío, y el caso de un destinatario que no existe.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrivadoBenchmark {
+
+	@Param({ "100", "10000" })
+	int conectados;
+
+	private ServidorMain servidor;
+	private Sumidero emisor;
+	private Mensaje[] mensajes; // uno por destinatario, escrito en mayúsculas
+	private Mensaje desconocido;
+	private int siguiente;
+
+	@Setup
+	public void preparar() {
+		servidor = Entorno.servidor();
+		Sumidero[] sumideros = Entorno.conectar(servidor, conectados);
+		emisor = sumideros[0];
+		mensajes = new Mensaje[conectados];
+		for (int i = 0; i < conectados; i++) {
+			mensajes[i] = new Mensaje(emisor.getNombreUsuario(), ("usuario" + i).toUpperCase(), "Hola",
+					Mensaje.Tipo.PRIVADO);
+		}
+		desconocido = new Mensaje(emisor.getNombreUsuario(), "nadie", "Hola", Mensaje.Tipo.PRIVADO);
+	}
+
+	@Benchmark
+	public boolean enviarPrivado() {
+		Mensaje mensaje = mensajes[siguiente];
+		siguiente = siguiente + 1 == mensajes.length ? 0 : siguiente + 1;
+		return servidor.enviarPrivado(mensaje, emisor);
+	}
+
+	@Benchmark
+	public boolean destinatarioDesconocido() {
+		return servidor.enviarPrivado(desconocido, emisor);
+	}
+}
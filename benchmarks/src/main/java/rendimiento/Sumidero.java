@@ -0,0 +1,86 @@
+package rendimiento;
+
+import java.util.Collections;
+import java.util.List;
+
+import comun.CodecMensaje;
+import servidor.AnilloSalida;
+import servidor.Sesion;
+import servidor.Trama;
+
+/**
+ * Sesión en memoria: en lugar de encolar, pide la trama binaria (como haría
+ * un cliente real, que se codifica una sola vez por envío) y cuenta sus bytes.
+ */
+final class Sumidero implements Sesion {
+
+	private String nombreUsuario;
+	private AnilloSalida anillo;
+	long tramas;
+	long bytes;
+
+	Sumidero(String nombreUsuario) {
+		this.nombreUsuario = nombreUsuario;
+	}
+
+	@Override
+	public String getNombreUsuario() {
+		return nombreUsuario;
+	}
+
+	@Override
+	public void setNombreUsuario(String nombreUsuario) {
+		this.nombreUsuario = nombreUsuario;
+	}
+
+	@Override
+	public void enviarTrama(Trama trama) {
+		tramas++;
+		bytes += trama.binario().length;
+	}
+
+	@Override
+	public void enviarBytes(byte[] datos) {
+		tramas++;
+		bytes += datos.length;
+	}
+
+	@Override
+	public void alEscribir(Runnable aviso) {
+		aviso.run(); // sin cola: ya está todo escrito
+	}
+
+	@Override
+	public int getVersion() {
+		return CodecMensaje.VERSION;
+	}
+
+	@Override
+	public int getProfundidadCola() {
+		return 0;
+	}
+
+	@Override
+	public long getDescartados() {
+		return 0;
+	}
+
+	@Override
+	public AnilloSalida getAnillo() {
+		return anillo;
+	}
+
+	@Override
+	public void setAnillo(AnilloSalida anillo) {
+		this.anillo = anillo;
+	}
+
+	@Override
+	public List<byte[]> sacarPendientes() {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public void desconectar() {
+	}
+}
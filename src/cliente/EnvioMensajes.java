@@ -0,0 +1,113 @@
+package cliente;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import comun.CodecMensaje;
+import comun.CompresionTramas;
+import comun.Mensaje;
+
+/**
+ * Envío de mensajes sin bloquear el hilo de Swing.
+ *
+ * Igual que el escritor de ClienteHandler en el servidor: quien envía solo
+ * encola, y un hilo propio codifica y escribe con un único flush cada vez que
+ * la cola se vacía (los mensajes seguidos salen juntos). Si la red no da
+ * abasto se acumulan como mucho MAX_PENDIENTES; un error de escritura se avisa
+ * por el callback desde el hilo escritor. Con un servidor v3 los mensajes
+ * largos (pegar un log, un trozo de código) salen comprimidos.
+ */
+class EnvioMensajes implements Runnable {
+
+	private static final int MAX_PENDIENTES = 1024;
+	private static final int COMPRESION_MINIMO = 512;
+
+	private final OutputStream salida;
+	private final boolean comprimir;
+	private final Consumer<String> alFallar;
+	private final Queue<Mensaje> cola = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pendientes = new AtomicInteger();
+	private volatile Thread hilo;
+	private volatile boolean cerrado;
+	private volatile boolean terminando;
+
+	EnvioMensajes(OutputStream salida, int version, Consumer<String> alFallar) {
+		this.salida = salida;
+		this.comprimir = version >= CodecMensaje.VERSION_COMPRESION;
+		this.alFallar = alFallar;
+	}
+
+	void arrancar() {
+		hilo = new Thread(this, "cliente-escritor");
+		hilo.setDaemon(true);
+		hilo.start();
+	}
+
+	// Devuelve false si no se ha podido encolar (conexión cerrada o demasiados pendientes)
+	boolean enviar(Mensaje mensaje) {
+		if (cerrado) {
+			return false;
+		}
+		if (pendientes.incrementAndGet() > MAX_PENDIENTES) {
+			pendientes.decrementAndGet();
+			return false;
+		}
+		cola.add(mensaje);
+		LockSupport.unpark(hilo);
+		return true;
+	}
+
+	void cerrar() {
+		cerrado = true;
+		LockSupport.unpark(hilo);
+	}
+
+	// Deja salir lo ya encolado (esperando como mucho milis) y cierra
+	void terminar(long milis) {
+		terminando = true;
+		LockSupport.unpark(hilo);
+		try {
+			hilo.join(milis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		cerrar();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!cerrado) {
+				Mensaje mensaje = cola.poll();
+				if (mensaje != null) {
+					pendientes.decrementAndGet();
+					if (comprimir) {
+						salida.write(CompresionTramas.comprimir(CodecMensaje.codificar(mensaje), COMPRESION_MINIMO));
+					} else {
+						CodecMensaje.escribir(salida, mensaje);
+					}
+				} else {
+					salida.flush();
+					if (terminando && cola.isEmpty()) {
+						break;
+					}
+					if (cola.isEmpty()) {
+						LockSupport.park(this);
+					}
+				}
+			}
+		} catch (IOException e) {
+			if (!cerrado) {
+				cerrado = true;
+				int perdidos = pendientes.get() + 1;
+				alFallar.accept(e.getMessage() + " (" + perdidos + " mensaje(s) sin enviar)");
+			}
+		}
+		cola.clear();
+	}
+}
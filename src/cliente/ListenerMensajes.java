@@ -2,20 +2,20 @@ package cliente;
 
 import javax.swing.*;
 
+import comun.CodecMensaje;
 import comun.Mensaje;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.net.Socket;
+import java.io.InputStream;
 
 public class ListenerMensajes implements Runnable {
 
-    private ObjectInputStream entradaObjeto;
+    private InputStream entrada; // tramas del protocolo binario (CodecMensaje)
     private JTextArea areaMensajes; // Para Swing, puede ser null si es consola
     private boolean mostrarConsola = false; // true si queremos imprimir en consola
 
-    public ListenerMensajes(ObjectInputStream entradaObjeto, JTextArea areaMensajes) {
-        this.entradaObjeto = entradaObjeto;
+    public ListenerMensajes(InputStream entrada, JTextArea areaMensajes) {
+        this.entrada = entrada;
         this.areaMensajes = areaMensajes;
         this.mostrarConsola = (areaMensajes == null);
     }
@@ -23,18 +23,16 @@ public class ListenerMensajes implements Runnable {
     @Override
     public void run() {
         try {
-            while (true) {
-                Object obj = entradaObjeto.readObject();
-                if (obj instanceof Mensaje) {
-                    Mensaje msg = (Mensaje) obj;
-                    mostrarMensaje(msg);
-                }
+            Mensaje msg;
+            while ((msg = CodecMensaje.leer(entrada)) != null) {
+                mostrarMensaje(msg);
             }
-        } catch (IOException | ClassNotFoundException e) {
-            mostrarMensaje(new Mensaje("Sistema", null, "🔴 Conexión perdida", Mensaje.Tipo.SISTEMA));
+        } catch (IOException e) {
+            // se informa abajo
         } finally {
+            mostrarMensaje(new Mensaje("Sistema", null, "🔴 Conexión perdida", Mensaje.Tipo.SISTEMA));
             try {
-                if (entradaObjeto != null) entradaObjeto.close();
+                if (entrada != null) entrada.close();
             } catch (IOException ignored) {}
         }
     }
@@ -0,0 +1,117 @@
+package cliente;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.swing.AbstractListModel;
+import javax.swing.ComboBoxModel;
+
+/**
+ * Usuarios conectados para el desplegable de destinatarios.
+ *
+ * Cada nombre guarda su posición en un HashMap, así que añadir, quitar y
+ * comprobar si está son O(1) aunque haya miles (DefaultComboBoxModel los busca
+ * recorriendo la lista). Al quitar, el último ocupa el hueco; el orden no
+ * importa. La primera entrada es siempre TODOS. Solo se usa desde el hilo de
+ * Swing.
+ */
+class ModeloUsuarios extends AbstractListModel<String> implements ComboBoxModel<String> {
+
+	private static final long serialVersionUID = 1L;
+
+	static final String TODOS = "A todos";
+
+	private final List<String> nombres = new ArrayList<>();
+	private final Map<String, Integer> posiciones = new HashMap<>(); // clave en minúsculas -> índice
+	private Object seleccionado = TODOS;
+
+	ModeloUsuarios() {
+		nombres.add(TODOS);
+	}
+
+	private static String clave(String nombre) {
+		return nombre.toLowerCase(Locale.ROOT);
+	}
+
+	void añadir(String nombre) {
+		int indice = nombres.size();
+		if (posiciones.putIfAbsent(clave(nombre), indice) == null) {
+			nombres.add(nombre);
+			fireIntervalAdded(this, indice, indice);
+		}
+	}
+
+	// Lista inicial: un único evento para todo el bloque
+	void añadirTodos(Collection<String> nuevos) {
+		int primero = nombres.size();
+		for (String nombre : nuevos) {
+			if (posiciones.putIfAbsent(clave(nombre), nombres.size()) == null) {
+				nombres.add(nombre);
+			}
+		}
+		if (nombres.size() > primero) {
+			fireIntervalAdded(this, primero, nombres.size() - 1);
+		}
+	}
+
+	// Sesión nueva tras una reconexión: la lista vuelve a llegar entera
+	void vaciar() {
+		int ultimo = nombres.size() - 1;
+		if (ultimo == 0) {
+			return;
+		}
+		nombres.subList(1, nombres.size()).clear();
+		posiciones.clear();
+		fireIntervalRemoved(this, 1, ultimo);
+		setSelectedItem(TODOS);
+	}
+
+	void quitar(String nombre) {
+		Integer indice = posiciones.remove(clave(nombre));
+		if (indice == null) {
+			return;
+		}
+		boolean eraSeleccionado = nombres.get(indice).equals(seleccionado);
+		int ultimo = nombres.size() - 1;
+		if (indice != ultimo) {
+			String movido = nombres.get(ultimo);
+			nombres.set(indice, movido);
+			posiciones.put(clave(movido), indice);
+		}
+		nombres.remove(ultimo);
+		if (indice != ultimo) {
+			fireContentsChanged(this, indice, indice);
+		}
+		fireIntervalRemoved(this, ultimo, ultimo);
+		if (eraSeleccionado) {
+			setSelectedItem(TODOS);
+		}
+	}
+
+	@Override
+	public int getSize() {
+		return nombres.size();
+	}
+
+	@Override
+	public String getElementAt(int indice) {
+		return nombres.get(indice);
+	}
+
+	@Override
+	public void setSelectedItem(Object elemento) {
+		if (elemento == null ? seleccionado != null : !elemento.equals(seleccionado)) {
+			seleccionado = elemento;
+			fireContentsChanged(this, -1, -1);
+		}
+	}
+
+	@Override
+	public Object getSelectedItem() {
+		return seleccionado;
+	}
+}
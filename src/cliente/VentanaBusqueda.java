@@ -0,0 +1,106 @@
+package cliente;
+
+import javax.swing.*;
+
+import comun.ConsultaBusqueda;
+import comun.Mensaje;
+
+import java.awt.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+// Búsqueda en el historial del servidor (protocolo v5): los resultados llegan por páginas
+public class VentanaBusqueda extends JDialog {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String[] PERIODOS = {"Siempre", "Último día", "Última semana", "Último mes"};
+    private static final long[] DIAS = {0, 1, 7, 30};
+
+    private final Predicate<Mensaje> enviar;
+    private final String usuario;
+
+    private JTextField campoTexto;
+    private JTextField campoRemitente;
+    private JComboBox<String> comboPeriodo;
+    private JTextArea areaResultados;
+    private JLabel etiquetaEstado;
+    private JButton botonMas;
+
+    private String siguiente = ""; // consulta de la página siguiente; vacía si no hay más
+    private int encontrados;
+
+    // enviar encola un mensaje hacia el servidor y devuelve false si no se pudo
+    public VentanaBusqueda(JFrame dueño, String usuario, Predicate<Mensaje> enviar) {
+        super(dueño, "Buscar en el historial", false);
+        this.usuario = usuario;
+        this.enviar = enviar;
+        setSize(520, 420);
+        setLocationRelativeTo(dueño);
+
+        campoTexto = new JTextField(14);
+        campoRemitente = new JTextField(8);
+        comboPeriodo = new JComboBox<>(PERIODOS);
+        JButton botonBuscar = new JButton("Buscar");
+
+        JPanel panelConsulta = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        panelConsulta.add(new JLabel("Texto:"));
+        panelConsulta.add(campoTexto);
+        panelConsulta.add(new JLabel("De:"));
+        panelConsulta.add(campoRemitente);
+        panelConsulta.add(comboPeriodo);
+        panelConsulta.add(botonBuscar);
+
+        areaResultados = new JTextArea();
+        areaResultados.setEditable(false);
+        areaResultados.setLineWrap(true);
+
+        etiquetaEstado = new JLabel(" ");
+        botonMas = new JButton("Más resultados");
+        botonMas.setEnabled(false);
+        JPanel panelInferior = new JPanel(new BorderLayout());
+        panelInferior.add(etiquetaEstado, BorderLayout.CENTER);
+        panelInferior.add(botonMas, BorderLayout.EAST);
+
+        add(panelConsulta, BorderLayout.NORTH);
+        add(new JScrollPane(areaResultados), BorderLayout.CENTER);
+        add(panelInferior, BorderLayout.SOUTH);
+
+        botonBuscar.addActionListener(e -> buscar());
+        campoTexto.addActionListener(e -> buscar()); // Enter también busca
+        campoRemitente.addActionListener(e -> buscar());
+        botonMas.addActionListener(e -> pedir(siguiente));
+    }
+
+    private void buscar() {
+        long dias = DIAS[comboPeriodo.getSelectedIndex()];
+        long desde = dias == 0 ? 0 : System.currentTimeMillis() - TimeUnit.DAYS.toMillis(dias);
+        ConsultaBusqueda consulta = new ConsultaBusqueda(campoTexto.getText().trim(), campoRemitente.getText(), desde, 0);
+        areaResultados.setText("");
+        encontrados = 0;
+        pedir(consulta.codificar());
+    }
+
+    private void pedir(String consulta) {
+        botonMas.setEnabled(false);
+        if (!enviar.test(new Mensaje(usuario, null, consulta, Mensaje.Tipo.BUSQUEDA))) {
+            etiquetaEstado.setText("No se pudo enviar la búsqueda.");
+            return;
+        }
+        etiquetaEstado.setText("Buscando...");
+    }
+
+    // En el hilo de Swing: un mensaje encontrado (del más reciente al más antiguo)
+    public void añadirResultado(Mensaje resultado) {
+        areaResultados.append(resultado + "\n");
+        encontrados++;
+    }
+
+    // En el hilo de Swing: fin de página; trae la consulta de la siguiente, o vacío si no hay más
+    public void finPagina(Mensaje fin) {
+        siguiente = fin.getContenido();
+        botonMas.setEnabled(!siguiente.isEmpty());
+        etiquetaEstado.setText(encontrados == 0 ? "Sin resultados."
+                : encontrados + " resultados" + (siguiente.isEmpty() ? "." : " (hay más)."));
+    }
+}
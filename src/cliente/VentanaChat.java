@@ -1,73 +1,140 @@
 package cliente;
 
 import javax.swing.*;
+import javax.swing.text.BadLocationException;
 
+import comun.CodecMensaje;
 import comun.Mensaje;
 
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.*;
 import java.net.Socket;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class VentanaChat extends JFrame {
 
+    // El receptor solo encola lo recibido; un Timer de Swing lo vuelca por lotes
+    // FOTOGRAMAS_POR_SEGUNDO veces por segundo, en un único append por lote
+    private static final int FOTOGRAMAS_POR_SEGUNDO = 30;
+    // Líneas que se conservan en pantalla: las más antiguas se borran
+    private static final int MAX_LINEAS = 2000;
+    // Reconexión tras un corte (servidor v6): reintentos con espera creciente durante este tiempo
+    private static final long MILIS_RECONEXION = 60_000;
+    private static final long MAX_ESPERA_RECONEXION = 4_000;
+
     private JTextArea areaMensajes;
+    private final Queue<Mensaje> pendientes = new ConcurrentLinkedQueue<>();
     private JTextField campoMensaje;
     private JButton botonEnviar;
     private JComboBox<String> comboUsuarios;
-    private DefaultComboBoxModel<String> modeloUsuarios;
+    private ModeloUsuarios modeloUsuarios;
+    private JComboBox<String> comboSalas;
+    private DefaultComboBoxModel<String> modeloSalas;
 
     private Socket socket;
-    private ObjectOutputStream salidaObjeto;
-    private ObjectInputStream entradaObjeto;
+    private OutputStream salida;
+    private InputStream entrada;
+    private volatile EnvioMensajes envio; // null si no se llegó a conectar
+    private volatile int version; // acordada con el servidor en el saludo
+    private VentanaBusqueda busqueda; // se crea la primera vez que se abre
+
+    // 🔁 Reanudación (v6): token de la sesión y tramas recibidas desde su SESION (solo hilo receptor)
+    private String token;
+    private long recibidas;
+    private long finReconexion; // 0 hasta el primer corte tras el último SESION
+    private volatile boolean reconectando;
+    private volatile boolean saliendo;
 
+    private final String ip;
+    private final int puerto;
     private String usuario;
 
     public VentanaChat(String ip, int puerto, String usuario) {
+        this.ip = ip;
+        this.puerto = puerto;
         this.usuario = capitalize(usuario);
         setTitle("Chat - " + this.usuario);
         setSize(500, 500);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setLocationRelativeTo(null);
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                salir();
+            }
+        });
 
         // Área de mensajes
         areaMensajes = new JTextArea();
         areaMensajes.setEditable(false);
         areaMensajes.setLineWrap(true);
         JScrollPane scroll = new JScrollPane(areaMensajes);
+        new Timer(1000 / FOTOGRAMAS_POR_SEGUNDO, e -> volcarPendientes()).start();
 
         // Campo de texto y botón
         campoMensaje = new JTextField();
         botonEnviar = new JButton("Enviar");
 
         // ComboBox de usuarios
-        modeloUsuarios = new DefaultComboBoxModel<>();
-        modeloUsuarios.addElement("A todos");
+        modeloUsuarios = new ModeloUsuarios();
         comboUsuarios = new JComboBox<>(modeloUsuarios);
 
+        // Selector de salas: los mensajes públicos van a la sala seleccionada
+        modeloSalas = new DefaultComboBoxModel<>();
+        modeloSalas.addElement("general");
+        comboSalas = new JComboBox<>(modeloSalas);
+        JButton botonUnirse = new JButton("Unirse...");
+        JButton botonAbandonar = new JButton("Salir de la sala");
+        JButton botonBuscar = new JButton("Buscar...");
+
+        JPanel panelSalas = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        panelSalas.add(new JLabel("Sala:"));
+        panelSalas.add(comboSalas);
+        panelSalas.add(botonUnirse);
+        panelSalas.add(botonAbandonar);
+        panelSalas.add(botonBuscar);
+
         // Panel inferior
         JPanel panelInferior = new JPanel(new BorderLayout());
         panelInferior.add(comboUsuarios, BorderLayout.WEST);
         panelInferior.add(campoMensaje, BorderLayout.CENTER);
         panelInferior.add(botonEnviar, BorderLayout.EAST);
 
+        add(panelSalas, BorderLayout.NORTH);
         add(scroll, BorderLayout.CENTER);
         add(panelInferior, BorderLayout.SOUTH);
 
+        botonUnirse.addActionListener(e -> {
+            String sala = JOptionPane.showInputDialog(this, "Nombre de la sala:");
+            if (sala != null && !sala.trim().isEmpty()) {
+                enviarComando("/unirse " + sala.trim());
+            }
+        });
+        botonAbandonar.addActionListener(e -> {
+            String sala = salaSeleccionada();
+            if (sala != null) {
+                enviarComando("/abandonar " + sala);
+            }
+        });
+        botonBuscar.addActionListener(e -> abrirBusqueda());
+
         // Acción del botón
         botonEnviar.addActionListener(e -> enviarMensaje());
         campoMensaje.addActionListener(e -> enviarMensaje()); // Enter también envía
 
         // Conectar al servidor
         try {
-            socket = new Socket(ip, puerto);
-            salidaObjeto = new ObjectOutputStream(socket.getOutputStream());
-            entradaObjeto = new ObjectInputStream(socket.getInputStream());
-
-            // Enviar nombre de usuario al servidor
-            salidaObjeto.writeObject(new Mensaje(this.usuario, null, this.usuario + " se ha conectado", Mensaje.Tipo.SISTEMA));
-            salidaObjeto.flush();
+            Mensaje rechazo = conectar(new Mensaje(this.usuario, null, this.usuario + " se ha conectado", Mensaje.Tipo.SISTEMA));
+            if (rechazo != null) {
+                mostrarTexto(rechazo + "\n");
+                return;
+            }
 
             // Hilo receptor
             new Thread(new ReceptorMensajes()).start();
@@ -78,94 +145,273 @@ public class VentanaChat extends JFrame {
         }
     }
 
+    // Abre la conexión y envía el saludo binario con el primer mensaje (el nombre, o SESION
+    // para reanudar). Devuelve la respuesta de un servidor lleno (o antiguo), o null si conecta.
+    private Mensaje conectar(Mensaje primero) throws IOException {
+        Socket nuevo = new Socket(ip, puerto);
+        OutputStream salidaNueva = new BufferedOutputStream(nuevo.getOutputStream());
+        InputStream entradaNueva = new BufferedInputStream(nuevo.getInputStream());
+
+        // Saludo binario y primer mensaje en el mismo envío
+        CodecMensaje.escribirSaludo(salidaNueva, CodecMensaje.VERSION);
+        CodecMensaje.escribir(salidaNueva, primero);
+        salidaNueva.flush();
+
+        // Un servidor lleno (o antiguo) responde con un stream de ObjectOutputStream
+        entradaNueva.mark(1);
+        int primerByte = entradaNueva.read();
+        entradaNueva.reset();
+        if (primerByte == CodecMensaje.INICIO_LEGADO) {
+            Mensaje respuesta = CodecMensaje.leerMensajeLegado(entradaNueva);
+            nuevo.close();
+            return respuesta;
+        }
+        version = CodecMensaje.leerSaludo(entradaNueva);
+        socket = nuevo;
+        salida = salidaNueva;
+        entrada = entradaNueva;
+
+        // A partir de aquí se escribe desde el hilo de envío, nunca desde el de Swing
+        envio = new EnvioMensajes(salida, version, error -> SwingUtilities.invokeLater(
+                () -> mostrarTexto("❌ Error al enviar mensaje: " + error + "\n")));
+        envio.arrancar();
+        return null;
+    }
+
+    // Al cerrar la ventana: /quit para que el servidor no espere una reconexión
+    private void salir() {
+        saliendo = true;
+        EnvioMensajes actual = envio;
+        if (actual != null && actual.enviar(new Mensaje(usuario, null, "/quit", Mensaje.Tipo.PUBLICO))) {
+            actual.terminar(500);
+        }
+    }
+
     private void enviarMensaje() {
         String texto = campoMensaje.getText().trim();
         if (texto.isEmpty()) return;
 
         String destinatario = (String) comboUsuarios.getSelectedItem();
-        if ("A todos".equals(destinatario)) destinatario = null;
+        if (ModeloUsuarios.TODOS.equals(destinatario)) destinatario = null;
 
-        try {
-            Mensaje.Tipo tipo = (destinatario == null) ? Mensaje.Tipo.PUBLICO : Mensaje.Tipo.PRIVADO;
-            Mensaje mensaje = new Mensaje(usuario, destinatario, texto, tipo);
-            salidaObjeto.writeObject(mensaje);
-            salidaObjeto.flush();
-
-            if (tipo == Mensaje.Tipo.PRIVADO) {
-                areaMensajes.append("💌 (Tú -> " + comboUsuarios.getSelectedItem() + "): " + texto + "\n");
-            }else {
-                areaMensajes.append("🗣️ Tú: " + texto + "\n");
-            }
-            campoMensaje.setText("");
-        } catch (IOException e) {
-            areaMensajes.append("❌ Error al enviar mensaje: " + e.getMessage() + "\n");
+        Mensaje.Tipo tipo = (destinatario == null) ? Mensaje.Tipo.PUBLICO : Mensaje.Tipo.PRIVADO;
+        Mensaje mensaje = new Mensaje(usuario, destinatario, texto, tipo);
+        String sala = salaSeleccionada();
+        if (tipo == Mensaje.Tipo.PUBLICO) {
+            mensaje.setSala(sala);
+        }
+        if (!encolar(mensaje)) {
+            return; // el texto se queda en el campo para reintentar
+        }
+
+        if (tipo == Mensaje.Tipo.PRIVADO) {
+            mostrarTexto("💌 (Tú -> " + comboUsuarios.getSelectedItem() + "): " + texto + "\n");
+        }else {
+            mostrarTexto("🗣️ " + (sala != null ? "#" + sala + " " : "") + "Tú: " + texto + "\n");
+        }
+        campoMensaje.setText("");
+    }
+
+    // Comandos para el servidor (/unirse, /abandonar): no se muestran en el chat
+    private void enviarComando(String comando) {
+        encolar(new Mensaje(usuario, null, comando, Mensaje.Tipo.PUBLICO));
+    }
+
+    // Solo encola: la escritura (y su posible error) ocurre en el hilo de EnvioMensajes
+    private boolean encolar(Mensaje mensaje) {
+        if (envio == null || !envio.enviar(mensaje)) {
+            mostrarTexto("❌ No se pudo enviar: la conexión está cerrada o saturada.\n");
+            return false;
+        }
+        return true;
+    }
+
+    // 🔍 La búsqueda en el historial necesita un servidor v5
+    private void abrirBusqueda() {
+        if (version < CodecMensaje.VERSION_BUSQUEDA) {
+            mostrarTexto("⚠️ Este servidor no admite búsquedas.\n");
+            return;
+        }
+        if (busqueda == null) {
+            busqueda = new VentanaBusqueda(this, usuario, this::encolar);
         }
+        busqueda.setVisible(true);
+    }
+
+    // null si está seleccionada la sala general
+    private String salaSeleccionada() {
+        String sala = (String) comboSalas.getSelectedItem();
+        return sala == null || "general".equals(sala) ? null : sala;
     }
 
     private class ReceptorMensajes implements Runnable {
         @Override
         public void run() {
+            // Con un token (servidor v6) un corte no es el final: se reconecta y se reanuda
+            do {
+                recibir();
+            } while (token != null && !saliendo && reconectar());
+            SwingUtilities.invokeLater(() -> {
+                volcarPendientes();
+                mostrarTexto("🔴 Conexión perdida.\n");
+            });
+        }
+
+        private void recibir() {
             try {
-                while (true) {
-                    Object obj = entradaObjeto.readObject();
-                    if (obj instanceof Mensaje) {
-                        Mensaje msg = (Mensaje) obj;
-                        SwingUtilities.invokeLater(() -> {
-                            areaMensajes.append(msg.toString() + "\n");
-
-                            if (msg.getTipo() == Mensaje.Tipo.SISTEMA) {
-                                String contenido = msg.getContenido().toLowerCase();
-                                String textoOriginal = msg.getContenido().trim();
-
-                                // Lista de usuarios conectados
-                                if (contenido.startsWith("usuarios_conectados:")) {
-                                    String lista = textoOriginal.substring("usuarios_conectados:".length()).trim();
-                                    if (!lista.isEmpty()) {
-                                        String[] nombres = lista.split(",");
-                                        for (String nombre : nombres) {
-                                            nombre = capitalize(nombre.trim());
-                                            if (!nombre.isEmpty() && !nombre.equals(usuario) && modeloUsuarios.getIndexOf(nombre) == -1) {
-                                                modeloUsuarios.addElement(nombre);
-                                            }
-                                        }
-                                    }
-                                }
-
-                                // Nuevo usuario conectado
-                                else if (contenido.contains("se ha conectado") || contenido.contains("se ha unido")) {
-                                    String[] partes = textoOriginal.split("\\s+");
-                                    if (partes.length > 0) {
-                                        String nuevoUsuario = capitalize(partes[1].trim());
-                                        if (!nuevoUsuario.equals(usuario) && modeloUsuarios.getIndexOf(nuevoUsuario) == -1) {
-                                            modeloUsuarios.addElement(nuevoUsuario);
-                                        }
-                                    }
-                                }
-
-                                // Usuario desconectado
-                                else if (contenido.contains("ha abandonado el chat")) {
-                                    if (textoOriginal.matches("<<\\s+.+\\s+ha abandonado el chat")) {
-                                        String nombre = textoOriginal.replaceFirst("<<\\s+", "").replaceFirst("\\s+ha abandonado el chat", "").trim();
-                                        nombre = capitalize(nombre);
-                                        if (!nombre.isEmpty() && modeloUsuarios.getIndexOf(nombre) != -1) {
-                                            modeloUsuarios.removeElement(nombre);
-                                        }
-                                    }
-                                }
-                            }
-                        });
+                Mensaje msg;
+                while ((msg = CodecMensaje.leer(entrada)) != null) {
+                    // 🔁 Se cuentan todas las tramas desde el SESION, que empieza la numeración
+                    if (msg.getTipo() == Mensaje.Tipo.SESION) {
+                        token = msg.getContenido().split("\n", 2)[0];
+                        recibidas = 1;
+                        finReconexion = 0;
+                    } else if (token != null) {
+                        recibidas++;
+                    }
+                    // 💓 El latido se responde aquí mismo, sin pasar por el hilo de Swing
+                    if (msg.getTipo() == Mensaje.Tipo.PING) {
+                        envio.enviar(new Mensaje(usuario, null, "", Mensaje.Tipo.PONG));
+                    } else {
+                        pendientes.add(msg);
                     }
                 }
-            } catch (IOException | ClassNotFoundException e) {
-                SwingUtilities.invokeLater(() -> areaMensajes.append("🔴 Conexión perdida.\n"));
+            } catch (IOException e) {
+                // se informa en run()
             } finally {
+                envio.cerrar();
                 try {
-                    if (entradaObjeto != null) entradaObjeto.close();
-                    if (salidaObjeto != null) salidaObjeto.close();
+                    if (entrada != null) entrada.close();
+                    if (salida != null) salida.close();
                     if (socket != null) socket.close();
                 } catch (IOException ignored) {}
             }
         }
+
+        // Reintenta con el token y lo recibido hasta ahora; false si se agota el tiempo
+        private boolean reconectar() {
+            reconectando = true;
+            SwingUtilities.invokeLater(() -> mostrarTexto("🟡 Conexión perdida; reconectando...\n"));
+            if (finReconexion == 0) {
+                finReconexion = System.currentTimeMillis() + MILIS_RECONEXION;
+            }
+            for (long espera = 250; !saliendo && System.currentTimeMillis() < finReconexion;
+                    espera = Math.min(espera * 2, MAX_ESPERA_RECONEXION)) {
+                try {
+                    Thread.sleep(espera);
+                    if (conectar(new Mensaje(usuario, null, token + "\n" + recibidas, Mensaje.Tipo.SESION)) == null) {
+                        return true;
+                    }
+                } catch (IOException e) {
+                    // servidor aún sin responder: se vuelve a intentar
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Se ejecuta en el hilo de Swing, una vez por fotograma
+    private void volcarPendientes() {
+        if (pendientes.isEmpty()) return;
+        StringBuilder lote = new StringBuilder();
+        Mensaje msg;
+        while ((msg = pendientes.poll()) != null) {
+            String linea = procesarMensaje(msg);
+            if (linea != null) {
+                lote.append(linea).append('\n');
+            }
+        }
+        mostrarTexto(lote);
+    }
+
+    // Añade al final y recorta por el principio para no pasar de MAX_LINEAS
+    private void mostrarTexto(CharSequence texto) {
+        if (texto.length() == 0) return;
+        areaMensajes.append(texto.toString());
+        int sobrantes = areaMensajes.getLineCount() - 1 - MAX_LINEAS; // tras el último '\n' hay una línea vacía
+        if (sobrantes > 0) {
+            try {
+                areaMensajes.replaceRange(null, 0, areaMensajes.getLineStartOffset(sobrantes));
+            } catch (BadLocationException ignored) {}
+        }
+    }
+
+    // Actualiza usuarios y salas; devuelve la línea a mostrar, o null si no se muestra
+    private String procesarMensaje(Mensaje msg) {
+        // 👥 Presencia: lista completa al entrar y después solo altas y bajas
+        switch (msg.getTipo() != null ? msg.getTipo() : Mensaje.Tipo.SISTEMA) {
+        case LISTA_USUARIOS:
+            if (!msg.getContenido().isEmpty()) {
+                modeloUsuarios.añadirTodos(Arrays.asList(msg.getContenido().split("\n")));
+            }
+            return null;
+        case ENTRA:
+            if (!msg.getContenido().equalsIgnoreCase(usuario)) {
+                modeloUsuarios.añadir(msg.getContenido());
+            }
+            break;
+        case SALE:
+            modeloUsuarios.quitar(msg.getContenido());
+            break;
+        // 🔍 Respuestas a una búsqueda: van a su ventana, no al chat
+        case RESULTADO:
+            if (busqueda != null) {
+                busqueda.añadirResultado(msg);
+            }
+            return null;
+        case BUSQUEDA:
+            if (busqueda != null) {
+                busqueda.finPagina(msg);
+            }
+            return null;
+        // 🔁 Inicio de sesión (v6): reanudada tras un corte, o nueva (la lista y las salas llegan de cero)
+        case SESION:
+            boolean reanudada = msg.getContenido().endsWith("\nREANUDADA");
+            if (!reanudada) {
+                modeloUsuarios.vaciar();
+                modeloSalas.removeAllElements();
+                modeloSalas.addElement("general");
+            }
+            if (!reconectando) {
+                return null;
+            }
+            reconectando = false;
+            return reanudada ? "🟢 Reconectado." : "🟢 Reconectado (la sesión anterior había caducado).";
+        default:
+            break;
+        }
+
+        if (msg.getTipo() == Mensaje.Tipo.SISTEMA) {
+            String contenido = msg.getContenido().toLowerCase();
+            String textoOriginal = msg.getContenido().trim();
+
+            // Salas en las que está el usuario (respuesta a /unirse y /abandonar)
+            if (contenido.startsWith("salas:")) {
+                Object seleccionada = comboSalas.getSelectedItem();
+                String nueva = null;
+                DefaultComboBoxModel<String> anteriores = modeloSalas;
+                modeloSalas = new DefaultComboBoxModel<>();
+                for (String sala : textoOriginal.substring("salas:".length()).split(",")) {
+                    sala = sala.trim();
+                    if (!sala.isEmpty()) {
+                        modeloSalas.addElement(sala);
+                        if (anteriores.getIndexOf(sala) == -1) {
+                            nueva = sala;
+                        }
+                    }
+                }
+                comboSalas.setModel(modeloSalas);
+                // Se selecciona la sala a la que se acaba de unir, o se mantiene la anterior
+                if (nueva != null) {
+                    comboSalas.setSelectedItem(nueva);
+                } else if (modeloSalas.getIndexOf(seleccionada) != -1) {
+                    comboSalas.setSelectedItem(seleccionada);
+                }
+            }
+        }
+        return msg.toString();
     }
 
     // Capitaliza la primera letra de un nombre
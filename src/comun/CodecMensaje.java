@@ -0,0 +1,359 @@
+package comun;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Protocolo binario de CherryChat, compartido por servidor y cliente.
+ *
+ * Saludo: el cliente abre la conexión con [MAGIA, versión] y el servidor
+ * responde igual con la versión acordada (la menor de las dos). Un servidor
+ * que responde con 0xAC está hablando el protocolo antiguo de
+ * ObjectOutputStream (por ejemplo para rechazar con ERROR:SERVIDOR_LLENO).
+ *
+ * Trama: varint con la longitud del resto, y después
+ *
+ *   tipo (1 byte) | marca de tiempo (8 bytes, epoch ms)
+ *   | remitente | destinatario | contenido
+ *
+ * Cada cadena va como varint(largo + 1) seguido de sus bytes UTF-8; 0 indica
+ * null. Tras el contenido pueden ir extensiones opcionales, cada una como un
+ * byte de etiqueta seguido de una cadena (EXT_SALA: la sala del mensaje). Las
+ * etiquetas desconocidas se saltan y los clientes de la versión 1 ignoran los
+ * bytes que sobran, así que añadir campos no rompe a nadie.
+ *
+ * Desde la v3 el cuerpo de una trama puede ir comprimido (ver CompresionTramas);
+ * decodificar() lo descomprime sin que quien lee tenga que saberlo.
+ */
+public final class CodecMensaje {
+
+	public static final byte MAGIA = (byte) 0xCC;
+	public static final int VERSION = 6;
+
+	// Desde la v2 la presencia va en tipos propios (LISTA_USUARIOS, ENTRA, SALE);
+	// a los clientes v1 y a los del protocolo antiguo se les sigue avisando en texto
+	public static final int VERSION_PRESENCIA = 2;
+
+	// Desde la v3 las tramas grandes pueden ir comprimidas (CompresionTramas), en los dos sentidos
+	public static final int VERSION_COMPRESION = 3;
+
+	// Desde la v4 el servidor envía PING a las conexiones en silencio y espera un PONG
+	public static final int VERSION_LATIDO = 4;
+
+	// Desde la v5 el cliente puede buscar en el historial (BUSQUEDA y RESULTADO, ver ConsultaBusqueda)
+	public static final int VERSION_BUSQUEDA = 5;
+
+	// Desde la v6 una sesión cortada se puede reanudar con su token (SESION): el servidor
+	// reenvía solo las tramas que el cliente no llegó a recibir
+	public static final int VERSION_REANUDACION = 6;
+
+	// Primer byte de un stream de ObjectOutputStream (protocolo antiguo)
+	public static final int INICIO_LEGADO = 0xAC;
+
+	public static final int MAX_TRAMA = 1 << 20;
+
+	private static final int TIPO_NULO = 0xFF;
+
+	// Etiquetas de las extensiones al final de la trama
+	private static final int EXT_SALA = 1;
+	private static final Mensaje.Tipo[] TIPOS = Mensaje.Tipo.values();
+
+	// Para ObjectInputStream en el protocolo antiguo: solo Mensaje y su enum
+	public static final ObjectInputFilter FILTRO_LEGADO = ObjectInputFilter.Config
+			.createFilter("maxdepth=4;comun.Mensaje;comun.Mensaje$Tipo;java.lang.Enum;!*");
+
+	private CodecMensaje() {
+	}
+
+	// ===========================
+	// SALUDO
+	// ===========================
+
+	public static void escribirSaludo(OutputStream out, int version) throws IOException {
+		out.write(MAGIA);
+		out.write(version);
+	}
+
+	// Devuelve la versión que anuncia el otro extremo
+	public static int leerSaludo(InputStream in) throws IOException {
+		int magia = in.read();
+		int version = in.read();
+		if (magia < 0 || version < 0) {
+			throw new EOFException("Conexión cerrada durante el saludo");
+		}
+		if ((byte) magia != MAGIA) {
+			throw new StreamCorruptedException("Saludo inválido: 0x" + Integer.toHexString(magia));
+		}
+		return version;
+	}
+
+	// Un único Mensaje en el protocolo antiguo (respuesta de un servidor que no habla binario)
+	public static Mensaje leerMensajeLegado(InputStream in) throws IOException {
+		ObjectInputStream entrada = new ObjectInputStream(in);
+		entrada.setObjectInputFilter(FILTRO_LEGADO);
+		try {
+			return (Mensaje) entrada.readObject();
+		} catch (ClassNotFoundException | ClassCastException e) {
+			throw new StreamCorruptedException("Respuesta inesperada del servidor: " + e.getMessage());
+		}
+	}
+
+	// ===========================
+	// CODIFICACIÓN
+	// ===========================
+
+	// Trama completa (longitud incluida) lista para escribir en el socket
+	public static byte[] codificar(Mensaje mensaje) {
+		byte[] remitente = utf8(mensaje.getRemitente());
+		byte[] destinatario = utf8(mensaje.getDestinatario());
+		byte[] contenido = utf8(mensaje.getContenido());
+
+		byte[] sala = utf8(mensaje.getSala());
+
+		int cuerpo = 1 + 8 + tamañoCadena(remitente) + tamañoCadena(destinatario) + tamañoCadena(contenido);
+		if (sala != null) {
+			cuerpo += 1 + tamañoCadena(sala);
+		}
+		byte[] trama = new byte[tamañoVarint(cuerpo) + cuerpo];
+		int p = escribirVarint(trama, 0, cuerpo);
+		trama[p++] = (byte) (mensaje.getTipo() == null ? TIPO_NULO : mensaje.getTipo().ordinal());
+		p = escribirLong(trama, p, mensaje.getMarcaTiempo());
+		p = escribirCadena(trama, p, remitente);
+		p = escribirCadena(trama, p, destinatario);
+		p = escribirCadena(trama, p, contenido);
+		if (sala != null) {
+			trama[p++] = EXT_SALA;
+			escribirCadena(trama, p, sala);
+		}
+		return trama;
+	}
+
+	public static void escribir(OutputStream out, Mensaje mensaje) throws IOException {
+		out.write(codificar(mensaje));
+	}
+
+	private static byte[] utf8(String texto) {
+		return texto == null ? null : texto.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static int tamañoCadena(byte[] bytes) {
+		return bytes == null ? 1 : tamañoVarint(bytes.length + 1) + bytes.length;
+	}
+
+	private static int escribirCadena(byte[] destino, int p, byte[] bytes) {
+		if (bytes == null) {
+			destino[p] = 0;
+			return p + 1;
+		}
+		p = escribirVarint(destino, p, bytes.length + 1);
+		System.arraycopy(bytes, 0, destino, p, bytes.length);
+		return p + bytes.length;
+	}
+
+	private static int escribirLong(byte[] destino, int p, long valor) {
+		for (int i = 7; i >= 0; i--) {
+			destino[p++] = (byte) (valor >>> (i * 8));
+		}
+		return p;
+	}
+
+	public static int tamañoVarint(int valor) {
+		int n = 1;
+		while ((valor & ~0x7F) != 0) {
+			valor >>>= 7;
+			n++;
+		}
+		return n;
+	}
+
+	public static int escribirVarint(byte[] destino, int p, int valor) {
+		while ((valor & ~0x7F) != 0) {
+			destino[p++] = (byte) ((valor & 0x7F) | 0x80);
+			valor >>>= 7;
+		}
+		destino[p++] = (byte) valor;
+		return p;
+	}
+
+	// ===========================
+	// DECODIFICACIÓN
+	// ===========================
+
+	// Lee la siguiente trama del stream; null si la conexión se cerró limpiamente entre tramas
+	public static Mensaje leer(InputStream in) throws IOException {
+		int primero = in.read();
+		if (primero < 0) {
+			return null;
+		}
+		int largo = primero & 0x7F;
+		int desplazamiento = 7;
+		int b = primero;
+		while ((b & 0x80) != 0) {
+			b = in.read();
+			if (b < 0) {
+				throw new EOFException("Trama incompleta");
+			}
+			if (desplazamiento > 28) {
+				throw new StreamCorruptedException("Longitud de trama inválida");
+			}
+			largo |= (b & 0x7F) << desplazamiento;
+			desplazamiento += 7;
+		}
+		comprobarLargo(largo);
+
+		byte[] cuerpo = in.readNBytes(largo);
+		if (cuerpo.length < largo) {
+			throw new EOFException("Trama incompleta");
+		}
+		return decodificar(cuerpo, 0, largo);
+	}
+
+	/**
+	 * Tamaño total (varint incluido) de la trama que empieza en datos[desde], o
+	 * -1 si todavía no ha llegado entera.
+	 */
+	public static int longitudTrama(byte[] datos, int desde, int hasta) throws StreamCorruptedException {
+		int largo = 0;
+		int p = desde;
+		for (int desplazamiento = 0;; desplazamiento += 7) {
+			if (p >= hasta) {
+				return -1;
+			}
+			if (desplazamiento > 28) {
+				throw new StreamCorruptedException("Longitud de trama inválida");
+			}
+			int b = datos[p++];
+			largo |= (b & 0x7F) << desplazamiento;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+		}
+		comprobarLargo(largo);
+		int total = (p - desde) + largo;
+		return hasta - desde >= total ? total : -1;
+	}
+
+	// Decodifica una trama completa tal y como la delimita longitudTrama()
+	public static Mensaje decodificarTrama(byte[] datos, int desde, int total) throws StreamCorruptedException {
+		int p = desde;
+		while ((datos[p] & 0x80) != 0) {
+			p++;
+		}
+		p++;
+		return decodificar(datos, p, total - (p - desde));
+	}
+
+	// Decodifica el cuerpo de una trama (sin la longitud)
+	public static Mensaje decodificar(byte[] datos, int desde, int largo) throws StreamCorruptedException {
+		if (largo > 0 && (datos[desde] & 0xFF) == CompresionTramas.TIPO_COMPRIMIDO) {
+			byte[] cuerpo = CompresionTramas.descomprimir(datos, desde, largo);
+			return decodificar(cuerpo, 0, cuerpo.length);
+		}
+		Cursor c = new Cursor(datos, desde, desde + largo);
+		int codigoTipo = c.leerByte();
+		Mensaje.Tipo tipo;
+		if (codigoTipo == TIPO_NULO) {
+			tipo = null;
+		} else if (codigoTipo < TIPOS.length) {
+			tipo = TIPOS[codigoTipo];
+		} else {
+			throw new StreamCorruptedException("Tipo de mensaje desconocido: " + codigoTipo);
+		}
+		long marcaTiempo = c.leerLong();
+		String remitente = c.leerCadena();
+		String destinatario = c.leerCadena();
+		String contenido = c.leerCadena();
+		Mensaje mensaje = new Mensaje(remitente, destinatario, contenido, tipo, marcaTiempo);
+		while (c.quedan()) {
+			if (c.leerByte() == EXT_SALA) {
+				mensaje.setSala(c.leerCadena());
+			} else {
+				c.saltarCadena();
+			}
+		}
+		return mensaje;
+	}
+
+	private static void comprobarLargo(int largo) throws StreamCorruptedException {
+		if (largo < 0 || largo > MAX_TRAMA) {
+			throw new StreamCorruptedException("Trama demasiado grande: " + largo);
+		}
+	}
+
+	private static final class Cursor {
+		private final byte[] datos;
+		private int pos;
+		private final int fin;
+
+		Cursor(byte[] datos, int pos, int fin) {
+			this.datos = datos;
+			this.pos = pos;
+			this.fin = fin;
+		}
+
+		private void necesitar(int n) throws StreamCorruptedException {
+			if (fin - pos < n) {
+				throw new StreamCorruptedException("Trama truncada");
+			}
+		}
+
+		boolean quedan() {
+			return pos < fin;
+		}
+
+		int leerByte() throws StreamCorruptedException {
+			necesitar(1);
+			return datos[pos++] & 0xFF;
+		}
+
+		long leerLong() throws StreamCorruptedException {
+			necesitar(8);
+			long valor = 0;
+			for (int i = 0; i < 8; i++) {
+				valor = (valor << 8) | (datos[pos++] & 0xFF);
+			}
+			return valor;
+		}
+
+		int leerVarint() throws StreamCorruptedException {
+			int valor = 0;
+			for (int desplazamiento = 0; desplazamiento <= 28; desplazamiento += 7) {
+				int b = leerByte();
+				valor |= (b & 0x7F) << desplazamiento;
+				if ((b & 0x80) == 0) {
+					return valor;
+				}
+			}
+			throw new StreamCorruptedException("Varint demasiado largo");
+		}
+
+		String leerCadena() throws StreamCorruptedException {
+			int n = leerVarint();
+			if (n == 0) {
+				return null;
+			}
+			int largo = n - 1;
+			if (largo < 0) {
+				throw new StreamCorruptedException("Cadena inválida");
+			}
+			necesitar(largo);
+			String texto = new String(datos, pos, largo, StandardCharsets.UTF_8);
+			pos += largo;
+			return texto;
+		}
+
+		void saltarCadena() throws StreamCorruptedException {
+			int n = leerVarint();
+			if (n > 1) {
+				necesitar(n - 1);
+				pos += n - 1;
+			}
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package comun;
+
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresión de tramas grandes (protocolo binario v3).
+ *
+ * Una trama comprimida sustituye su cuerpo por
+ *
+ *   TIPO_COMPRIMIDO (1 byte) | varint(largo del cuerpo original) | deflate
+ *
+ * Cada trama se comprime sola (sin contexto entre tramas) pero con un
+ * diccionario fijo de vocabulario de chat, código y logs, que hace el papel
+ * del contexto compartido. Así los bytes comprimidos no dependen de la
+ * conexión: un mensaje difundido se comprime una vez y todos los destinatarios
+ * reciben los mismos bytes, igual que con Trama.binario().
+ *
+ * Deflater e Inflater reservan memoria nativa, así que se reutilizan desde un
+ * pequeño almacén en vez de crear uno por trama (o uno por hilo, que con hilos
+ * virtuales serían miles).
+ */
+public final class CompresionTramas {
+
+	static final int TIPO_COMPRIMIDO = 0xFE;
+
+	// Lo más frecuente va al final: deflate codifica más barato las distancias cortas
+	private static final byte[] DICCIONARIO = (""
+			+ "at java.base/java.lang.Thread.run(Thread.java:) Caused by: java.lang.NullPointerException "
+			+ "Exception in thread \"main\" java.io.IOException ERROR WARN INFO DEBUG TRACE [main] "
+			+ "2025-01-01T00:00:00.000Z http://localhost:8080/ https://www.github.com/ .com/ .html .json "
+			+ "import java.util.*; package public class private static final void return new this null "
+			+ "true false if (else { } for (int i = 0; i < while ( String int long boolean @Override "
+			+ "function const let var => console.log( def self. print( </div> <div class=\" ); }; \n    "
+			+ "porque también todavía después entonces aunque siempre nunca ahora bueno vale gracias "
+			+ "mañana ayer hoy tarde noche semana reunión proyecto servidor cliente mensaje error prueba "
+			+ "código archivo cambio versión problema funciona puedes puedo tengo tiene hacer hecho "
+			+ "¿qué tal? ¿cómo estás? ¿dónde? ¿cuándo? ¿por qué? jajaja vale, ok, sí, no, claro, "
+			+ "de la que el en y a los se del las un por con no una su para es al lo como más pero "
+			+ "se ha unido al chat ha abandonado el chat ").getBytes(StandardCharsets.UTF_8);
+
+	private static final int NIVEL = Deflater.DEFAULT_COMPRESSION;
+	private static final int MAX_ALMACENADOS = 64;
+
+	private static final ArrayBlockingQueue<Deflater> COMPRESORES = new ArrayBlockingQueue<>(MAX_ALMACENADOS);
+	private static final ArrayBlockingQueue<Inflater> DESCOMPRESORES = new ArrayBlockingQueue<>(MAX_ALMACENADOS);
+
+	private CompresionTramas() {
+	}
+
+	/**
+	 * Versión comprimida de una trama completa de CodecMensaje (varint
+	 * incluido), o la misma trama si su cuerpo no llega a minimo bytes o si
+	 * comprimida no ocupa menos.
+	 */
+	public static byte[] comprimir(byte[] trama, int minimo) {
+		int inicio = 0;
+		while ((trama[inicio] & 0x80) != 0) {
+			inicio++;
+		}
+		inicio++;
+		int cuerpo = trama.length - inicio;
+		if (minimo <= 0 || cuerpo < minimo) {
+			return trama;
+		}
+
+		Deflater compresor = COMPRESORES.poll();
+		if (compresor == null) {
+			compresor = new Deflater(NIVEL, true);
+		}
+		try {
+			compresor.setDictionary(DICCIONARIO);
+			compresor.setInput(trama, inicio, cuerpo);
+			compresor.finish();
+			// Si no cabe en menos que el original, no compensa
+			byte[] datos = new byte[cuerpo];
+			int n = 0;
+			while (!compresor.finished() && n < datos.length) {
+				n += compresor.deflate(datos, n, datos.length - n);
+			}
+			int nuevo = 1 + CodecMensaje.tamañoVarint(cuerpo) + n;
+			if (!compresor.finished() || nuevo >= cuerpo) {
+				return trama;
+			}
+			byte[] comprimida = new byte[CodecMensaje.tamañoVarint(nuevo) + nuevo];
+			int p = CodecMensaje.escribirVarint(comprimida, 0, nuevo);
+			comprimida[p++] = (byte) TIPO_COMPRIMIDO;
+			p = CodecMensaje.escribirVarint(comprimida, p, cuerpo);
+			System.arraycopy(datos, 0, comprimida, p, n);
+			return comprimida;
+		} finally {
+			devolver(compresor);
+		}
+	}
+
+	// Cuerpo original de un cuerpo comprimido (datos[desde] es TIPO_COMPRIMIDO)
+	static byte[] descomprimir(byte[] datos, int desde, int largo) throws StreamCorruptedException {
+		int p = desde + 1;
+		int hasta = desde + largo;
+		int original = 0;
+		for (int desplazamiento = 0;; desplazamiento += 7) {
+			if (p >= hasta || desplazamiento > 28) {
+				throw new StreamCorruptedException("Trama comprimida inválida");
+			}
+			int b = datos[p++];
+			original |= (b & 0x7F) << desplazamiento;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+		}
+		if (original <= 0 || original > CodecMensaje.MAX_TRAMA) {
+			throw new StreamCorruptedException("Trama comprimida demasiado grande: " + original);
+		}
+
+		Inflater descompresor = DESCOMPRESORES.poll();
+		if (descompresor == null) {
+			descompresor = new Inflater(true);
+		}
+		try {
+			// En deflate sin cabecera el diccionario se fija antes de empezar
+			descompresor.setDictionary(DICCIONARIO);
+			descompresor.setInput(datos, p, hasta - p);
+			byte[] cuerpo = new byte[original];
+			int n = 0;
+			while (n < original && !descompresor.finished()) {
+				int leidos = descompresor.inflate(cuerpo, n, original - n);
+				if (leidos == 0 && (descompresor.needsInput() || descompresor.needsDictionary())) {
+					break;
+				}
+				n += leidos;
+			}
+			if (n != original || (cuerpo[0] & 0xFF) == TIPO_COMPRIMIDO) {
+				throw new StreamCorruptedException("Trama comprimida inválida");
+			}
+			return cuerpo;
+		} catch (DataFormatException e) {
+			throw new StreamCorruptedException("Trama comprimida inválida: " + e.getMessage());
+		} finally {
+			descompresor.reset();
+			if (!DESCOMPRESORES.offer(descompresor)) {
+				descompresor.end();
+			}
+		}
+	}
+
+	private static void devolver(Deflater compresor) {
+		compresor.reset();
+		if (!COMPRESORES.offer(compresor)) {
+			compresor.end();
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package comun;
+
+/**
+ * Búsqueda en el historial del servidor (protocolo binario v5).
+ *
+ * El cliente la envía en el contenido de un mensaje BUSQUEDA. El servidor
+ * responde con una página de mensajes RESULTADO, del más reciente al más
+ * antiguo, y la cierra con otro BUSQUEDA cuyo contenido es la consulta de la
+ * página siguiente (vacío si no hay más): para seguir basta con reenviarla.
+ *
+ * En el contenido va una línea por campo y el texto al final:
+ *
+ *   antes \n desde \n hasta \n remitente \n texto
+ */
+public final class ConsultaBusqueda {
+
+	private final String texto;
+	private final String remitente; // null = cualquiera
+	private final long desde; // epoch ms; 0 = sin límite
+	private final long hasta; // epoch ms; 0 = sin límite
+	private final long antes; // solo mensajes anteriores a este número del historial; 0 = desde el último
+
+	public ConsultaBusqueda(String texto, String remitente, long desde, long hasta) {
+		this(texto, remitente, desde, hasta, 0);
+	}
+
+	private ConsultaBusqueda(String texto, String remitente, long desde, long hasta, long antes) {
+		this.texto = texto == null ? "" : texto.replace('\n', ' ');
+		this.remitente = remitente == null || remitente.trim().isEmpty() ? null : remitente.trim();
+		this.desde = desde;
+		this.hasta = hasta;
+		this.antes = antes;
+	}
+
+	public String codificar() {
+		return antes + "\n" + desde + "\n" + hasta + "\n" + (remitente == null ? "" : remitente) + "\n" + texto;
+	}
+
+	// IllegalArgumentException si el contenido no es una consulta
+	public static ConsultaBusqueda decodificar(String contenido) {
+		String[] campos = contenido.split("\n", 5);
+		if (campos.length != 5) {
+			throw new IllegalArgumentException("Consulta de búsqueda inválida");
+		}
+		return new ConsultaBusqueda(campos[4], campos[3], Long.parseLong(campos[1]), Long.parseLong(campos[2]),
+				Long.parseLong(campos[0]));
+	}
+
+	// La misma consulta, a partir del mensaje anterior al número dado
+	public ConsultaBusqueda siguiente(long antes) {
+		return new ConsultaBusqueda(texto, remitente, desde, hasta, antes);
+	}
+
+	public String getTexto() {
+		return texto;
+	}
+
+	public String getRemitente() {
+		return remitente;
+	}
+
+	public long getDesde() {
+		return desde;
+	}
+
+	public long getHasta() {
+		return hasta;
+	}
+
+	public long getAntes() {
+		return antes;
+	}
+}
@@ -1,29 +1,60 @@
 package comun;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 
 public class Mensaje implements Serializable {
 	private static final long serialVersionUID = 1L;
 
+	private static final DateTimeFormatter FORMATO_FECHA = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+	// LISTA_USUARIOS, ENTRA y SALE son de presencia (protocolo binario v2):
+	// la lista va en el contenido separada por '\n'; en ENTRA y SALE, el nombre.
+	// PING y PONG son los latidos (v4): quien recibe un PING responde con un PONG.
+	// BUSQUEDA y RESULTADO son las búsquedas en el historial (v5, ver ConsultaBusqueda).
+	// SESION es la reanudación (v6): el servidor lo envía al entrar con el token de la
+	// sesión ("token", o "token\nREANUDADA" si continúa una cortada); para reanudar, el
+	// cliente lo envía como primer mensaje con "token\nrecibidas" (tramas recibidas desde
+	// el último SESION, incluido).
 	public enum Tipo {
-		PUBLICO, PRIVADO, SISTEMA
+		PUBLICO, PRIVADO, SISTEMA, LISTA_USUARIOS, ENTRA, SALE, PING, PONG, BUSQUEDA, RESULTADO, SESION
 	}
 
 	private String remitente;
 	private String destinatario; // null si es público
 	private String contenido;
 	private Tipo tipo;
-	private String timestamp;
+	private String timestamp; // formateado bajo demanda a partir de marcaTiempo
+	private long marcaTiempo; // epoch en milisegundos
+	private String sala; // null en la sala general
 
 	// Constructor completo
 	public Mensaje(String remitente, String destinatario, String contenido, Tipo tipo) {
+		this(remitente, destinatario, contenido, tipo, System.currentTimeMillis());
+	}
+
+	// Constructor con la marca de tiempo en milisegundos (protocolo binario)
+	public Mensaje(String remitente, String destinatario, String contenido, Tipo tipo, long marcaTiempo) {
+		this.remitente = remitente;
+		this.destinatario = destinatario;
+		this.contenido = contenido;
+		this.tipo = tipo;
+		this.marcaTiempo = marcaTiempo;
+	}
+
+	// Constructor con la marca de tiempo ya formateada (mensajes reconstruidos desde la red)
+	public Mensaje(String remitente, String destinatario, String contenido, Tipo tipo, String timestamp) {
 		this.remitente = remitente;
 		this.destinatario = destinatario;
 		this.contenido = contenido;
 		this.tipo = tipo;
-		this.timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+		this.timestamp = timestamp;
 	}
 
 	// Constructor simplificado (por compatibilidad con mensajes del sistema)
@@ -49,18 +80,57 @@ public class Mensaje implements Serializable {
 	}
 
 	public String getTimestamp() {
+		if (timestamp == null && marcaTiempo != 0) {
+			timestamp = LocalDateTime.ofInstant(Instant.ofEpochMilli(marcaTiempo), ZoneId.systemDefault())
+					.format(FORMATO_FECHA);
+		}
 		return timestamp;
 	}
 
+	public String getSala() {
+		return sala;
+	}
+
+	public void setSala(String sala) {
+		this.sala = sala;
+	}
+
+	public long getMarcaTiempo() {
+		// Los clientes antiguos solo envían el texto formateado
+		if (marcaTiempo == 0 && timestamp != null) {
+			try {
+				marcaTiempo = LocalDateTime.parse(timestamp, FORMATO_FECHA).atZone(ZoneId.systemDefault()).toInstant()
+						.toEpochMilli();
+			} catch (DateTimeParseException ignored) {
+			}
+		}
+		return marcaTiempo;
+	}
+
+	// Los clientes antiguos leen el campo timestamp, así que se rellena antes de serializar
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		getTimestamp();
+		out.defaultWriteObject();
+	}
+
 	@Override
 	public String toString() {
 		switch (tipo) {
 		case PUBLICO:
-			return "[" + timestamp + "] " + remitente + ": " + contenido;
+			return "[" + getTimestamp() + "] " + (sala != null ? "#" + sala + " " : "") + remitente + ": " + contenido;
 		case PRIVADO:
-			return "[" + timestamp + "] (Privado) " + remitente + " -> " + destinatario + ": " + contenido;
+			return "[" + getTimestamp() + "] (Privado) " + remitente + " -> " + destinatario + ": " + contenido;
 		case SISTEMA:
-			return "[" + timestamp + "] (Sistema): " + contenido;
+			return "[" + getTimestamp() + "] (Sistema): " + contenido;
+		case ENTRA:
+			return "[" + getTimestamp() + "] (Sistema): >> " + contenido + " se ha unido al chat";
+		case SALE:
+			return "[" + getTimestamp() + "] (Sistema): << " + contenido + " ha abandonado el chat";
+		case LISTA_USUARIOS:
+			return "[" + getTimestamp() + "] (Sistema): usuarios conectados: " + contenido.replace('\n', ',');
+		case RESULTADO:
+			return "[" + getTimestamp() + "] " + (destinatario != null ? "(Privado) " + remitente + " -> " + destinatario
+					: remitente) + ": " + contenido;
 		default:
 			return contenido;
 		}
@@ -0,0 +1,235 @@
+package herramientas;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import comun.Mensaje;
+import servidor.CodificadorLegado;
+import servidor.ConfiguracionServidor;
+import servidor.FabricaHilos;
+import servidor.ServidorMain;
+
+/**
+ * Compara cuántas conexiones aguanta cada motor del servidor y cuánta memoria
+ * y cuántos hilos de plataforma le cuestan.
+ *
+ * Cada motor se mide en una JVM hija distinta (servidor y clientes en el mismo
+ * proceso, con los clientes leyendo desde un único Selector para que su coste
+ * sea el mismo en todas las mediciones).
+ *
+ * Uso: java herramientas.BenchmarkConexiones [conexiones] [motor...]
+ */
+public class BenchmarkConexiones {
+
+	private static final String HIJO = "--hijo";
+	private static final long ESPERA_MAXIMA_MS = 120_000;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && HIJO.equals(args[0])) {
+			medir(ConfiguracionServidor.Motor.valueOf(args[1]), Integer.parseInt(args[2]));
+			return;
+		}
+
+		int conexiones = args.length >= 1 ? Integer.parseInt(args[0]) : 2000;
+		List<ConfiguracionServidor.Motor> motores = new ArrayList<>();
+		for (int i = 1; i < args.length; i++) {
+			motores.add(ConfiguracionServidor.Motor.valueOf(args[i].toUpperCase()));
+		}
+		if (motores.isEmpty()) {
+			motores.add(ConfiguracionServidor.Motor.HILOS);
+			if (FabricaHilos.virtualesDisponibles()) {
+				motores.add(ConfiguracionServidor.Motor.VIRTUALES);
+			} else {
+				System.out.println("(JVM " + Runtime.version() + " sin hilos virtuales: se omite ese motor)");
+			}
+			motores.add(ConfiguracionServidor.Motor.NIO);
+		}
+
+		System.out.printf("%-10s %11s %9s %10s %14s %10s %10s%n", "motor", "conexiones", "tiempo", "heap MB",
+				"KB/conexión", "hilos", "RSS MB");
+		for (ConfiguracionServidor.Motor motor : motores) {
+			System.out.println(ejecutarHijo(motor, conexiones));
+		}
+	}
+
+	// Lanza la medición de un motor en una JVM nueva y devuelve su línea de resultado
+	private static String ejecutarHijo(ConfiguracionServidor.Motor motor, int conexiones)
+			throws IOException, InterruptedException {
+		List<String> comando = new ArrayList<>();
+		comando.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+		String rutaModulos = System.getProperty("jdk.module.path");
+		if (rutaModulos != null) {
+			comando.add("-p");
+			comando.add(rutaModulos);
+			comando.add("-m");
+			comando.add(BenchmarkConexiones.class.getModule().getName() + "/" + BenchmarkConexiones.class.getName());
+		} else {
+			comando.add("-cp");
+			comando.add(System.getProperty("java.class.path"));
+			comando.add(BenchmarkConexiones.class.getName());
+		}
+		comando.add(HIJO);
+		comando.add(motor.name());
+		comando.add(String.valueOf(conexiones));
+
+		Process proceso = new ProcessBuilder(comando).redirectErrorStream(true).start();
+		String resultado = motor + ": sin resultado";
+		try (BufferedReader salida = new BufferedReader(new InputStreamReader(proceso.getInputStream()))) {
+			String linea;
+			while ((linea = salida.readLine()) != null) {
+				if (linea.startsWith("RESULTADO ")) {
+					resultado = linea.substring("RESULTADO ".length());
+				}
+			}
+		}
+		proceso.waitFor();
+		return resultado;
+	}
+
+	// ===========================
+	// JVM HIJA
+	// ===========================
+
+	private static void medir(ConfiguracionServidor.Motor motor, int conexiones) throws Exception {
+		int puerto;
+		try (ServerSocket libre = new ServerSocket(0)) {
+			puerto = libre.getLocalPort();
+		}
+		ConfiguracionServidor config = new ConfiguracionServidor();
+		config.setPuerto(puerto);
+		config.setMaxClientes(conexiones);
+		config.setMotor(motor);
+		ServidorMain servidor = new ServidorMain(config);
+		Thread hiloServidor = new Thread(() -> {
+			try {
+				servidor.arrancar();
+			} catch (IOException e) {
+				System.err.println("No se pudo arrancar el servidor: " + e.getMessage());
+			}
+		}, "benchmark-servidor");
+		hiloServidor.setDaemon(true);
+		hiloServidor.start();
+
+		InetSocketAddress direccion = new InetSocketAddress("localhost", puerto);
+		esperarPuerto(direccion);
+
+		Lector lector = new Lector();
+		Thread hiloLector = new Thread(lector, "benchmark-lector");
+		hiloLector.setDaemon(true);
+		hiloLector.start();
+
+		long inicio = System.nanoTime();
+		for (int i = 0; i < conexiones; i++) {
+			SocketChannel canal = SocketChannel.open(direccion);
+			Mensaje hola = new Mensaje("usuario" + i, null, "usuario" + i + " se ha conectado", Mensaje.Tipo.SISTEMA);
+			escribirTodo(canal, ByteBuffer.wrap(CodificadorLegado.CABECERA));
+			escribirTodo(canal, ByteBuffer.wrap(CodificadorLegado.codificar(hola)));
+			canal.configureBlocking(false);
+			lector.añadir(canal);
+		}
+
+		long limite = System.currentTimeMillis() + ESPERA_MAXIMA_MS;
+		while (servidor.getNumeroConectados() < conexiones && System.currentTimeMillis() < limite) {
+			Thread.sleep(50);
+		}
+		long milisegundos = (System.nanoTime() - inicio) / 1_000_000;
+		int conectados = servidor.getNumeroConectados();
+
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(200);
+		}
+		Runtime rt = Runtime.getRuntime();
+		long heap = rt.totalMemory() - rt.freeMemory();
+		System.out.printf("RESULTADO %-10s %11d %7dms %10.1f %14.1f %10d %10s%n", motor, conectados, milisegundos,
+				heap / 1048576.0, conectados == 0 ? 0.0 : heap / 1024.0 / conectados, Thread.activeCount(),
+				rssMegas());
+		System.exit(0);
+	}
+
+	private static void esperarPuerto(InetSocketAddress direccion) throws InterruptedException {
+		for (int intento = 0; intento < 100; intento++) {
+			try {
+				SocketChannel.open(direccion).close();
+				return;
+			} catch (IOException e) {
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	private static void escribirTodo(SocketChannel canal, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			canal.write(buffer);
+		}
+	}
+
+	// Memoria residente del proceso (solo Linux)
+	private static String rssMegas() {
+		try {
+			for (String linea : Files.readAllLines(Path.of("/proc/self/status"))) {
+				if (linea.startsWith("VmRSS:")) {
+					long kb = Long.parseLong(linea.replaceAll("\\D", ""));
+					return String.format("%.1f", kb / 1024.0);
+				}
+			}
+		} catch (IOException | NumberFormatException ignored) {
+		}
+		return "n/d";
+	}
+
+	// Lee y descarta todo lo que el servidor envía a los clientes simulados
+	private static class Lector implements Runnable {
+		private final Selector selector;
+		private final Queue<SocketChannel> nuevos = new ConcurrentLinkedQueue<>();
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+		Lector() throws IOException {
+			selector = Selector.open();
+		}
+
+		void añadir(SocketChannel canal) {
+			nuevos.add(canal);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					selector.select();
+					SocketChannel canal;
+					while ((canal = nuevos.poll()) != null) {
+						canal.register(selector, SelectionKey.OP_READ);
+					}
+					Iterator<SelectionKey> claves = selector.selectedKeys().iterator();
+					while (claves.hasNext()) {
+						SelectionKey clave = claves.next();
+						claves.remove();
+						buffer.clear();
+						if (((SocketChannel) clave.channel()).read(buffer) < 0) {
+							clave.cancel();
+							clave.channel().close();
+						}
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("Error en el lector del benchmark: " + e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,572 @@
+package herramientas;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import comun.CodecMensaje;
+import comun.Mensaje;
+import servidor.ConfiguracionServidor;
+import servidor.ServidorMain;
+
+/**
+ * Generador de carga sin interfaz: abre N sesiones con el protocolo binario de
+ * Mensaje, las conecta poco a poco (rampa) y envía mensajes públicos y
+ * privados a un ritmo fijo. Cada mensaje lleva en el contenido el instante en
+ * que debía enviarse, así que al recibirlo se mide la latencia de entrega de
+ * extremo a extremo (incluido el retraso del propio generador si no llega al
+ * ritmo pedido, para no esconder los atascos).
+ *
+ * Las sesiones se leen desde un único Selector y se escriben desde el hilo
+ * principal, así que miles de usuarios simulados no cuestan miles de hilos.
+ *
+ * Uso: java herramientas.GeneradorCarga [--clave=valor ...]
+ *   --host=127.0.0.1 --puerto=3040   servidor al que conectarse
+ *   --motor=hilos|virtuales|nio      arranca un ServidorMain en este proceso (puerto libre)
+ *   --usuarios=200                   sesiones simuladas
+ *   --rampa=5                        segundos para abrirlas todas
+ *   --tasa=100                       mensajes por segundo (entre todas)
+ *   --privados=20                    porcentaje de mensajes privados
+ *   --tamaño=64                      caracteres de relleno de cada mensaje
+ *   --duracion=30                    segundos enviando
+ */
+public class GeneradorCarga {
+
+	private static final String PREFIJO = "carga:";
+	private static final long ESPERA_ENTREGAS_MS = 2000;
+	private static final byte[] PONG = CodecMensaje.codificar(new Mensaje("carga", null, "", Mensaje.Tipo.PONG));
+
+	private String host = "127.0.0.1";
+	private int puerto = 3040;
+	private ConfiguracionServidor.Motor motor; // null: servidor externo
+	private int usuarios = 200;
+	private int rampaSegundos = 5;
+	private int tasa = 100;
+	private int porcentajePrivados = 20;
+	private int tamaño = 64;
+	private int duracionSegundos = 30;
+
+	// Identifica los mensajes de esta ejecución (el historial puede traer los de otras)
+	private final String ejecucion = Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36);
+	private final String marca = PREFIJO + ejecucion + ":";
+	private volatile long inicioEnvio = Long.MAX_VALUE;
+	private volatile boolean terminado;
+
+	private final LongAdder enviadosPublicos = new LongAdder();
+	private final LongAdder enviadosPrivados = new LongAdder();
+	private final LongAdder entregasEsperadas = new LongAdder();
+	private final LongAdder bytesEnviados = new LongAdder();
+	private final AtomicInteger conectadas = new AtomicInteger();
+	private final AtomicInteger rechazadas = new AtomicInteger();
+	private final AtomicInteger cerradas = new AtomicInteger();
+	private final Latencias latenciaPublicos = new Latencias();
+	private final Latencias latenciaPrivados = new Latencias();
+
+	public static void main(String[] args) throws Exception {
+		GeneradorCarga generador = new GeneradorCarga();
+		for (String arg : args) {
+			if (!arg.startsWith("--")) {
+				throw new IllegalArgumentException("Opción no válida: " + arg);
+			}
+			int igual = arg.indexOf('=');
+			String clave = igual < 0 ? arg.substring(2) : arg.substring(2, igual);
+			String valor = igual < 0 ? "" : arg.substring(igual + 1);
+			generador.aplicarOpcion(clave, valor);
+		}
+		generador.ejecutar();
+		System.exit(0);
+	}
+
+	private void aplicarOpcion(String clave, String valor) {
+		switch (clave) {
+		case "host":
+			host = valor;
+			break;
+		case "puerto":
+			puerto = Integer.parseInt(valor);
+			break;
+		case "motor":
+			motor = ConfiguracionServidor.Motor.valueOf(valor.trim().toUpperCase());
+			break;
+		case "usuarios":
+			usuarios = Integer.parseInt(valor);
+			break;
+		case "rampa":
+			rampaSegundos = Integer.parseInt(valor);
+			break;
+		case "tasa":
+			tasa = Integer.parseInt(valor);
+			break;
+		case "privados":
+			porcentajePrivados = Integer.parseInt(valor);
+			break;
+		case "tamaño":
+		case "tamano":
+			tamaño = Integer.parseInt(valor);
+			break;
+		case "duracion":
+			duracionSegundos = Integer.parseInt(valor);
+			break;
+		default:
+			throw new IllegalArgumentException("Opción desconocida: --" + clave);
+		}
+	}
+
+	private void ejecutar() throws Exception {
+		if (motor != null) {
+			arrancarServidorLocal();
+		}
+		InetSocketAddress direccion = new InetSocketAddress(host, puerto);
+		System.out.printf("Generador de carga -> %s:%d: %d usuarios en %ds, %d msg/s (%d%% privados), %ds%n", host,
+				puerto, usuarios, rampaSegundos, tasa, porcentajePrivados, duracionSegundos);
+
+		Lector lector = new Lector();
+		Thread hiloLector = new Thread(lector, "carga-lector");
+		hiloLector.setDaemon(true);
+		hiloLector.start();
+
+		Thread informe = new Thread(this::informarCadaSegundo, "carga-informe");
+		informe.setDaemon(true);
+		informe.start();
+
+		List<Conexion> conexiones = conectar(direccion, lector);
+
+		// Se espera a que el servidor confirme las sesiones antes de empezar a medir
+		long limite = System.currentTimeMillis() + 10_000;
+		while (conectadas.get() + rechazadas.get() < conexiones.size()
+				&& System.currentTimeMillis() < limite) {
+			Thread.sleep(50);
+		}
+		System.out.printf("Conectadas %d de %d (%d rechazadas)%n", conectadas.get(), usuarios, rechazadas.get());
+		if (conectadas.get() == 0) {
+			return;
+		}
+
+		enviar(conexiones);
+		Thread.sleep(ESPERA_ENTREGAS_MS);
+		terminado = true;
+		resumen();
+	}
+
+	private void arrancarServidorLocal() throws IOException, InterruptedException {
+		try (ServerSocket libre = new ServerSocket(0)) {
+			puerto = libre.getLocalPort();
+		}
+		host = "127.0.0.1";
+		File log = File.createTempFile("cherrychat-carga-", ".txt");
+		log.deleteOnExit();
+		ConfiguracionServidor config = new ConfiguracionServidor();
+		config.setPuerto(puerto);
+		config.setMaxClientes(usuarios + 1); // +1: la conexión de prueba de arranque
+		config.setMotor(motor);
+		config.setHistorialMensajes(0);
+		config.setBuzonMensajes(0);
+		config.setSegundosInforme(0);
+		config.setLogArchivo(log.getPath());
+		// Se mide el reparto, no el límite de mensajes por conexión
+		config.setLimitePublicos(0);
+		config.setLimitePrivados(0);
+		ServidorMain servidor = new ServidorMain(config);
+		Thread hiloServidor = new Thread(() -> {
+			try {
+				servidor.arrancar();
+			} catch (IOException e) {
+				System.err.println("No se pudo arrancar el servidor: " + e.getMessage());
+			}
+		}, "carga-servidor");
+		hiloServidor.setDaemon(true);
+		hiloServidor.start();
+
+		for (int intento = 0; intento < 100; intento++) {
+			try {
+				SocketChannel.open(new InetSocketAddress(host, puerto)).close();
+				return;
+			} catch (IOException e) {
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	// ===========================
+	// RAMPA DE CONEXIONES
+	// ===========================
+
+	private List<Conexion> conectar(InetSocketAddress direccion, Lector lector) throws IOException {
+		List<Conexion> conexiones = new ArrayList<>(usuarios);
+		long intervalo = usuarios > 0 ? rampaSegundos * 1_000_000_000L / usuarios : 0;
+		long inicio = System.nanoTime();
+		for (int i = 0; i < usuarios; i++) {
+			esperarHasta(inicio + i * intervalo);
+			String nombre = "carga" + i;
+			SocketChannel canal;
+			try {
+				canal = SocketChannel.open(direccion);
+			} catch (IOException e) {
+				System.err.println("No se pudo abrir la conexión " + i + ": " + e.getMessage());
+				rechazadas.incrementAndGet();
+				continue;
+			}
+			canal.socket().setTcpNoDelay(true);
+			ByteBuffer hola = ByteBuffer.allocate(64 + nombre.length() * 4);
+			hola.put(CodecMensaje.MAGIA).put((byte) CodecMensaje.VERSION);
+			hola.put(CodecMensaje.codificar(new Mensaje(nombre, null, nombre + " se ha conectado", Mensaje.Tipo.SISTEMA)));
+			hola.flip();
+			escribirTodo(canal, hola);
+			canal.configureBlocking(false);
+			Conexion conexion = new Conexion(nombre, canal);
+			conexiones.add(conexion);
+			lector.añadir(conexion);
+		}
+		return conexiones;
+	}
+
+	// ===========================
+	// ENVÍO A RITMO FIJO
+	// ===========================
+
+	private void enviar(List<Conexion> conexiones) throws IOException {
+		char[] relleno = new char[tamaño];
+		Arrays.fill(relleno, 'x');
+		String textoRelleno = new String(relleno);
+		long periodo = 1_000_000_000L / Math.max(1, tasa);
+		long total = (long) tasa * duracionSegundos;
+		ThreadLocalRandom azar = ThreadLocalRandom.current();
+
+		long inicio = System.nanoTime();
+		inicioEnvio = inicio;
+		for (long k = 0; k < total; k++) {
+			long programado = inicio + k * periodo;
+			esperarHasta(programado);
+			Conexion emisor = conexiones.get(azar.nextInt(conexiones.size()));
+			if (!emisor.abierta || !emisor.confirmada) {
+				continue;
+			}
+			// La marca es el instante programado, no el real: si el generador se atrasa, cuenta como latencia
+			String contenido = marca + programado + ":" + textoRelleno;
+			Mensaje mensaje;
+			if (conexiones.size() > 1 && azar.nextInt(100) < porcentajePrivados) {
+				Conexion destino;
+				do {
+					destino = conexiones.get(azar.nextInt(conexiones.size()));
+				} while (destino == emisor);
+				mensaje = new Mensaje(emisor.nombre, destino.nombre, contenido, Mensaje.Tipo.PRIVADO);
+				enviadosPrivados.increment();
+				entregasEsperadas.increment();
+			} else {
+				mensaje = new Mensaje(emisor.nombre, null, contenido, Mensaje.Tipo.PUBLICO);
+				enviadosPublicos.increment();
+				entregasEsperadas.add(Math.max(0, conectadas.get() - 1));
+			}
+			byte[] trama = CodecMensaje.codificar(mensaje);
+			try {
+				emisor.escribir(trama);
+				bytesEnviados.add(trama.length);
+			} catch (IOException e) {
+				emisor.abierta = false;
+			}
+		}
+	}
+
+	private static void esperarHasta(long instante) {
+		long espera;
+		while ((espera = instante - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(espera);
+		}
+	}
+
+	// En un canal no bloqueante: si el socket está lleno se reintenta (el servidor no da abasto)
+	private static void escribirTodo(SocketChannel canal, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (canal.write(buffer) == 0) {
+				LockSupport.parkNanos(50_000);
+			}
+		}
+	}
+
+	// ===========================
+	// RECEPCIÓN (un único Selector para todas las sesiones)
+	// ===========================
+
+	private static final class Conexion {
+		final String nombre;
+		final SocketChannel canal;
+		volatile boolean abierta = true;
+		byte[] acumulado = new byte[4096];
+		int fin;
+		boolean saludoLeido;
+		boolean confirmada; // el servidor ha aceptado el nombre
+
+		Conexion(String nombre, SocketChannel canal) {
+			this.nombre = nombre;
+			this.canal = canal;
+		}
+
+		// El hilo de envío y el lector (al responder a un PING) pueden escribir a la vez
+		synchronized void escribir(byte[] trama) throws IOException {
+			escribirTodo(canal, ByteBuffer.wrap(trama));
+		}
+	}
+
+	private final class Lector implements Runnable {
+		private final Selector selector;
+		private final Queue<Conexion> nuevas = new ConcurrentLinkedQueue<>();
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+		Lector() throws IOException {
+			selector = Selector.open();
+		}
+
+		void añadir(Conexion conexion) {
+			nuevas.add(conexion);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					selector.select();
+					Conexion nueva;
+					while ((nueva = nuevas.poll()) != null) {
+						nueva.canal.register(selector, SelectionKey.OP_READ, nueva);
+					}
+					Iterator<SelectionKey> claves = selector.selectedKeys().iterator();
+					while (claves.hasNext()) {
+						SelectionKey clave = claves.next();
+						claves.remove();
+						Conexion conexion = (Conexion) clave.attachment();
+						try {
+							leer(conexion);
+						} catch (IOException e) {
+							cerrar(clave, conexion);
+						}
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("Error en el lector del generador: " + e.getMessage());
+			}
+		}
+
+		private void leer(Conexion c) throws IOException {
+			int leidos;
+			do {
+				buffer.clear();
+				leidos = c.canal.read(buffer);
+				if (leidos < 0) {
+					throw new IOException("conexión cerrada");
+				}
+				buffer.flip();
+				if (c.fin + leidos > c.acumulado.length) {
+					c.acumulado = Arrays.copyOf(c.acumulado, Math.max(c.acumulado.length * 2, c.fin + leidos));
+				}
+				buffer.get(c.acumulado, c.fin, leidos);
+				c.fin += leidos;
+				procesar(c);
+			} while (leidos == buffer.capacity());
+		}
+
+		private void procesar(Conexion c) throws IOException {
+			int p = 0;
+			if (!c.saludoLeido) {
+				if (c.fin < 2) {
+					return;
+				}
+				if ((c.acumulado[0] & 0xFF) == CodecMensaje.INICIO_LEGADO) {
+					// Respuesta del protocolo antiguo: el servidor está lleno
+					rechazadas.incrementAndGet();
+					throw new IOException("servidor lleno");
+				}
+				if (c.acumulado[0] != CodecMensaje.MAGIA) {
+					throw new IOException("saludo inválido");
+				}
+				c.saludoLeido = true;
+				p = 2;
+			}
+			long ahora = System.nanoTime();
+			int largo;
+			while ((largo = CodecMensaje.longitudTrama(c.acumulado, p, c.fin)) > 0) {
+				recibido(c, CodecMensaje.decodificarTrama(c.acumulado, p, largo), ahora);
+				p += largo;
+			}
+			System.arraycopy(c.acumulado, p, c.acumulado, 0, c.fin - p);
+			c.fin -= p;
+		}
+
+		private void recibido(Conexion c, Mensaje mensaje, long ahora) throws IOException {
+			if (mensaje.getTipo() == Mensaje.Tipo.PING) {
+				c.escribir(PONG);
+				return;
+			}
+			String contenido = mensaje.getContenido();
+			if (contenido == null) {
+				return;
+			}
+			if (contenido.startsWith(marca)) {
+				int fin = contenido.indexOf(':', marca.length());
+				long enviado = Long.parseLong(contenido, marca.length(), fin, 10);
+				if (enviado >= inicioEnvio) {
+					Latencias destino = mensaje.getTipo() == Mensaje.Tipo.PRIVADO ? latenciaPrivados : latenciaPublicos;
+					destino.registrar((ahora - enviado) / 1000);
+				}
+			} else if (!c.confirmada && mensaje.getTipo() == Mensaje.Tipo.LISTA_USUARIOS) {
+				c.confirmada = true;
+				conectadas.incrementAndGet();
+			} else if (contenido.startsWith("ERROR:")) {
+				rechazadas.incrementAndGet();
+				throw new IOException(contenido);
+			}
+		}
+
+		private void cerrar(SelectionKey clave, Conexion conexion) {
+			clave.cancel();
+			conexion.abierta = false;
+			if (conexion.confirmada) {
+				cerradas.incrementAndGet();
+			}
+			try {
+				conexion.canal.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	// ===========================
+	// INFORMES
+	// ===========================
+
+	private void informarCadaSegundo() {
+		long enviadosAntes = 0;
+		long entregasAntes = 0;
+		long segundo = 0;
+		while (true) {
+			LockSupport.parkNanos(1_000_000_000L);
+			if (terminado) {
+				return;
+			}
+			segundo++;
+			long enviados = enviadosPublicos.sum() + enviadosPrivados.sum();
+			long entregas = latenciaPublicos.getCuenta() + latenciaPrivados.getCuenta();
+			System.out.printf("[%3ds] sesiones %d | enviados %d/s | entregas %d/s | p50 %s p99 %s%n", segundo,
+					conectadas.get() - cerradas.get(), enviados - enviadosAntes, entregas - entregasAntes,
+					formatear(latenciaPublicos.percentil(0.50)), formatear(latenciaPublicos.percentil(0.99)));
+			enviadosAntes = enviados;
+			entregasAntes = entregas;
+		}
+	}
+
+	private void resumen() {
+		double segundos = duracionSegundos;
+		long publicos = enviadosPublicos.sum();
+		long privados = enviadosPrivados.sum();
+		long entregas = latenciaPublicos.getCuenta() + latenciaPrivados.getCuenta();
+		long esperadas = entregasEsperadas.sum();
+		System.out.println();
+		System.out.println("===== RESUMEN =====");
+		System.out.printf("Sesiones: %d conectadas, %d rechazadas, %d cerradas%n", conectadas.get(), rechazadas.get(),
+				cerradas.get());
+		System.out.printf("Enviados: %d públicos + %d privados (%.1f msg/s, %.1f KB/s)%n", publicos, privados,
+				(publicos + privados) / segundos, bytesEnviados.sum() / 1024.0 / segundos);
+		System.out.printf("Entregas: %d de %d esperadas (%.2f%%), %.1f entregas/s%n", entregas, esperadas,
+				esperadas == 0 ? 100.0 : entregas * 100.0 / esperadas, entregas / segundos);
+		System.out.printf("%-10s %10s %10s %10s %10s %10s %10s%n", "latencia", "entregas", "p50", "p90", "p99",
+				"p99.9", "máx");
+		filaLatencias("públicos", latenciaPublicos);
+		filaLatencias("privados", latenciaPrivados);
+	}
+
+	private static void filaLatencias(String nombre, Latencias l) {
+		System.out.printf("%-10s %10d %10s %10s %10s %10s %10s%n", nombre, l.getCuenta(), formatear(l.percentil(0.50)),
+				formatear(l.percentil(0.90)), formatear(l.percentil(0.99)), formatear(l.percentil(0.999)),
+				formatear(l.getMaximo()));
+	}
+
+	private static String formatear(long micros) {
+		if (micros < 1000) {
+			return micros + "µs";
+		}
+		if (micros < 1_000_000) {
+			return String.format("%.2fms", micros / 1000.0);
+		}
+		return String.format("%.2fs", micros / 1_000_000.0);
+	}
+
+	/**
+	 * Histograma de latencias en microsegundos con 16 subdivisiones por cada
+	 * potencia de dos (error menor del 7%), en memoria fija. Lo escribe el hilo
+	 * lector y lo lee el de informes.
+	 */
+	private static final class Latencias {
+		private static final int SUBDIVISIONES = 16;
+		private static final int MAX_EXPONENTE = 40; // ~12 días en µs
+
+		private final AtomicLongArray cubetas = new AtomicLongArray(SUBDIVISIONES * (MAX_EXPONENTE - 2));
+		private final AtomicLong cuenta = new AtomicLong();
+		private final AtomicLong maximo = new AtomicLong();
+
+		void registrar(long micros) {
+			long v = Math.max(0, Math.min(micros, (1L << MAX_EXPONENTE) - 1));
+			cubetas.incrementAndGet(indice(v));
+			cuenta.incrementAndGet();
+			maximo.accumulateAndGet(v, Math::max);
+		}
+
+		private static int indice(long v) {
+			if (v < SUBDIVISIONES) {
+				return (int) v;
+			}
+			int exponente = 63 - Long.numberOfLeadingZeros(v);
+			return SUBDIVISIONES * (exponente - 3) + (int) (v >> (exponente - 4)) - SUBDIVISIONES;
+		}
+
+		// Mayor valor que cae en la cubeta
+		private static long techo(int indice) {
+			if (indice < SUBDIVISIONES) {
+				return indice;
+			}
+			int exponente = indice / SUBDIVISIONES + 3;
+			long sub = indice % SUBDIVISIONES;
+			return ((SUBDIVISIONES + sub + 1) << (exponente - 4)) - 1;
+		}
+
+		long getCuenta() {
+			return cuenta.get();
+		}
+
+		long getMaximo() {
+			return maximo.get();
+		}
+
+		long percentil(double p) {
+			long total = cuenta.get();
+			if (total == 0) {
+				return 0;
+			}
+			long objetivo = Math.max(1, (long) Math.ceil(total * p));
+			long acumulado = 0;
+			for (int i = 0; i < cubetas.length(); i++) {
+				acumulado += cubetas.get(i);
+				if (acumulado >= objetivo) {
+					return Math.min(techo(i), maximo.get());
+				}
+			}
+			return maximo.get();
+		}
+	}
+}
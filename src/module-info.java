@@ -6,4 +6,5 @@
  */
 module ChatMultiusuario {
 	requires java.desktop;
+	requires jdk.httpserver;
 }
\ No newline at end of file
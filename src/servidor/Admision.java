@@ -0,0 +1,85 @@
+package servidor;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import comun.Mensaje;
+
+/**
+ * Control de entrada de conexiones, común a los dos motores.
+ *
+ * Cada conexión aceptada ocupa una plaza hasta que se cierra; la cuenta es un
+ * AtomicInteger que se reserva con CAS, así que el máximo de clientes se
+ * respeta aunque lleguen miles de conexiones a la vez, sin cerrojos ni el
+ * monitor del servidor. Quien no cabe recibe RECHAZO, codificado una sola vez.
+ *
+ * Además, como mucho hay un número fijo de conexiones a medio saludo
+ * (protocolo + nombre). Con todas ocupadas no se rechaza a nadie: se deja de
+ * aceptar y las conexiones esperan en el backlog del sistema hasta que un
+ * saludo termine o caduque. Así una avalancha de reconexiones se atiende a
+ * ritmo constante y unas cuantas conexiones mudas no bloquean la entrada.
+ */
+public class Admision {
+
+	// Stream completo del protocolo antiguo: lo entienden también los clientes binarios
+	public static final byte[] RECHAZO = CodificadorLegado
+			.codificarConCabecera(new Mensaje("SERVER", "ERROR:SERVIDOR_LLENO"));
+
+	private final int maxClientes;
+	private final int maxSaludos;
+	private final int milisSaludo;
+	private final AtomicInteger conexiones = new AtomicInteger();
+	private final Semaphore saludos;
+
+	public Admision(ConfiguracionServidor config) {
+		this.maxClientes = config.getMaxClientes();
+		this.maxSaludos = config.getSaludosPendientes();
+		this.milisSaludo = config.getSegundosSaludo() * 1000;
+		this.saludos = new Semaphore(maxSaludos);
+	}
+
+	// Motor de hilos: bloquea el hilo que acepta hasta que haya hueco para otro saludo
+	public void esperarSaludo() throws InterruptedException {
+		saludos.acquire();
+	}
+
+	// Motor NIO: false si no hay hueco (el bucle deja de aceptar un rato)
+	public boolean reservarSaludo() {
+		return saludos.tryAcquire();
+	}
+
+	// El saludo ha terminado (bien, mal o con la conexión cerrada); una vez por conexión
+	public void saludoTerminado() {
+		saludos.release();
+	}
+
+	// Plaza para una conexión recién aceptada; false si el servidor está lleno
+	public boolean reservarPlaza() {
+		int actual;
+		do {
+			actual = conexiones.get();
+			if (actual >= maxClientes) {
+				return false;
+			}
+		} while (!conexiones.compareAndSet(actual, actual + 1));
+		return true;
+	}
+
+	// La conexión se ha cerrado; una vez por plaza reservada
+	public void liberar() {
+		conexiones.decrementAndGet();
+	}
+
+	// Tiempo máximo para completar el saludo; 0 = sin límite
+	public int getMilisSaludo() {
+		return milisSaludo;
+	}
+
+	public int getConexiones() {
+		return conexiones.get();
+	}
+
+	public int getSaludosPendientes() {
+		return maxSaludos - saludos.availablePermits();
+	}
+}
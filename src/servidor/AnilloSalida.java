@@ -0,0 +1,56 @@
+package servidor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Últimas tramas escritas a una sesión v6, para poder reanudarla tras un corte.
+ *
+ * La numeración empieza en la trama SESION que lleva el token (la 0) y la
+ * siguen todas las que el escritor saca de la ColaSalida, en orden; el cliente
+ * cuenta igual las que recibe. Al reanudar, las que faltan son las que van
+ * desde lo que el cliente dice haber recibido hasta el final. Solo se guardan
+ * referencias a los mismos arrays que se escribieron (en una difusión, los
+ * compartidos por todos), así que el coste es un puntero por trama.
+ */
+public class AnilloSalida {
+
+	private final String token;
+	private final byte[] primera; // trama SESION: hasta que sale no se cuenta nada
+	private final byte[][] tramas;
+	private long escritas = -1; // -1 mientras no haya salido la primera
+
+	public AnilloSalida(String token, byte[] primera, int capacidad) {
+		this.token = token;
+		this.primera = primera;
+		this.tramas = new byte[Math.max(1, capacidad)][];
+	}
+
+	public String getToken() {
+		return token;
+	}
+
+	// La llama el escritor de la sesión con cada trama que saca de su cola
+	public synchronized void escrita(byte[] datos) {
+		if (escritas < 0) {
+			if (datos != primera) {
+				return; // anterior al SESION: el cliente tampoco la cuenta
+			}
+			escritas = 0;
+		}
+		tramas[(int) (escritas % tramas.length)] = datos;
+		escritas++;
+	}
+
+	// Tramas a partir de la número desde, o null si alguna ya no está en el anillo
+	public synchronized List<byte[]> desde(long desde) {
+		if (desde < 0 || desde > escritas || escritas - desde > tramas.length) {
+			return null;
+		}
+		List<byte[]> faltan = new ArrayList<>((int) (escritas - desde));
+		for (long n = desde; n < escritas; n++) {
+			faltan.add(tramas[(int) (n % tramas.length)]);
+		}
+		return faltan;
+	}
+}
@@ -0,0 +1,500 @@
+package servidor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import comun.CodecMensaje;
+import comun.Mensaje;
+import servidor.metricas.Metricas;
+
+/**
+ * Buzones de mensajes privados para usuarios que no están conectados.
+ *
+ * Los privados sin destinatario conectado se añaden, como tramas de
+ * CodecMensaje, a un registro en disco solo de escritura al final: segmentos
+ * proyectados en memoria como los de HistorialMensajes, nombrados por la
+ * posición global de su primer byte ("buzones/00000000000000000000.buz"). En
+ * memoria solo queda, por usuario, un long[] con las posiciones de sus
+ * mensajes.
+ *
+ * Solo se guardan privados para nombres que ya han entrado alguna vez (se
+ * apuntan en "buzones/conocidos.txt"), y cada remitente puede tener a la vez
+ * un número limitado esperando: así nadie puede llenar el espacio total con
+ * buzones inventados y hacer que se borren los de usuarios reales.
+ *
+ * Al entrar, el usuario recibe su buzón por lotes: el primero en el saludo y
+ * el resto, de uno en uno, como tareas cortas del scheduler del servidor.
+ * Cada lote se lee del disco solo si su cola de salida tiene hueco (si no, se
+ * espera un poco), así que un buzón grande no se carga entero en el heap, no
+ * desborda la cola y no retiene el hilo (o el bucle de eventos) que atiende
+ * las entradas de los demás.
+ *
+ * Lo entregado no se reescribe: se añade un registro de control con la
+ * posición hasta la que se ha entregado, y solo cuando el escritor de la
+ * sesión avisa de que el lote ya está en el socket (ColaSalida.avisar). Si la
+ * sesión se corta antes, el lote sigue en el buzón; si su cola descartó
+ * alguna trama mientras tanto, se vuelve a enviar. Un privado puede llegar dos
+ * veces; con un corte solo se pierde lo que ya estaba en el socket. El
+ * registro se acota por tamaño total y por edad borrando los segmentos más
+ * antiguos.
+ */
+public class Buzones {
+
+	private static final String EXTENSION = ".buz";
+	private static final String CONOCIDOS = "conocidos.txt";
+	private static final int MAX_SEGMENTO = 4 * 1024 * 1024;
+	private static final int LOTE = 128;
+	private static final long MILIS_COLA_LLENA = 10;
+	private static final long[] NINGUNO = new long[0];
+
+	private final ServidorMain servidor;
+	private final File carpeta;
+	private final int maxPorUsuario;
+	private final int maxPorRemitente;
+	private final long tamañoMaximo;
+	private final int tamañoSegmento;
+	private final long edadMaxima;
+	private final int huecoCola;
+
+	// Segmentos por posición global de su primer byte; solo se añade al último (activo)
+	private final ConcurrentSkipListMap<Long, Segmento> segmentos = new ConcurrentSkipListMap<>();
+	private final Map<String, Buzon> buzones = new HashMap<>(); // solo con bloqueo
+	private final Map<String, Integer> porRemitente = new HashMap<>(); // solo con bloqueo
+	private final Set<String> conocidos = ConcurrentHashMap.newKeySet();
+	private final ReentrantLock bloqueo = new ReentrantLock();
+	private Segmento activo;
+	private long tamañoTotal;
+	private volatile int pendientes;
+
+	public Buzones(ServidorMain servidor, ConfiguracionServidor config) throws IOException {
+		this.servidor = servidor;
+		this.carpeta = new File(config.getBuzonCarpeta());
+		this.maxPorUsuario = config.getBuzonMensajes();
+		this.maxPorRemitente = config.getBuzonRemitente();
+		this.tamañoMaximo = config.getBuzonMb() * 1024L * 1024L;
+		this.tamañoSegmento = (int) Math.min(MAX_SEGMENTO, tamañoMaximo / 4);
+		this.edadMaxima = config.getBuzonDias() * 24L * 3600 * 1000;
+		this.huecoCola = Math.max(1, config.getCapacidadColaSalida() / 2);
+		if (!carpeta.isDirectory() && !carpeta.mkdirs()) {
+			throw new IOException("No se pudo crear " + carpeta);
+		}
+		File fichero = new File(carpeta, CONOCIDOS);
+		if (fichero.isFile()) {
+			conocidos.addAll(Files.readAllLines(fichero.toPath(), StandardCharsets.UTF_8));
+		}
+		recuperar();
+	}
+
+	private static String clave(String nombre) {
+		return nombre.toLowerCase(Locale.ROOT);
+	}
+
+	// ===========================
+	// GUARDAR
+	// ===========================
+
+	public enum Resultado {
+		GUARDADO, // el destinatario lo recibirá al volver
+		DESCONOCIDO, // el nombre nunca ha entrado
+		LLENO, // su buzón ya tiene el máximo, o no se pudo escribir
+		CUOTA // el remitente ya tiene el máximo esperando
+	}
+
+	// Apunta un nombre que acaba de entrar (aquí o en otro nodo): desde ahora puede recibir en su buzón
+	public void conocer(String nombre) {
+		String clave = clave(nombre);
+		if (conocidos.contains(clave)) {
+			return;
+		}
+		bloqueo.lock();
+		try {
+			if (conocidos.add(clave)) {
+				Files.writeString(new File(carpeta, CONOCIDOS).toPath(), clave + "\n", StandardCharsets.UTF_8,
+						StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			}
+		} catch (IOException e) {
+			System.err.println("No se pudo apuntar el nombre " + nombre + ": " + e.getMessage());
+		} finally {
+			bloqueo.unlock();
+		}
+	}
+
+	// Guarda un privado para su destinatario, si se puede
+	public Resultado guardar(Mensaje mensaje) {
+		String clave = clave(mensaje.getDestinatario());
+		if (!conocidos.contains(clave)) {
+			return Resultado.DESCONOCIDO;
+		}
+		// Se guarda siempre como PRIVADO: los registros SISTEMA son de control
+		Mensaje privado = new Mensaje(mensaje.getRemitente(), mensaje.getDestinatario(), mensaje.getContenido(),
+				Mensaje.Tipo.PRIVADO, mensaje.getMarcaTiempo());
+		byte[] datos = new Trama(privado).binario();
+		String remitente = clave(mensaje.getRemitente());
+		bloqueo.lock();
+		try {
+			Buzon buzon = buzones.get(clave);
+			if (buzon != null && buzon.tamaño() >= maxPorUsuario) {
+				servidor.getMetricas().buzon(Metricas.Buzon.LLENO, 1);
+				return Resultado.LLENO;
+			}
+			if (porRemitente.getOrDefault(remitente, 0) >= maxPorRemitente) {
+				servidor.getMetricas().buzon(Metricas.Buzon.CUOTA, 1);
+				return Resultado.CUOTA;
+			}
+			long posicion = escribir(datos, privado.getMarcaTiempo());
+			if (buzon == null) {
+				buzon = new Buzon();
+				buzones.put(clave, buzon);
+			}
+			buzon.añadir(posicion, remitente);
+			porRemitente.merge(remitente, 1, Integer::sum);
+			pendientes++;
+		} catch (IOException e) {
+			System.err.println("No se pudo guardar en el buzón: " + e.getMessage());
+			return Resultado.LLENO;
+		} finally {
+			bloqueo.unlock();
+		}
+		servidor.getMetricas().buzon(Metricas.Buzon.GUARDADO, 1);
+		return Resultado.GUARDADO;
+	}
+
+	// Añade un registro al segmento activo (o a uno nuevo) y devuelve su posición global
+	private long escribir(byte[] datos, long marcaTiempo) throws IOException {
+		if (activo == null || activo.libre() < datos.length) {
+			long primero = activo == null ? 0 : activo.primero + activo.mapa.capacity();
+			crearSegmento(primero, datos.length);
+		}
+		return activo.añadir(datos, marcaTiempo);
+	}
+
+	private void crearSegmento(long primero, int minimo) throws IOException {
+		File fichero = new File(carpeta, String.format("%020d", primero) + EXTENSION);
+		activo = new Segmento(fichero, primero,
+				HistorialMensajes.proyectar(fichero, Math.max(tamañoSegmento, minimo)));
+		segmentos.put(primero, activo);
+		tamañoTotal += activo.mapa.capacity();
+		// Por tamaño se pierden los más antiguos, nunca el que se acaba de crear
+		while (tamañoTotal > tamañoMaximo && segmentos.firstEntry().getValue() != activo) {
+			borrar(segmentos.firstEntry().getValue());
+		}
+	}
+
+	// ===========================
+	// ENTREGA
+	// ===========================
+
+	// Justo después del saludo: avisa y empieza a entregar el buzón de la sesión, si tiene
+	public void entregar(Sesion sesion) {
+		String clave = clave(sesion.getNombreUsuario());
+		int cuantos;
+		bloqueo.lock();
+		try {
+			Buzon buzon = buzones.get(clave);
+			cuantos = buzon != null ? buzon.tamaño() : 0;
+		} finally {
+			bloqueo.unlock();
+		}
+		if (cuantos == 0) {
+			return;
+		}
+		sesion.enviarMensaje(new Mensaje("SERVER", sesion.getNombreUsuario(),
+				"📬 Tienes " + cuantos + (cuantos == 1 ? " mensaje privado" : " mensajes privados")
+						+ " de cuando no estabas conectado.", Mensaje.Tipo.SISTEMA));
+		new Entrega(sesion, clave).run();
+	}
+
+	// Un lote va en vuelo hasta que el escritor de la sesión avisa de que ha salido al socket:
+	// solo entonces se marca como entregado y se manda el siguiente
+	private final class Entrega implements Runnable {
+		private final Sesion sesion;
+		private final String clave;
+		private long[] enVuelo = NINGUNO;
+		private long descartados; // los de la cola de la sesión al enviar el lote en vuelo
+
+		Entrega(Sesion sesion, String clave) {
+			this.sesion = sesion;
+			this.clave = clave;
+		}
+
+		@Override
+		public void run() {
+			// Si se ha desconectado, lo que queda (también el lote en vuelo) espera a la próxima vez
+			if (servidor.buscarLocal(sesion.getNombreUsuario()) != sesion) {
+				return;
+			}
+			if (enVuelo.length > 0) {
+				// Si su cola descartó algo por el camino, el lote se repite entero
+				if (sesion.getDescartados() == descartados && !marcar(clave, enVuelo)) {
+					return;
+				}
+				enVuelo = NINGUNO;
+			}
+			int hueco = Math.min(LOTE, huecoCola - sesion.getProfundidadCola());
+			if (hueco <= 0) {
+				servidor.programar(this, MILIS_COLA_LLENA);
+				return;
+			}
+			long[] lote = primeros(clave, hueco);
+			if (lote.length == 0) {
+				return;
+			}
+			descartados = sesion.getDescartados();
+			for (long posicion : lote) {
+				enviar(sesion, posicion);
+			}
+			enVuelo = lote;
+			sesion.alEscribir(() -> servidor.programar(this, 0));
+		}
+	}
+
+	// Los primeros mensajes del buzón (como mucho max), sin quitarlos todavía
+	private long[] primeros(String clave, int max) {
+		bloqueo.lock();
+		try {
+			Buzon buzon = buzones.get(clave);
+			return buzon != null ? buzon.primeros(max) : NINGUNO;
+		} finally {
+			bloqueo.unlock();
+		}
+	}
+
+	// Deja constancia en el registro de un lote ya escrito y lo quita del buzón
+	private boolean marcar(String clave, long[] lote) {
+		bloqueo.lock();
+		try {
+			// Primero la marca: si no se puede escribir, los mensajes se quedan en el buzón
+			Mensaje marca = new Mensaje("SERVER", clave, Long.toString(lote[lote.length - 1] + 1),
+					Mensaje.Tipo.SISTEMA);
+			escribir(new Trama(marca).binario(), marca.getMarcaTiempo());
+			Buzon buzon = buzones.get(clave);
+			if (buzon != null) {
+				pendientes -= buzon.descartarHasta(lote[lote.length - 1] + 1, porRemitente);
+				if (buzon.tamaño() == 0) {
+					buzones.remove(clave);
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			System.err.println("No se pudo marcar la entrega del buzón: " + e.getMessage());
+			return false;
+		} finally {
+			bloqueo.unlock();
+		}
+	}
+
+	// Lee un mensaje del disco y lo envía tal cual se guardó
+	private void enviar(Sesion sesion, long posicion) {
+		Map.Entry<Long, Segmento> entrada = segmentos.floorEntry(posicion);
+		if (entrada == null) {
+			servidor.getMetricas().buzon(Metricas.Buzon.CADUCADO, 1); // segmento borrado mientras tanto
+			return;
+		}
+		Segmento segmento = entrada.getValue();
+		int inicio = (int) (posicion - segmento.primero);
+		try {
+			int total = HistorialMensajes.longitudRegistro(segmento.mapa, inicio);
+			byte[] datos = new byte[total];
+			segmento.mapa.get(inicio, datos);
+			sesion.enviarTrama(new Trama(CodecMensaje.decodificarTrama(datos, 0, total), datos));
+			servidor.getMetricas().buzon(Metricas.Buzon.ENTREGADO, 1);
+		} catch (StreamCorruptedException e) {
+			System.err.println("Buzón dañado en " + segmento.fichero.getName() + ": " + e.getMessage());
+		}
+	}
+
+	// Mensajes guardados y aún sin entregar, de todos los usuarios
+	public int getPendientes() {
+		return pendientes;
+	}
+
+	// ===========================
+	// CADUCIDAD Y RECUPERACIÓN
+	// ===========================
+
+	// Borra los segmentos cerrados más antiguos que la edad máxima
+	public void caducar() {
+		if (edadMaxima <= 0) {
+			return;
+		}
+		long limite = System.currentTimeMillis() - edadMaxima;
+		bloqueo.lock();
+		try {
+			for (Segmento segmento : segmentos.values()) {
+				if (segmento == activo || segmento.ultimaMarca >= limite) {
+					break;
+				}
+				borrar(segmento);
+			}
+		} finally {
+			bloqueo.unlock();
+		}
+	}
+
+	// Borra el segmento más antiguo y quita de los buzones los mensajes que tenía
+	private void borrar(Segmento segmento) {
+		segmentos.remove(segmento.primero);
+		tamañoTotal -= segmento.mapa.capacity();
+		if (!segmento.fichero.delete()) {
+			System.err.println("No se pudo borrar " + segmento.fichero.getName());
+		}
+		long desde = segmento.primero + segmento.mapa.capacity();
+		int perdidos = 0;
+		for (var it = buzones.values().iterator(); it.hasNext();) {
+			Buzon buzon = it.next();
+			perdidos += buzon.descartarHasta(desde, porRemitente);
+			if (buzon.tamaño() == 0) {
+				it.remove();
+			}
+		}
+		pendientes -= perdidos;
+		servidor.getMetricas().buzon(Metricas.Buzon.CADUCADO, perdidos);
+	}
+
+	// Vuelve a abrir los segmentos existentes y reconstruye los buzones
+	private void recuperar() throws IOException {
+		File[] ficheros = carpeta.listFiles((dir, nombre) -> nombre.endsWith(EXTENSION));
+		if (ficheros == null) {
+			return;
+		}
+		Arrays.sort(ficheros);
+		for (File fichero : ficheros) {
+			long primero;
+			try {
+				primero = Long.parseLong(fichero.getName().substring(0, fichero.getName().length() - EXTENSION.length()));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			Segmento segmento = new Segmento(fichero, primero, HistorialMensajes.proyectar(fichero, fichero.length()));
+			segmento.recorrer(this);
+			segmentos.put(primero, segmento);
+			tamañoTotal += segmento.mapa.capacity();
+			activo = segmento;
+		}
+	}
+
+	// Un registro leído al recuperar: un privado pendiente o una marca de entrega
+	private void recuperado(Mensaje mensaje, long posicion) {
+		if (mensaje.getTipo() == Mensaje.Tipo.SISTEMA) {
+			Buzon buzon = buzones.get(mensaje.getDestinatario());
+			if (buzon != null) {
+				pendientes -= buzon.descartarHasta(Long.parseLong(mensaje.getContenido()), porRemitente);
+				if (buzon.tamaño() == 0) {
+					buzones.remove(mensaje.getDestinatario());
+				}
+			}
+			return;
+		}
+		String remitente = clave(mensaje.getRemitente());
+		buzones.computeIfAbsent(clave(mensaje.getDestinatario()), k -> new Buzon()).añadir(posicion, remitente);
+		porRemitente.merge(remitente, 1, Integer::sum);
+		conocidos.add(clave(mensaje.getDestinatario()));
+		pendientes++;
+	}
+
+	// Posiciones de los mensajes pendientes de un usuario, en orden (una cola sobre un long[]),
+	// con el remitente de cada uno para llevar la cuenta de porRemitente
+	private static final class Buzon {
+		private long[] posiciones = new long[4];
+		private String[] remitentes = new String[4];
+		private int inicio;
+		private int fin;
+
+		int tamaño() {
+			return fin - inicio;
+		}
+
+		void añadir(long posicion, String remitente) {
+			if (fin == posiciones.length) {
+				if (inicio > 0) {
+					System.arraycopy(posiciones, inicio, posiciones, 0, fin - inicio);
+					System.arraycopy(remitentes, inicio, remitentes, 0, fin - inicio);
+					Arrays.fill(remitentes, fin - inicio, fin, null);
+					fin -= inicio;
+					inicio = 0;
+				} else {
+					posiciones = Arrays.copyOf(posiciones, posiciones.length * 2);
+					remitentes = Arrays.copyOf(remitentes, remitentes.length * 2);
+				}
+			}
+			posiciones[fin] = posicion;
+			remitentes[fin++] = remitente;
+		}
+
+		long[] primeros(int max) {
+			return Arrays.copyOfRange(posiciones, inicio, inicio + Math.min(max, tamaño()));
+		}
+
+		// Quita los anteriores a la posición dada, los descuenta de su remitente y devuelve cuántos eran
+		int descartarHasta(long posicion, Map<String, Integer> porRemitente) {
+			int antes = inicio;
+			while (inicio < fin && posiciones[inicio] < posicion) {
+				porRemitente.computeIfPresent(remitentes[inicio], (r, n) -> n > 1 ? n - 1 : null);
+				remitentes[inicio++] = null;
+			}
+			return inicio - antes;
+		}
+	}
+
+	private static final class Segmento {
+		final File fichero;
+		final long primero;
+		final MappedByteBuffer mapa; // solo accesos absolutos
+		long ultimaMarca;
+		int fin;
+
+		Segmento(File fichero, long primero, MappedByteBuffer mapa) {
+			this.fichero = fichero;
+			this.primero = primero;
+			this.mapa = mapa;
+		}
+
+		int libre() {
+			return mapa.capacity() - fin;
+		}
+
+		long añadir(byte[] datos, long marcaTiempo) {
+			long posicion = primero + fin;
+			mapa.put(fin, datos);
+			fin += datos.length;
+			ultimaMarca = Math.max(ultimaMarca, marcaTiempo);
+			return posicion;
+		}
+
+		// Recupera un segmento existente: avanza hasta la primera zona sin escribir o dañada
+		void recorrer(Buzones buzones) {
+			try {
+				while (fin < mapa.capacity()) {
+					int total = HistorialMensajes.longitudRegistro(mapa, fin);
+					if (total == 0) {
+						break;
+					}
+					byte[] datos = new byte[total];
+					mapa.get(fin, datos);
+					Mensaje mensaje = CodecMensaje.decodificarTrama(datos, 0, total);
+					buzones.recuperado(mensaje, primero + fin);
+					ultimaMarca = Math.max(ultimaMarca, mensaje.getMarcaTiempo());
+					fin += total;
+				}
+			} catch (StreamCorruptedException | NumberFormatException e) {
+				System.err.println("Buzón dañado en " + fichero.getName() + " a partir del byte " + fin);
+				for (int p = fin; p < mapa.capacity(); p++) {
+					mapa.put(p, (byte) 0);
+				}
+			}
+		}
+	}
+}
@@ -2,116 +2,309 @@ package servidor;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.stream.Collectors;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
 
+import comun.CodecMensaje;
 import comun.Mensaje;
+import servidor.metricas.Metricas;
 
-public class ClienteHandler extends Thread {
+// Se ejecuta en un hilo de plataforma o en uno virtual, según el motor configurado.
+// Cada cliente tiene además un hilo escritor que vacía su ColaSalida.
+public class ClienteHandler implements Runnable, Sesion {
 
 	private final Socket socket;
 	private final ServidorMain servidor;
-	private ObjectOutputStream salida;
-	private ObjectInputStream entrada;
-	private String nombreUsuario;
+	private InputStream entrada;
+	private OutputStream salida;
+	private ObjectInputStream entradaObjeto; // solo con clientes del protocolo antiguo
+	private boolean binario;
+	private volatile int version;
+	private volatile String nombreUsuario;
+	private final ColaSalida cola;
+	private volatile Thread escritor;
+	private volatile boolean cerrando;
+	private volatile AnilloSalida anillo; // null si la sesión no se puede reanudar
+	private final Metricas metricas;
+	private final LimiteMensajes limite;
+	private boolean saludoTerminado;
+	private Latidos.Vigilancia vigilancia; // null sin latidos
 
 	public ClienteHandler(Socket socket, ServidorMain servidor) {
 		this.socket = socket;
 		this.servidor = servidor;
+		this.metricas = servidor.getMetricas();
+		ConfiguracionServidor config = servidor.getConfig();
+		this.limite = new LimiteMensajes(config);
+		this.cola = new ColaSalida(config.getCapacidadColaSalida(), config.getPoliticaColaSalida(),
+				() -> LockSupport.unpark(escritor));
 	}
 
 	@Override
 	public void run() {
 		try {
-			// ⚠️ El orden de creación de streams es importante
-			salida = new ObjectOutputStream(socket.getOutputStream());
-			entrada = new ObjectInputStream(socket.getInputStream());
+			vigilancia = servidor.vigilar(this);
+			entrada = new BufferedInputStream(new EntradaMedida(socket.getInputStream(), metricas));
+			salida = new BufferedOutputStream(socket.getOutputStream());
+			negociarProtocolo();
+			escritor = servidor.nuevoHiloCliente(this::bucleEscritura);
+			escritor.start();
 
 			// ✅ Primer mensaje: el cliente envía su nombre dentro de un objeto Mensaje
-			Mensaje mensajeInicial = (Mensaje) entrada.readObject();
-			if (mensajeInicial == null || mensajeInicial.getRemitente() == null
-					|| mensajeInicial.getRemitente().trim().isEmpty()) {
-				enviarMensaje(new Mensaje("SERVER", "ERROR:NOMBRE_INVALIDO"));
-				cerrarConexion();
-				return;
+			Mensaje mensajeInicial = leerMensaje();
+			boolean iniciada = servidor.iniciarSesion(this, mensajeInicial);
+			terminarSaludo();
+			if (!iniciada) {
+				return; // el finally deja salir el ERROR:... antes de cerrar
 			}
-
-			this.nombreUsuario = mensajeInicial.getRemitente().trim();
-
-			// 🔎 Comprobar duplicados
-			synchronized (servidor) {
-				boolean existe = servidor.getClientes().stream().anyMatch(
-						c -> c.getNombreUsuario() != null && c.getNombreUsuario().equalsIgnoreCase(nombreUsuario));
-				if (existe) {
-					enviarMensaje(new Mensaje("SERVER", "ERROR:NOMBRE_DUPLICADO"));
-					cerrarConexion();
-					return;
-				}
-			}
-
-			// ✅ Registrar usuario
-			servidor.registrarCliente(this);
-			servidor.broadcast(
-					new Mensaje("SERVER", null, ">> " + nombreUsuario + " se ha unido al chat", Mensaje.Tipo.SISTEMA),
-					this);
-			
-			String listaUsuarios = servidor.getClientes().stream()
-				    .filter(c -> c != this)  // Excluir al cliente actual para evitar duplicados
-				    .map(ClienteHandler::getNombreUsuario)
-				    .filter(nombre -> nombre != null && !nombre.isEmpty())
-				    .collect(Collectors.joining(", "));  // Une los nombres con comas: "usuario1, usuario2, usuario3"
-				Mensaje msgLista = new Mensaje("SERVER", nombreUsuario, "usuarios_conectados: " + listaUsuarios, Mensaje.Tipo.SISTEMA);
-				enviarMensaje(msgLista);
+			socket.setSoTimeout(0);
 
 			// 🔁 Bucle de recepción
 			Mensaje recibido;
-			while ((recibido = (Mensaje) entrada.readObject()) != null) {
-				String texto = recibido.getContenido();
-
-				// 📴 Desconexión
-				if (texto.equalsIgnoreCase("/quit") || texto.equalsIgnoreCase("DESCONECTAR")) {
-					break;
+			while ((recibido = leerMensaje()) != null) {
+				if (vigilancia != null) {
+					vigilancia.actividad();
 				}
-
-				// 📬 Mensaje privado o público
-				if (recibido.getDestinatario() != null && !recibido.getDestinatario().isEmpty()) {
-					boolean enviado = servidor.enviarPrivado(recibido, this);
-					if (!enviado) {
-						enviarMensaje(new Mensaje("SERVER",
-								"El usuario '" + recibido.getDestinatario() + "' no está conectado."));
+				// 🚦 Límite de mensajes: con RETRASAR este hilo deja de leer hasta que haya ficha
+				LimiteMensajes.Resultado resultado = limite.comprobar(recibido);
+				if (resultado != LimiteMensajes.Resultado.ACEPTADO) {
+					if (!servidor.limiteSuperado(this, limite, resultado)) {
+						break;
+					}
+					if (resultado != LimiteMensajes.Resultado.RETRASADO) {
+						continue;
+					}
+					long hasta = System.nanoTime() + limite.getEspera();
+					for (long resto; (resto = hasta - System.nanoTime()) > 0;) {
+						LockSupport.parkNanos(this, resto);
 					}
-				} else {
-					servidor.broadcast(recibido, this);
+				}
+				if (!servidor.procesarMensaje(this, recibido)) {
+					break;
 				}
 			}
 
+		} catch (SocketTimeoutException e) {
+			// Solo hay tiempo máximo durante el saludo
+			metricas.rechazo(Metricas.Rechazo.SALUDO_CADUCADO);
+			servidor.escribirLog("Conexión cerrada (saludo sin terminar) desde " + socket.getRemoteSocketAddress());
 		} catch (IOException | ClassNotFoundException e) {
 			System.err.println("Error en conexión con cliente " + nombreUsuario + ": " + e.getMessage());
 		} finally {
-			servidor.eliminarCliente(this);
-			servidor.broadcast(
-					new Mensaje("SERVER", null, "<< " + nombreUsuario + " ha abandonado el chat", Mensaje.Tipo.SISTEMA),
-					this);
+			if (vigilancia != null) {
+				vigilancia.terminar();
+			}
+			terminarSaludo();
+			// El escritor termina antes: así el anillo ya no cambia si la sesión se aparca
+			terminarEscritura();
+			servidor.finalizarSesion(this);
 			cerrarConexion();
+			servidor.getAdmision().liberar();
+		}
+	}
+
+	private void terminarSaludo() {
+		if (!saludoTerminado) {
+			saludoTerminado = true;
+			servidor.getAdmision().saludoTerminado();
 		}
 	}
 
-	// Enviar objeto Mensaje
-	public void enviarMensaje(Mensaje mensaje) {
+	// El primer byte decide el protocolo: saludo binario o cabecera de ObjectOutputStream
+	private void negociarProtocolo() throws IOException {
+		entrada.mark(1);
+		int primero = entrada.read();
+		entrada.reset();
+
+		if ((byte) primero == CodecMensaje.MAGIA) {
+			int version = CodecMensaje.leerSaludo(entrada);
+			if (version < 1) {
+				throw new StreamCorruptedException("Versión de protocolo inválida: " + version);
+			}
+			this.version = Math.min(version, CodecMensaje.VERSION);
+			CodecMensaje.escribirSaludo(salida, this.version);
+			salida.flush();
+			binario = true;
+		} else {
+			// ⚠️ Protocolo antiguo: el orden de creación de streams es importante.
+			// La salida no usa ObjectOutputStream: tras la cabecera se escriben los
+			// trozos autocontenidos de Trama.legado(), que no acumulan handles.
+			salida.write(CodificadorLegado.CABECERA);
+			salida.flush();
+			entradaObjeto = new ObjectInputStream(entrada);
+			entradaObjeto.setObjectInputFilter(CodecMensaje.FILTRO_LEGADO);
+		}
+	}
+
+	private Mensaje leerMensaje() throws IOException, ClassNotFoundException {
+		return binario ? CodecMensaje.leer(entrada) : (Mensaje) entradaObjeto.readObject();
+	}
+
+	// Enviar un Mensaje ya codificado: solo se encola, el hilo escritor lo saca al socket
+	@Override
+	public void enviarTrama(Trama trama) {
+		if (socket.isClosed() && anillo == null) {
+			return;
+		}
+		enviarBytes(binario ? bytesBinarios(trama) : trama.legado());
+	}
+
+	@Override
+	public void enviarBytes(byte[] datos) {
+		if (!cola.ofrecer(datos) && !socket.isClosed()) {
+			servidor.escribirLog("Cliente lento desconectado (cola llena): " + nombreUsuario);
+			// Solo se cierra el socket: el hilo lector lo verá y hará finalizarSesion
+			cortar();
+		}
+	}
+
+	private byte[] bytesBinarios(Trama trama) {
+		return version >= CodecMensaje.VERSION_COMPRESION
+				? trama.comprimida(servidor.getConfig().getCompresionMinimo(), metricas)
+				: trama.binario();
+	}
+
+	// Hilo escritor: escribe todo lo encolado y hace un único flush cuando la cola se vacía
+	private void bucleEscritura() {
 		try {
-			if (salida != null) {
-				salida.writeObject(mensaje);
-				salida.flush();
+			while (!socket.isClosed()) {
+				byte[] datos = cola.sacar();
+				if (datos != null) {
+					AnilloSalida a = anillo;
+					if (a != null) {
+						a.escrita(datos);
+					}
+					salida.write(datos);
+					metricas.salida(1, datos.length);
+					if (cola.avisoPendiente()) {
+						salida.flush();
+						cola.vaciada();
+					}
+				} else {
+					salida.flush();
+					cola.vaciada();
+					if (cerrando) {
+						break;
+					}
+					LockSupport.park(this);
+				}
 			}
 		} catch (IOException e) {
-			System.err.println("Error al enviar mensaje a " + nombreUsuario + ": " + e.getMessage());
+			if (!socket.isClosed()) {
+				System.err.println("Error al enviar mensaje a " + nombreUsuario + ": " + e.getMessage());
+				cortar();
+			}
+		} finally {
+			if (anillo == null) {
+				cola.limpiar(); // con anillo, lo pendiente se reenvía si la sesión se reanuda
+			}
 		}
 	}
 
+	// Espera (poco) a que el escritor vacíe la cola, para que salgan los últimos mensajes
+	private void terminarEscritura() {
+		cerrando = true;
+		Thread hilo = escritor;
+		if (hilo != null) {
+			LockSupport.unpark(hilo);
+			try {
+				hilo.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@Override
+	public void alEscribir(Runnable aviso) {
+		cola.avisar(aviso);
+	}
+
+	@Override
+	public int getVersion() {
+		return version;
+	}
+
+	@Override
+	public int getProfundidadCola() {
+		return cola.getProfundidad();
+	}
+
+	@Override
+	public long getDescartados() {
+		return cola.getDescartados();
+	}
+
+	@Override
+	public AnilloSalida getAnillo() {
+		return anillo;
+	}
+
+	@Override
+	public void setAnillo(AnilloSalida anillo) {
+		this.anillo = anillo;
+	}
+
+	@Override
+	public List<byte[]> sacarPendientes() {
+		return cola.sacarTodas();
+	}
+
+	@Override
+	public void desconectar() {
+		cortar(); // el hilo lector verá el socket cerrado y hará finalizarSesion
+	}
+
+	@Override
 	public String getNombreUsuario() {
 		return nombreUsuario;
 	}
 
+	@Override
+	public void setNombreUsuario(String nombreUsuario) {
+		this.nombreUsuario = nombreUsuario;
+	}
+
+	// Cierra el socket sin tocar los streams: desbloquea a un escritor atascado en write()
+	private void cortar() {
+		try {
+			socket.close();
+		} catch (IOException ignored) {
+		}
+		LockSupport.unpark(escritor);
+	}
+
+	// Cuenta los bytes leídos del socket (bajo el BufferedInputStream: una suma por lectura)
+	private static final class EntradaMedida extends FilterInputStream {
+		private final Metricas metricas;
+
+		EntradaMedida(InputStream in, Metricas metricas) {
+			super(in);
+			this.metricas = metricas;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				metricas.bytesEntrantes(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				metricas.bytesEntrantes(n);
+			}
+			return n;
+		}
+	}
+
 	private void cerrarConexion() {
+		cortar();
 		try {
 			if (entrada != null)
 				entrada.close();
@@ -0,0 +1,62 @@
+package servidor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+
+import comun.Mensaje;
+
+/**
+ * Serializa Mensajes en el formato de ObjectOutputStream que esperan los
+ * clientes antiguos, sin necesitar un ObjectOutputStream por conexión.
+ *
+ * Cada trozo empieza por TC_RESET: no hace referencia a nada enviado antes, así
+ * que se puede escribir tal cual en cualquier conexión cuyo ObjectInputStream
+ * ya haya leído la CABECERA.
+ */
+public final class CodificadorLegado {
+
+	// Cabecera de stream de ObjectOutputStream (STREAM_MAGIC + STREAM_VERSION)
+	public static final byte[] CABECERA = { (byte) 0xAC, (byte) 0xED, 0x00, 0x05 };
+
+	private static final ThreadLocal<CodificadorLegado> POR_HILO = ThreadLocal.withInitial(CodificadorLegado::new);
+
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+	private final ObjectOutputStream salida;
+
+	private CodificadorLegado() {
+		try {
+			salida = new ObjectOutputStream(buffer);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// Trozo autocontenido (TC_RESET + objeto) para una conexión ya abierta
+	public static byte[] codificar(Mensaje mensaje) {
+		return POR_HILO.get().serializar(mensaje);
+	}
+
+	// Stream completo (cabecera + mensaje), para conexiones que se cierran tras un único mensaje
+	public static byte[] codificarConCabecera(Mensaje mensaje) {
+		byte[] cuerpo = codificar(mensaje);
+		byte[] completo = new byte[CABECERA.length + cuerpo.length];
+		System.arraycopy(CABECERA, 0, completo, 0, CABECERA.length);
+		System.arraycopy(cuerpo, 0, completo, CABECERA.length, cuerpo.length);
+		return completo;
+	}
+
+	private byte[] serializar(Mensaje mensaje) {
+		try {
+			buffer.reset();
+			salida.reset();
+			salida.writeObject(mensaje);
+			salida.flush();
+			return buffer.toByteArray();
+		} catch (IOException e) {
+			// ByteArrayOutputStream no lanza IOException
+			throw new UncheckedIOException(e);
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package servidor;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cola acotada de bytes pendientes de escribir a un cliente.
+ *
+ * Quien envía solo encola (nunca escribe en el socket), así que un cliente
+ * lento no frena el broadcast: cuando su cola se llena se aplica la política
+ * configurada. Los elementos son tramas completas, de modo que descartar una
+ * nunca deja el stream a medias.
+ *
+ * Quien necesite saber que lo que ha encolado ya salió al socket (la entrega
+ * de un buzón) deja un aviso: las tramas se numeran al entrar y al salir
+ * (escritas o descartadas por antiguas), y el escritor anota cuántas han
+ * salido cada vez que vacía al socket.
+ */
+public class ColaSalida {
+
+	// Qué hacer cuando la cola está llena
+	public enum Politica {
+		DESCARTAR_ANTIGUO, DESCARTAR_NUEVO, DESCONECTAR
+	}
+
+	private final Queue<byte[]> cola = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger profundidad = new AtomicInteger();
+	private final AtomicLong descartados = new AtomicLong();
+	private final AtomicLong entradas = new AtomicLong();
+	private final AtomicLong salidas = new AtomicLong();
+	private volatile long escritas; // salidas que el escritor ya ha vaciado al socket
+	private final PriorityQueue<Aviso> avisos = new PriorityQueue<>(Comparator.comparingLong(a -> a.objetivo)); // solo con synchronized
+	private volatile long proximoAviso = Long.MAX_VALUE;
+	private final int capacidad;
+	private final Politica politica;
+	private final Runnable alEncolar;
+
+	// alEncolar avisa al escritor (hilo propio o bucle de eventos) de que hay trabajo
+	public ColaSalida(int capacidad, Politica politica, Runnable alEncolar) {
+		this.capacidad = capacidad;
+		this.politica = politica;
+		this.alEncolar = alEncolar;
+	}
+
+	// Devuelve false si la cola está llena y la política es DESCONECTAR
+	public boolean ofrecer(byte[] datos) {
+		if (profundidad.incrementAndGet() > capacidad) {
+			switch (politica) {
+			case DESCARTAR_NUEVO:
+				profundidad.decrementAndGet();
+				descartados.incrementAndGet();
+				return true;
+			case DESCONECTAR:
+				profundidad.decrementAndGet();
+				return false;
+			case DESCARTAR_ANTIGUO:
+				descartados.incrementAndGet();
+				if (cola.poll() != null) {
+					profundidad.decrementAndGet();
+					salidas.incrementAndGet();
+				}
+				break;
+			}
+		}
+		// Se cuenta antes de añadirla: así un aviso posterior siempre la tiene en cuenta
+		entradas.incrementAndGet();
+		cola.add(datos);
+		alEncolar.run();
+		return true;
+	}
+
+	// Siguiente trama pendiente, o null si la cola está vacía
+	public byte[] sacar() {
+		byte[] datos = cola.poll();
+		if (datos != null) {
+			profundidad.decrementAndGet();
+			salidas.incrementAndGet();
+		}
+		return datos;
+	}
+
+	// La llama el escritor cuando todo lo que ha sacado ya está en el socket
+	public void vaciada() {
+		escritas = salidas.get();
+		if (proximoAviso <= escritas) {
+			ejecutarAvisos();
+		}
+	}
+
+	// True si conviene vaciar ya al socket porque hay un aviso esperando a lo sacado
+	public boolean avisoPendiente() {
+		return proximoAviso <= salidas.get();
+	}
+
+	// Ejecuta el aviso (en el hilo del escritor) cuando todo lo encolado hasta ahora haya salido
+	// de la cola; si la sesión se cierra antes, no se ejecuta nunca. Quien lo pide comprueba
+	// getDescartados() para saber si alguna de sus tramas se descartó por el camino.
+	public void avisar(Runnable aviso) {
+		synchronized (avisos) {
+			avisos.add(new Aviso(entradas.get(), aviso));
+			proximoAviso = avisos.peek().objetivo;
+		}
+		if (proximoAviso <= escritas) {
+			ejecutarAvisos();
+		} else {
+			alEncolar.run(); // el escritor vacía y lo confirma aunque no haya nada más
+		}
+	}
+
+	private void ejecutarAvisos() {
+		List<Runnable> listos = new ArrayList<>(1);
+		synchronized (avisos) {
+			while (!avisos.isEmpty() && avisos.peek().objetivo <= escritas) {
+				listos.add(avisos.poll().aviso);
+			}
+			proximoAviso = avisos.isEmpty() ? Long.MAX_VALUE : avisos.peek().objetivo;
+		}
+		for (Runnable aviso : listos) {
+			aviso.run();
+		}
+	}
+
+	// Todas las pendientes, en orden (las de una sesión cortada que se reanuda en otra)
+	public List<byte[]> sacarTodas() {
+		List<byte[]> todas = new ArrayList<>(getProfundidad());
+		for (byte[] datos; (datos = sacar()) != null;) {
+			todas.add(datos);
+		}
+		return todas;
+	}
+
+	public void limpiar() {
+		while (sacar() != null) {
+		}
+	}
+
+	public int getProfundidad() {
+		return Math.max(0, profundidad.get());
+	}
+
+	public long getDescartados() {
+		return descartados.get();
+	}
+
+	private static final class Aviso {
+		final long objetivo; // número de entradas que tienen que haber salido
+		final Runnable aviso;
+
+		Aviso(long objetivo, Runnable aviso) {
+			this.objetivo = objetivo;
+			this.aviso = aviso;
+		}
+	}
+}
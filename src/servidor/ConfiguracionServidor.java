@@ -0,0 +1,590 @@
+package servidor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parámetros de arranque del servidor.
+ *
+ * Se construye a partir de la línea de comandos: los dos primeros argumentos
+ * posicionales siguen siendo el puerto y el máximo de clientes, y el resto de
+ * opciones se pasan como "--clave=valor" (por ejemplo "--motor=nio").
+ */
+public class ConfiguracionServidor {
+
+	// Motor que atiende las conexiones
+	public enum Motor {
+		HILOS, // un hilo de plataforma por cliente (ClienteHandler)
+		VIRTUALES, // un hilo virtual por cliente (requiere Java 21)
+		NIO // bucles de eventos con Selector
+	}
+
+	private int puerto = 3040;
+	private int maxClientes = 5;
+	private Motor motor = Motor.HILOS;
+	private int buclesEventos = Runtime.getRuntime().availableProcessors();
+	private int capacidadColaSalida = 1024;
+	private ColaSalida.Politica politicaColaSalida = ColaSalida.Politica.DESCARTAR_ANTIGUO;
+	private int logMaxMb = 10;
+	private int logHorasRotacion = 24;
+	private int logCapacidad = 65536;
+	private String logArchivo = "log.txt";
+	private int segundosInforme = 10;
+	private int historialMensajes = 50;
+	private boolean historialPrivados = false;
+	private int historialDias = 7;
+	private int historialSegmentoMb = 8;
+	private String historialCarpeta = "historial";
+	private boolean busqueda = true;
+	private int buzonMensajes = 500;
+	private int buzonRemitente = 100;
+	private int buzonMb = 64;
+	private int buzonDias = 7;
+	private String buzonCarpeta = "buzones";
+	private List<String> nodosCluster = new ArrayList<>();
+	private int puertoCluster = 0;
+	private String nodo;
+	private int puertoMetricas = 0;
+	private int compresionMinimo = 512;
+	private int limitePublicos = 10;
+	private int rafagaPublicos = 20;
+	private int limitePrivados = 20;
+	private int rafagaPrivados = 40;
+	private int maxContenido = 16384;
+	private int saludosPendientes = 1024;
+	private int segundosSaludo = 10;
+	private int segundosLatido = 30;
+	private int segundosEsperaLatido = 10;
+	private int segundosReanudar = 30;
+	private int tramasReanudar = 256;
+	private int capacidadTuberia = 4096;
+	private int hilosReparto = Runtime.getRuntime().availableProcessors();
+	private LimiteMensajes.Politica politicaLimite = LimiteMensajes.Politica.DESCARTAR;
+
+	public static ConfiguracionServidor desdeArgumentos(String[] args) {
+		ConfiguracionServidor config = new ConfiguracionServidor();
+		int posicional = 0;
+		for (String arg : args) {
+			if (arg.startsWith("--")) {
+				int igual = arg.indexOf('=');
+				String clave = igual < 0 ? arg.substring(2) : arg.substring(2, igual);
+				String valor = igual < 0 ? "" : arg.substring(igual + 1);
+				config.aplicarOpcion(clave, valor);
+			} else if (posicional == 0) {
+				config.puerto = Integer.parseInt(arg);
+				posicional++;
+			} else if (posicional == 1) {
+				config.maxClientes = Integer.parseInt(arg);
+				posicional++;
+			}
+		}
+		return config;
+	}
+
+	private void aplicarOpcion(String clave, String valor) {
+		switch (clave) {
+		case "puerto":
+			puerto = Integer.parseInt(valor);
+			break;
+		case "max":
+			maxClientes = Integer.parseInt(valor);
+			break;
+		case "motor":
+			motor = Motor.valueOf(constante(valor));
+			break;
+		case "bucles":
+			buclesEventos = Math.max(1, Integer.parseInt(valor));
+			break;
+		case "cola":
+			capacidadColaSalida = Math.max(1, Integer.parseInt(valor));
+			break;
+		case "politica-cola":
+			politicaColaSalida = ColaSalida.Politica.valueOf(constante(valor));
+			break;
+		case "log-max-mb":
+			logMaxMb = Integer.parseInt(valor);
+			break;
+		case "log-horas":
+			logHorasRotacion = Integer.parseInt(valor);
+			break;
+		case "log-cola":
+			logCapacidad = Math.max(1, Integer.parseInt(valor));
+			break;
+		case "historial":
+			historialMensajes = Math.max(0, Integer.parseInt(valor));
+			break;
+		case "historial-privados":
+			historialPrivados = valor.isEmpty() || Boolean.parseBoolean(valor);
+			break;
+		case "historial-dias":
+			historialDias = Integer.parseInt(valor);
+			break;
+		case "historial-segmento-mb":
+			historialSegmentoMb = Math.max(1, Integer.parseInt(valor));
+			break;
+		case "historial-carpeta":
+			historialCarpeta = valor;
+			break;
+		case "busqueda":
+			busqueda = valor.isEmpty() || Boolean.parseBoolean(valor);
+			break;
+		case "buzon":
+			buzonMensajes = Math.max(0, Integer.parseInt(valor));
+			break;
+		case "buzon-remitente":
+			buzonRemitente = Math.max(1, Integer.parseInt(valor));
+			break;
+		case "buzon-mb":
+			buzonMb = Math.max(1, Integer.parseInt(valor));
+			break;
+		case "buzon-dias":
+			buzonDias = Integer.parseInt(valor);
+			break;
+		case "buzon-carpeta":
+			buzonCarpeta = valor;
+			break;
+		case "cluster":
+			nodosCluster = new ArrayList<>();
+			for (String nodo : valor.split(",")) {
+				if (!nodo.trim().isEmpty()) {
+					nodosCluster.add(nodo.trim());
+				}
+			}
+			break;
+		case "puerto-cluster":
+			puertoCluster = Integer.parseInt(valor);
+			break;
+		case "nodo":
+			nodo = valor;
+			break;
+		case "metricas":
+			puertoMetricas = Integer.parseInt(valor);
+			break;
+		case "log":
+			logArchivo = valor;
+			break;
+		case "compresion":
+			compresionMinimo = Integer.parseInt(valor);
+			break;
+		case "limite-publicos":
+			limitePublicos = tasa(valor);
+			rafagaPublicos = rafaga(valor);
+			break;
+		case "limite-privados":
+			limitePrivados = tasa(valor);
+			rafagaPrivados = rafaga(valor);
+			break;
+		case "max-mensaje":
+			maxContenido = Integer.parseInt(valor);
+			break;
+		case "politica-limite":
+			politicaLimite = LimiteMensajes.Politica.valueOf(constante(valor));
+			break;
+		case "saludos-pendientes":
+			saludosPendientes = Math.max(1, Integer.parseInt(valor));
+			break;
+		case "espera-saludo":
+			segundosSaludo = Math.max(0, Integer.parseInt(valor));
+			break;
+		case "latido":
+			segundosLatido = Math.max(0, Integer.parseInt(valor));
+			break;
+		case "espera-latido":
+			segundosEsperaLatido = Math.max(1, Integer.parseInt(valor));
+			break;
+		case "reanudar":
+			segundosReanudar = Math.max(0, Integer.parseInt(valor));
+			break;
+		case "hilos-reparto":
+			hilosReparto = Math.max(1, Integer.parseInt(valor));
+			break;
+		case "tuberia":
+			capacidadTuberia = Math.max(0, Integer.parseInt(valor));
+			break;
+		case "reanudar-tramas":
+			tramasReanudar = Math.max(1, Integer.parseInt(valor));
+			break;
+		case "informe":
+			segundosInforme = Integer.parseInt(valor);
+			break;
+		default:
+			throw new IllegalArgumentException("Opción desconocida: --" + clave);
+		}
+	}
+
+	// "descartar-antiguo" -> DESCARTAR_ANTIGUO
+	private static String constante(String valor) {
+		return valor.trim().toUpperCase().replace('-', '_');
+	}
+
+	// "10/30" -> 10 mensajes por segundo con ráfagas de 30; sin ráfaga, el doble de la tasa
+	private static int tasa(String valor) {
+		int barra = valor.indexOf('/');
+		return Math.max(0, Integer.parseInt(barra < 0 ? valor : valor.substring(0, barra)));
+	}
+
+	private static int rafaga(String valor) {
+		int barra = valor.indexOf('/');
+		return barra < 0 ? 2 * tasa(valor) : Math.max(1, Integer.parseInt(valor.substring(barra + 1)));
+	}
+
+	public int getPuerto() {
+		return puerto;
+	}
+
+	public void setPuerto(int puerto) {
+		this.puerto = puerto;
+	}
+
+	public int getMaxClientes() {
+		return maxClientes;
+	}
+
+	public void setMaxClientes(int maxClientes) {
+		this.maxClientes = maxClientes;
+	}
+
+	public Motor getMotor() {
+		return motor;
+	}
+
+	public void setMotor(Motor motor) {
+		this.motor = motor;
+	}
+
+	public int getBuclesEventos() {
+		return buclesEventos;
+	}
+
+	public void setBuclesEventos(int buclesEventos) {
+		this.buclesEventos = buclesEventos;
+	}
+
+	public int getCapacidadColaSalida() {
+		return capacidadColaSalida;
+	}
+
+	public void setCapacidadColaSalida(int capacidadColaSalida) {
+		this.capacidadColaSalida = capacidadColaSalida;
+	}
+
+	public ColaSalida.Politica getPoliticaColaSalida() {
+		return politicaColaSalida;
+	}
+
+	public void setPoliticaColaSalida(ColaSalida.Politica politicaColaSalida) {
+		this.politicaColaSalida = politicaColaSalida;
+	}
+
+	// Tamaño (MB) a partir del cual rota log.txt; 0 = sin límite
+	public int getLogMaxMb() {
+		return logMaxMb;
+	}
+
+	public void setLogMaxMb(int logMaxMb) {
+		this.logMaxMb = logMaxMb;
+	}
+
+	// Horas entre rotaciones de log.txt; 0 = sin rotación por tiempo
+	public int getLogHorasRotacion() {
+		return logHorasRotacion;
+	}
+
+	public void setLogHorasRotacion(int logHorasRotacion) {
+		this.logHorasRotacion = logHorasRotacion;
+	}
+
+	// Líneas de log pendientes de escribir antes de empezar a descartar
+	public int getLogCapacidad() {
+		return logCapacidad;
+	}
+
+	public void setLogCapacidad(int logCapacidad) {
+		this.logCapacidad = logCapacidad;
+	}
+
+	// Fichero del log de auditoría (las rotaciones se guardan en su misma carpeta)
+	public String getLogArchivo() {
+		return logArchivo;
+	}
+
+	public void setLogArchivo(String logArchivo) {
+		this.logArchivo = logArchivo;
+	}
+
+	// Segundos entre informes por consola; 0 = sin informe
+	public int getSegundosInforme() {
+		return segundosInforme;
+	}
+
+	public void setSegundosInforme(int segundosInforme) {
+		this.segundosInforme = segundosInforme;
+	}
+
+	// Mensajes del historial que recibe quien entra; 0 = sin historial
+	public int getHistorialMensajes() {
+		return historialMensajes;
+	}
+
+	public void setHistorialMensajes(int historialMensajes) {
+		this.historialMensajes = historialMensajes;
+	}
+
+	public boolean isHistorialPrivados() {
+		return historialPrivados;
+	}
+
+	public void setHistorialPrivados(boolean historialPrivados) {
+		this.historialPrivados = historialPrivados;
+	}
+
+	// Días que se conservan los segmentos del historial; 0 = siempre
+	public int getHistorialDias() {
+		return historialDias;
+	}
+
+	public void setHistorialDias(int historialDias) {
+		this.historialDias = historialDias;
+	}
+
+	public int getHistorialSegmentoMb() {
+		return historialSegmentoMb;
+	}
+
+	public void setHistorialSegmentoMb(int historialSegmentoMb) {
+		this.historialSegmentoMb = historialSegmentoMb;
+	}
+
+	public String getHistorialCarpeta() {
+		return historialCarpeta;
+	}
+
+	public void setHistorialCarpeta(String historialCarpeta) {
+		this.historialCarpeta = historialCarpeta;
+	}
+
+	// Búsqueda de texto en el historial (solo si el historial está activado)
+	public boolean isBusqueda() {
+		return busqueda;
+	}
+
+	public void setBusqueda(boolean busqueda) {
+		this.busqueda = busqueda;
+	}
+
+	// Privados que se guardan como mucho para cada usuario desconectado; 0 = sin buzones
+	public int getBuzonMensajes() {
+		return buzonMensajes;
+	}
+
+	public void setBuzonMensajes(int buzonMensajes) {
+		this.buzonMensajes = buzonMensajes;
+	}
+
+	// Privados de un mismo remitente que pueden esperar a la vez en los buzones
+	public int getBuzonRemitente() {
+		return buzonRemitente;
+	}
+
+	public void setBuzonRemitente(int buzonRemitente) {
+		this.buzonRemitente = buzonRemitente;
+	}
+
+	// Tamaño máximo en disco de todos los buzones juntos
+	public int getBuzonMb() {
+		return buzonMb;
+	}
+
+	public void setBuzonMb(int buzonMb) {
+		this.buzonMb = buzonMb;
+	}
+
+	// Días que se guarda un privado sin entregar; 0 = siempre
+	public int getBuzonDias() {
+		return buzonDias;
+	}
+
+	public void setBuzonDias(int buzonDias) {
+		this.buzonDias = buzonDias;
+	}
+
+	public String getBuzonCarpeta() {
+		return buzonCarpeta;
+	}
+
+	public void setBuzonCarpeta(String buzonCarpeta) {
+		this.buzonCarpeta = buzonCarpeta;
+	}
+
+	// Todos los nodos del cluster ("host:puertoCluster"), este incluido; vacía = sin cluster
+	public List<String> getNodosCluster() {
+		return nodosCluster;
+	}
+
+	public void setNodosCluster(List<String> nodosCluster) {
+		this.nodosCluster = nodosCluster;
+	}
+
+	public boolean isCluster() {
+		return !nodosCluster.isEmpty();
+	}
+
+	// Por defecto, el puerto de clientes + 1000
+	public int getPuertoCluster() {
+		return puertoCluster > 0 ? puertoCluster : puerto + 1000;
+	}
+
+	public void setPuertoCluster(int puertoCluster) {
+		this.puertoCluster = puertoCluster;
+	}
+
+	// Identificador de este nodo tal y como aparece en la lista del cluster
+	public String getNodo() {
+		return nodo != null ? nodo : "localhost:" + getPuertoCluster();
+	}
+
+	public void setNodo(String nodo) {
+		this.nodo = nodo;
+	}
+
+	// Bytes a partir de los cuales se comprime una trama para clientes v3; 0 = sin compresión
+	public int getCompresionMinimo() {
+		return compresionMinimo;
+	}
+
+	public void setCompresionMinimo(int compresionMinimo) {
+		this.compresionMinimo = compresionMinimo;
+	}
+
+	// Mensajes públicos (y comandos) por segundo y conexión; 0 = sin límite
+	public int getLimitePublicos() {
+		return limitePublicos;
+	}
+
+	public void setLimitePublicos(int limitePublicos) {
+		this.limitePublicos = limitePublicos;
+	}
+
+	public int getRafagaPublicos() {
+		return rafagaPublicos;
+	}
+
+	public void setRafagaPublicos(int rafagaPublicos) {
+		this.rafagaPublicos = rafagaPublicos;
+	}
+
+	// Mensajes privados por segundo y conexión; 0 = sin límite
+	public int getLimitePrivados() {
+		return limitePrivados;
+	}
+
+	public void setLimitePrivados(int limitePrivados) {
+		this.limitePrivados = limitePrivados;
+	}
+
+	public int getRafagaPrivados() {
+		return rafagaPrivados;
+	}
+
+	public void setRafagaPrivados(int rafagaPrivados) {
+		this.rafagaPrivados = rafagaPrivados;
+	}
+
+	// Caracteres como máximo en el contenido de un mensaje; 0 = sin límite
+	public int getMaxContenido() {
+		return maxContenido;
+	}
+
+	public void setMaxContenido(int maxContenido) {
+		this.maxContenido = maxContenido;
+	}
+
+	public LimiteMensajes.Politica getPoliticaLimite() {
+		return politicaLimite;
+	}
+
+	public void setPoliticaLimite(LimiteMensajes.Politica politicaLimite) {
+		this.politicaLimite = politicaLimite;
+	}
+
+	// Conexiones que pueden estar a la vez sin haber terminado el saludo
+	public int getSaludosPendientes() {
+		return saludosPendientes;
+	}
+
+	public void setSaludosPendientes(int saludosPendientes) {
+		this.saludosPendientes = saludosPendientes;
+	}
+
+	// Segundos para enviar el saludo y el nombre antes de cerrar la conexión; 0 = sin límite
+	public int getSegundosSaludo() {
+		return segundosSaludo;
+	}
+
+	public void setSegundosSaludo(int segundosSaludo) {
+		this.segundosSaludo = segundosSaludo;
+	}
+
+	// Segundos de silencio antes de enviar un PING a un cliente v4; 0 = sin latidos
+	public int getSegundosLatido() {
+		return segundosLatido;
+	}
+
+	public void setSegundosLatido(int segundosLatido) {
+		this.segundosLatido = segundosLatido;
+	}
+
+	// Segundos para responder al PING antes de que se cierre la conexión
+	public int getSegundosEsperaLatido() {
+		return segundosEsperaLatido;
+	}
+
+	public void setSegundosEsperaLatido(int segundosEsperaLatido) {
+		this.segundosEsperaLatido = segundosEsperaLatido;
+	}
+
+	// Huecos del anillo de TuberiaDifusion; 0 = cada hilo lector reparte lo que recibe
+	public int getCapacidadTuberia() {
+		return capacidadTuberia;
+	}
+
+	public void setCapacidadTuberia(int capacidadTuberia) {
+		this.capacidadTuberia = capacidadTuberia;
+	}
+
+	// Hilos que reparten en paralelo las difusiones con muchos destinatarios; 1 = en el hilo que llama
+	public int getHilosReparto() {
+		return hilosReparto;
+	}
+
+	public void setHilosReparto(int hilosReparto) {
+		this.hilosReparto = hilosReparto;
+	}
+
+	// Segundos que se guarda una sesión v6 cortada por si el cliente vuelve; 0 = sin reanudación
+	public int getSegundosReanudar() {
+		return segundosReanudar;
+	}
+
+	public void setSegundosReanudar(int segundosReanudar) {
+		this.segundosReanudar = segundosReanudar;
+	}
+
+	// Últimas tramas escritas que se recuerdan por sesión para reenviar el hueco (ver AnilloSalida)
+	public int getTramasReanudar() {
+		return tramasReanudar;
+	}
+
+	public void setTramasReanudar(int tramasReanudar) {
+		this.tramasReanudar = tramasReanudar;
+	}
+
+	// Puerto local del punto /metrics; 0 = desactivado
+	public int getPuertoMetricas() {
+		return puertoMetricas;
+	}
+
+	public void setPuertoMetricas(int puertoMetricas) {
+		this.puertoMetricas = puertoMetricas;
+	}
+}
@@ -0,0 +1,47 @@
+package servidor;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fábricas de hilos para los ClienteHandler.
+ *
+ * Los hilos virtuales se obtienen por reflexión (Thread.ofVirtual()) para que
+ * el proyecto siga compilando con JDK 17; en tiempo de ejecución hace falta
+ * Java 21 o superior para usar "--motor=virtuales".
+ */
+public final class FabricaHilos {
+
+	private FabricaHilos() {
+	}
+
+	public static ThreadFactory plataforma(String prefijo) {
+		AtomicInteger contador = new AtomicInteger();
+		return tarea -> new Thread(tarea, prefijo + contador.getAndIncrement());
+	}
+
+	public static ThreadFactory virtuales(String prefijo) {
+		try {
+			Class<?> constructor = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = constructor.getMethod("name", String.class, long.class).invoke(builder, prefijo, 0L);
+			return (ThreadFactory) constructor.getMethod("factory").invoke(builder);
+		} catch (InvocationTargetException e) {
+			// En Java 19/20 son una preview y lanzan UnsupportedOperationException
+			throw new IllegalStateException("Hilos virtuales no disponibles: " + e.getCause().getMessage(), e);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(
+					"Los hilos virtuales requieren Java 21 o superior (JVM actual: " + Runtime.version() + ")", e);
+		}
+	}
+
+	public static boolean virtualesDisponibles() {
+		try {
+			virtuales("prueba-");
+			return true;
+		} catch (IllegalStateException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,348 @@
+package servidor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import comun.CodecMensaje;
+import comun.Mensaje;
+
+/**
+ * Historial de mensajes en disco, solo de escritura al final.
+ *
+ * Los mensajes se guardan tal cual salen por el protocolo binario (la trama de
+ * CodecMensaje) en segmentos de tamaño fijo proyectados en memoria
+ * ("historial/00000000000000000000.seg", con el número del primer mensaje).
+ * Cada segmento guarda un índice disperso con la posición de uno de cada
+ * INTERVALO_INDICE mensajes, así que reproducir los últimos N no recorre el
+ * historial entero, y se lee mensaje a mensaje desde la proyección sin cargar
+ * ficheros completos en el heap.
+ *
+ * Los segmentos cerrados cuyo último mensaje supera la edad máxima se borran.
+ */
+public class HistorialMensajes {
+
+	private static final int INTERVALO_INDICE = 64;
+	// Al reproducir, cuántas veces "cuantos" mensajes se miran como mucho buscando los visibles
+	private static final int RECORRIDO_MAXIMO = 16;
+	private static final String EXTENSION = ".seg";
+
+	private final File carpeta;
+	private final int tamañoSegmento;
+	private final long edadMaxima;
+
+	// Segmentos por número de su primer mensaje; solo se añade al último (activo)
+	private final ConcurrentSkipListMap<Long, Segmento> segmentos = new ConcurrentSkipListMap<>();
+	private final ReentrantLock bloqueoEscritura = new ReentrantLock();
+	private volatile Segmento activo;
+	private volatile long siguiente; // número que recibirá el próximo mensaje
+
+	// edadMaxima en milisegundos; 0 = sin caducidad
+	public HistorialMensajes(File carpeta, int tamañoSegmento, long edadMaxima) throws IOException {
+		this.carpeta = carpeta;
+		this.tamañoSegmento = tamañoSegmento;
+		this.edadMaxima = edadMaxima;
+		if (!carpeta.isDirectory() && !carpeta.mkdirs()) {
+			throw new IOException("No se pudo crear " + carpeta);
+		}
+		recuperar();
+	}
+
+	// ===========================
+	// ESCRITURA
+	// ===========================
+
+	public void guardar(Trama trama) {
+		byte[] datos = trama.binario();
+		long marcaTiempo = trama.getMensaje().getMarcaTiempo();
+		bloqueoEscritura.lock();
+		try {
+			if (activo == null || activo.libre() < datos.length) {
+				activo = crearSegmento(siguiente, datos.length);
+			}
+			activo.añadir(datos, marcaTiempo);
+			siguiente++;
+		} catch (IOException e) {
+			System.err.println("No se pudo guardar en el historial: " + e.getMessage());
+		} finally {
+			bloqueoEscritura.unlock();
+		}
+	}
+
+	private Segmento crearSegmento(long primero, int minimo) throws IOException {
+		File fichero = new File(carpeta, String.format("%020d", primero) + EXTENSION);
+		Segmento segmento = new Segmento(fichero, primero, proyectar(fichero, Math.max(tamañoSegmento, minimo)));
+		segmentos.put(primero, segmento);
+		return segmento;
+	}
+
+	static MappedByteBuffer proyectar(File fichero, long tamaño) throws IOException {
+		// La proyección sigue siendo válida después de cerrar el canal
+		try (FileChannel canal = FileChannel.open(fichero.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			return canal.map(FileChannel.MapMode.READ_WRITE, 0, tamaño);
+		}
+	}
+
+	// ===========================
+	// REPRODUCCIÓN
+	// ===========================
+
+	/**
+	 * Envía a la sesión los últimos mensajes que puede ver (como mucho
+	 * "cuantos"), en orden. Los privados solo se reenvían a su remitente o
+	 * destinatario, así que se retrocede por tramos hasta reunir "cuantos"
+	 * visibles, sin pasar de RECORRIDO_MAXIMO tramos.
+	 */
+	public void reproducir(Sesion sesion, int cuantos) {
+		if (cuantos <= 0) {
+			return;
+		}
+		String nombre = sesion.getNombreUsuario();
+		long fin = siguiente;
+		long limite = Math.max(getPrimero(), fin - (long) cuantos * RECORRIDO_MAXIMO);
+		ArrayDeque<Trama> visibles = new ArrayDeque<>(cuantos);
+		List<Trama> tramo = new ArrayList<>();
+		for (long hasta = fin; hasta > limite && visibles.size() < cuantos;) {
+			long desde = Math.max(limite, hasta - cuantos);
+			tramo.clear();
+			recorrer(desde, hasta, (numero, trama) -> {
+				if (visiblePara(trama.getMensaje(), nombre)) {
+					tramo.add(trama);
+				}
+			});
+			for (int i = tramo.size() - 1; i >= 0 && visibles.size() < cuantos; i--) {
+				visibles.addFirst(tramo.get(i));
+			}
+			hasta = desde;
+		}
+		for (Trama trama : visibles) {
+			sesion.enviarTrama(trama);
+		}
+	}
+
+	public interface Visitante {
+		void visitar(long numero, Trama trama);
+	}
+
+	// Visita en orden los mensajes guardados con número en [desde, hasta)
+	public void recorrer(long desde, long hasta, Visitante visitante) {
+		long numero = desde;
+		for (Segmento segmento : segmentos.values()) {
+			int registros = segmento.registros;
+			if (segmento.primero + registros <= numero) {
+				continue;
+			}
+			numero = Math.max(numero, segmento.primero);
+			MappedByteBuffer lectura = segmento.mapa;
+			try {
+				int posicion = segmento.posicionDe((int) (numero - segmento.primero));
+				for (int i = (int) (numero - segmento.primero); i < registros && numero < hasta; i++, numero++) {
+					int total = longitudRegistro(lectura, posicion);
+					byte[] datos = new byte[total];
+					lectura.get(posicion, datos);
+					posicion += total;
+
+					visitante.visitar(numero, new Trama(CodecMensaje.decodificarTrama(datos, 0, total), datos));
+				}
+			} catch (StreamCorruptedException e) {
+				System.err.println("Historial dañado en " + segmento.fichero.getName() + ": " + e.getMessage());
+			}
+			if (numero >= hasta) {
+				break;
+			}
+		}
+	}
+
+	// Un mensaje suelto por su número; null si ya ha caducado (o aún no existe)
+	public Trama leer(long numero) {
+		Map.Entry<Long, Segmento> entrada = segmentos.floorEntry(numero);
+		if (entrada == null || numero >= siguiente) {
+			return null;
+		}
+		Segmento segmento = entrada.getValue();
+		int i = (int) (numero - segmento.primero);
+		if (i >= segmento.registros) {
+			return null;
+		}
+		try {
+			int posicion = segmento.posicionDe(i);
+			int total = longitudRegistro(segmento.mapa, posicion);
+			byte[] datos = new byte[total];
+			segmento.mapa.get(posicion, datos);
+			return new Trama(CodecMensaje.decodificarTrama(datos, 0, total), datos);
+		} catch (StreamCorruptedException e) {
+			return null;
+		}
+	}
+
+	// Número del mensaje más antiguo que se conserva
+	public long getPrimero() {
+		Map.Entry<Long, Segmento> primero = segmentos.firstEntry();
+		return primero != null ? primero.getKey() : siguiente;
+	}
+
+	// Número que recibirá el próximo mensaje (todos los anteriores ya se pueden leer)
+	public long getSiguiente() {
+		return siguiente;
+	}
+
+	public static boolean visiblePara(Mensaje mensaje, String nombre) {
+		return mensaje.getTipo() != Mensaje.Tipo.PRIVADO || nombre.equalsIgnoreCase(mensaje.getRemitente())
+				|| nombre.equalsIgnoreCase(mensaje.getDestinatario());
+	}
+
+	// ===========================
+	// CADUCIDAD Y RECUPERACIÓN
+	// ===========================
+
+	// Borra los segmentos cerrados más antiguos que la edad máxima
+	public void caducar() {
+		if (edadMaxima <= 0) {
+			return;
+		}
+		long limite = System.currentTimeMillis() - edadMaxima;
+		for (Segmento segmento : segmentos.values()) {
+			if (segmento == activo || segmento.ultimaMarca >= limite) {
+				break;
+			}
+			segmentos.remove(segmento.primero);
+			if (!segmento.fichero.delete()) {
+				System.err.println("No se pudo borrar " + segmento.fichero.getName());
+			}
+		}
+	}
+
+	// Vuelve a abrir los segmentos existentes y reconstruye sus índices
+	private void recuperar() throws IOException {
+		File[] ficheros = carpeta.listFiles((dir, nombre) -> nombre.endsWith(EXTENSION));
+		if (ficheros == null) {
+			return;
+		}
+		Arrays.sort(ficheros);
+		for (File fichero : ficheros) {
+			long primero;
+			try {
+				primero = Long.parseLong(fichero.getName().substring(0, fichero.getName().length() - EXTENSION.length()));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			Segmento segmento = new Segmento(fichero, primero, proyectar(fichero, fichero.length()));
+			segmento.recorrer();
+			segmentos.put(primero, segmento);
+			activo = segmento;
+			siguiente = primero + segmento.registros;
+		}
+	}
+
+	// Tamaño total (varint incluido) del registro en esa posición, o 0 si no hay ninguno
+	static int longitudRegistro(MappedByteBuffer mapa, int posicion) throws StreamCorruptedException {
+		int largo = 0;
+		int p = posicion;
+		for (int desplazamiento = 0;; desplazamiento += 7) {
+			if (p >= mapa.capacity() || desplazamiento > 28) {
+				throw new StreamCorruptedException("Longitud de registro inválida");
+			}
+			int b = mapa.get(p++);
+			largo |= (b & 0x7F) << desplazamiento;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+		}
+		if (largo == 0) {
+			return 0; // zona sin escribir: la proyección se rellena con ceros
+		}
+		if (largo > CodecMensaje.MAX_TRAMA || p + largo > mapa.capacity()) {
+			throw new StreamCorruptedException("Registro truncado");
+		}
+		return p - posicion + largo;
+	}
+
+	private static final class Segmento {
+		final File fichero;
+		final long primero;
+		final MappedByteBuffer mapa; // solo se usan accesos absolutos: se comparte entre hilos
+
+		// Los lectores leen "registros" antes que el resto: se publica en último lugar
+		volatile int registros;
+		volatile int[] indice = new int[16];
+		volatile long ultimaMarca;
+		int fin;
+
+		Segmento(File fichero, long primero, MappedByteBuffer mapa) {
+			this.fichero = fichero;
+			this.primero = primero;
+			this.mapa = mapa;
+		}
+
+		int libre() {
+			return mapa.capacity() - fin;
+		}
+
+		void añadir(byte[] datos, long marcaTiempo) {
+			mapa.put(fin, datos);
+			contar(datos.length, marcaTiempo);
+		}
+
+		private void contar(int largo, long marcaTiempo) {
+			anotar(fin);
+			fin += largo;
+			ultimaMarca = marcaTiempo;
+			registros++;
+		}
+
+		// Guarda en el índice disperso la posición de uno de cada INTERVALO_INDICE registros
+		private void anotar(int posicion) {
+			if (registros % INTERVALO_INDICE != 0) {
+				return;
+			}
+			int entrada = registros / INTERVALO_INDICE;
+			int[] actual = indice;
+			if (entrada == actual.length) {
+				actual = Arrays.copyOf(actual, actual.length * 2);
+			}
+			actual[entrada] = posicion;
+			indice = actual;
+		}
+
+		// Posición del registro i: salto por el índice y recorrido del resto
+		int posicionDe(int i) throws StreamCorruptedException {
+			int posicion = indice[i / INTERVALO_INDICE];
+			for (int resto = i % INTERVALO_INDICE; resto > 0; resto--) {
+				posicion += longitudRegistro(mapa, posicion);
+			}
+			return posicion;
+		}
+
+		// Recupera un segmento existente: avanza hasta la primera zona sin escribir o dañada
+		void recorrer() {
+			try {
+				while (fin < mapa.capacity()) {
+					int total = longitudRegistro(mapa, fin);
+					if (total == 0) {
+						break;
+					}
+					byte[] datos = new byte[total];
+					mapa.get(fin, datos);
+					contar(total, CodecMensaje.decodificarTrama(datos, 0, total).getMarcaTiempo());
+				}
+			} catch (StreamCorruptedException e) {
+				// Se descarta lo dañado para que los mensajes nuevos no queden detrás de basura
+				System.err.println("Historial dañado en " + fichero.getName() + " a partir del byte " + fin);
+				for (int p = fin; p < mapa.capacity(); p++) {
+					mapa.put(p, (byte) 0);
+				}
+			}
+		}
+	}
+}
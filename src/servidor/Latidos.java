@@ -0,0 +1,95 @@
+package servidor;
+
+import comun.CodecMensaje;
+import comun.Mensaje;
+
+/**
+ * Detección de conexiones muertas (un cliente que desaparece sin cerrar el
+ * socket no da ningún error al leer).
+ *
+ * Cada sesión tiene una Vigilancia con la hora de lo último que llegó por su
+ * conexión. Una sola entrada por sesión en la RuedaTemporizadores comprueba
+ * de vez en cuando si lleva un intervalo entero en silencio; si es así se le
+ * envía un PING (clientes binarios v4) y, si tampoco llega nada en la espera,
+ * se la desconecta. Registrar actividad es una escritura volátil: el camino
+ * de los mensajes no toca la rueda.
+ *
+ * A los clientes anteriores a la v4 no se les puede preguntar; para ellos
+ * queda el keepalive de TCP.
+ */
+public class Latidos {
+
+	private static final Trama PING = new Trama(new Mensaje("SERVER", null, "", Mensaje.Tipo.PING));
+
+	private final RuedaTemporizadores rueda;
+	private final ServidorMain servidor;
+	private final long milisIntervalo;
+	private final long milisEspera;
+
+	public Latidos(RuedaTemporizadores rueda, ServidorMain servidor, ConfiguracionServidor config) {
+		this.rueda = rueda;
+		this.servidor = servidor;
+		this.milisIntervalo = config.getSegundosLatido() * 1000L;
+		this.milisEspera = config.getSegundosEsperaLatido() * 1000L;
+	}
+
+	// Empieza a vigilar una conexión recién admitida
+	public Vigilancia vigilar(Sesion sesion) {
+		Vigilancia vigilancia = new Vigilancia(sesion);
+		rueda.programar(milisIntervalo, vigilancia);
+		return vigilancia;
+	}
+
+	public final class Vigilancia implements Runnable {
+		private final Sesion sesion;
+		private volatile long ultimaActividad = rueda.ahora();
+		private volatile boolean terminada;
+		private boolean pingEnviado; // solo desde la rueda
+		private long momentoPing;
+
+		private Vigilancia(Sesion sesion) {
+			this.sesion = sesion;
+		}
+
+		// Ha llegado algo por la conexión
+		public void actividad() {
+			ultimaActividad = rueda.ahora();
+		}
+
+		// La conexión se ha cerrado: la próxima comprobación no se vuelve a programar
+		public void terminar() {
+			terminada = true;
+		}
+
+		@Override
+		public void run() {
+			if (terminada) {
+				return;
+			}
+			long ultima = ultimaActividad;
+			if (pingEnviado) {
+				// El reloj va por ticks: lo que llegó en el mismo tick que el PING cuenta como respuesta
+				if (ultima < momentoPing) {
+					terminada = true;
+					servidor.getMetricas().conexionInactiva();
+					servidor.escribirLog("Cliente sin respuesta desconectado: " + sesion.getNombreUsuario());
+					sesion.desconectar();
+					return;
+				}
+				pingEnviado = false;
+			}
+			long ahora = rueda.ahora();
+			long silencio = ahora - ultima;
+			if (silencio < milisIntervalo) {
+				rueda.programar(milisIntervalo - silencio, this);
+			} else if (sesion.getVersion() < CodecMensaje.VERSION_LATIDO) {
+				rueda.programar(milisIntervalo, this);
+			} else {
+				pingEnviado = true;
+				momentoPing = ahora;
+				sesion.enviarTrama(PING);
+				rueda.programar(milisEspera, this);
+			}
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package servidor;
+
+import comun.Mensaje;
+
+/**
+ * Límite de mensajes de una conexión: un cubo de fichas para los mensajes
+ * públicos (y comandos), otro para los privados y un tamaño máximo de
+ * contenido.
+ *
+ * Cada cubo es un único long con el instante teórico de la siguiente llegada
+ * (GCRA, equivalente a un cubo de fichas con ráfaga): comprobarlo es una resta
+ * y una comparación. Solo lo usa el hilo que lee de la conexión, así que no
+ * hacen falta atómicos ni cerrojos.
+ */
+public class LimiteMensajes {
+
+	// Qué hacer con un mensaje que supera el límite
+	public enum Politica {
+		RETRASAR, // dejar de leer de la conexión hasta que haya ficha
+		DESCARTAR, // descartarlo y avisar al cliente con un mensaje SISTEMA
+		DESCONECTAR
+	}
+
+	public enum Resultado {
+		ACEPTADO, RETRASADO, DESCARTADO, DEMASIADO_GRANDE, DESCONECTAR
+	}
+
+	private final Cubo publicos;
+	private final Cubo privados;
+	private final int maxContenido;
+	private final Politica politica;
+	private long espera;
+	private boolean descartando; // ya se avisó del descarte en curso
+
+	public LimiteMensajes(ConfiguracionServidor config) {
+		this.publicos = new Cubo(config.getLimitePublicos(), config.getRafagaPublicos());
+		this.privados = new Cubo(config.getLimitePrivados(), config.getRafagaPrivados());
+		this.maxContenido = config.getMaxContenido();
+		this.politica = config.getPoliticaLimite();
+	}
+
+	// Decide qué hacer con un mensaje recién leído; RETRASADO ya cuenta con su ficha
+	public Resultado comprobar(Mensaje mensaje) {
+		if (maxContenido > 0 && mensaje.getContenido() != null && mensaje.getContenido().length() > maxContenido) {
+			return politica == Politica.DESCONECTAR ? Resultado.DESCONECTAR : Resultado.DEMASIADO_GRANDE;
+		}
+		boolean privado = mensaje.getDestinatario() != null && !mensaje.getDestinatario().isEmpty();
+		Cubo cubo = privado ? privados : publicos;
+		if (cubo.intervalo == 0) {
+			return Resultado.ACEPTADO;
+		}
+		long ahora = System.nanoTime();
+		long exceso = cubo.exceso(ahora);
+		if (exceso <= 0) {
+			cubo.consumir(ahora);
+			descartando = false;
+			return Resultado.ACEPTADO;
+		}
+		switch (politica) {
+		case RETRASAR:
+			cubo.consumir(ahora);
+			espera = exceso;
+			return Resultado.RETRASADO;
+		case DESCARTAR:
+			return Resultado.DESCARTADO;
+		default:
+			return Resultado.DESCONECTAR;
+		}
+	}
+
+	// Solo se avisa del primer descarte de cada racha: avisar de todos también sería una inundación
+	public boolean avisarDescarte() {
+		boolean avisar = !descartando;
+		descartando = true;
+		return avisar;
+	}
+
+	// Nanosegundos que hay que esperar antes de procesar el último mensaje RETRASADO
+	public long getEspera() {
+		return espera;
+	}
+
+	private static final class Cubo {
+		private final long intervalo; // nanos por ficha; 0 = sin límite
+		private final long tolerancia; // adelanto permitido: (ráfaga - 1) fichas
+		private long siguiente = Long.MIN_VALUE;
+
+		Cubo(int porSegundo, int rafaga) {
+			this.intervalo = porSegundo > 0 ? 1_000_000_000L / porSegundo : 0;
+			this.tolerancia = intervalo * Math.max(0, rafaga - 1);
+		}
+
+		// Cuánto se adelanta este mensaje a lo permitido (<= 0 si queda ficha)
+		long exceso(long ahora) {
+			return Math.max(siguiente, ahora) - ahora - tolerancia;
+		}
+
+		void consumir(long ahora) {
+			siguiente = Math.max(siguiente, ahora) + intervalo;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package servidor;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import comun.CodecMensaje;
+import comun.Mensaje;
+import servidor.metricas.Metricas;
+
+/**
+ * Reanudación de sesiones v6 tras un corte de red.
+ *
+ * Al entrar, cada cliente v6 recibe un SESION con un token aleatorio, y desde
+ * esa trama su escritor numera en un AnilloSalida todo lo que le escribe. Si
+ * la conexión se corta sin un /quit, la sesión no se da por terminada: se
+ * aparca con su token durante unos segundos, sigue registrada y en sus salas
+ * (nadie recibe SALE) y lo que le llegue se queda en su ColaSalida. Si el
+ * cliente vuelve con el token y el número de tramas recibidas, la conexión
+ * nueva ocupa su sitio y recibe solo el hueco: lo que estaba en el anillo
+ * después de lo recibido y lo que se quedó en la cola. Sin ENTRA, sin lista
+ * de usuarios y sin historial, una avalancha de reconexiones cuesta poco más
+ * que reenviar esos huecos.
+ *
+ * Si el hueco ya no está entero (anillo pequeño, cola que descartó tramas) o
+ * el token no vale, el cliente entra como una sesión nueva. Pasado el plazo
+ * sin volver, la sesión aparcada termina como cualquier otra.
+ */
+public class Reanudaciones {
+
+	private static final SecureRandom ALEATORIO = new SecureRandom();
+	private static final String REANUDADA = "REANUDADA";
+
+	private final ServidorMain servidor;
+	private final Metricas metricas;
+	private final long milisEspera;
+	private final int tramas;
+	private final int capacidadCola;
+	private final ConcurrentHashMap<String, Aparcada> aparcadas = new ConcurrentHashMap<>(); // por token
+
+	private static final class Aparcada {
+		final Sesion sesion;
+		final long descartados; // de su cola al aparcarla: si cambia, se ha perdido algo
+
+		Aparcada(Sesion sesion) {
+			this.sesion = sesion;
+			this.descartados = sesion.getDescartados();
+		}
+	}
+
+	public Reanudaciones(ServidorMain servidor, ConfiguracionServidor config) {
+		this.servidor = servidor;
+		this.metricas = servidor.getMetricas();
+		this.milisEspera = TimeUnit.SECONDS.toMillis(config.getSegundosReanudar());
+		this.tramas = config.getTramasReanudar();
+		this.capacidadCola = config.getCapacidadColaSalida();
+	}
+
+	// Al registrarse: token y primera trama numerada (solo clientes v6)
+	public void emitir(Sesion sesion) {
+		emitir(sesion, false);
+	}
+
+	private void emitir(Sesion sesion, boolean reanudada) {
+		if (sesion.getVersion() < CodecMensaje.VERSION_REANUDACION) {
+			return;
+		}
+		byte[] token = new byte[16];
+		ALEATORIO.nextBytes(token);
+		String texto = Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+		byte[] primera = CodecMensaje.codificar(new Mensaje("SERVER", sesion.getNombreUsuario(),
+				reanudada ? texto + "\n" + REANUDADA : texto, Mensaje.Tipo.SESION));
+		sesion.setAnillo(new AnilloSalida(texto, primera, tramas));
+		sesion.enviarBytes(primera);
+	}
+
+	// Fin de una conexión: true si la sesión queda aparcada en vez de terminar
+	public boolean aparcar(Sesion sesion) {
+		AnilloSalida anillo = sesion.getAnillo();
+		if (anillo == null || milisEspera <= 0 || servidor.buscarLocal(sesion.getNombreUsuario()) != sesion) {
+			return false;
+		}
+		String token = anillo.getToken();
+		Aparcada aparcada = new Aparcada(sesion);
+		aparcadas.put(token, aparcada);
+		metricas.reanudacion(Metricas.Reanudacion.APARCADA, 0);
+		servidor.escribirLog("Conexión cortada, se espera la vuelta de: " + sesion.getNombreUsuario());
+		servidor.getRueda().programar(milisEspera, () -> {
+			if (aparcadas.remove(token, aparcada)) {
+				metricas.reanudacion(Metricas.Reanudacion.CADUCADA, 0);
+				terminar(sesion);
+			}
+		});
+		return true;
+	}
+
+	// Primer mensaje SESION ("token\nrecibidas"): true si la sesión nueva continúa la aparcada.
+	// Con false se sigue como un inicio normal (la aparcada, si la había, ya ha terminado).
+	public boolean reanudar(Sesion nueva, String contenido) {
+		int salto = contenido != null ? contenido.indexOf('\n') : -1;
+		if (nueva.getVersion() < CodecMensaje.VERSION_REANUDACION || salto < 0) {
+			return false;
+		}
+		long recibidas;
+		try {
+			recibidas = Long.parseLong(contenido.substring(salto + 1).trim());
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		Aparcada aparcada = aparcadas.remove(contenido.substring(0, salto));
+		if (aparcada == null) {
+			metricas.reanudacion(Metricas.Reanudacion.FALLIDA, 0);
+			return false;
+		}
+		Sesion antigua = aparcada.sesion;
+		boolean mismoNombre = RegistroClientes.clave(antigua.getNombreUsuario())
+				.equals(RegistroClientes.clave(nueva.getNombreUsuario()));
+		List<byte[]> hueco = mismoNombre ? antigua.getAnillo().desde(recibidas) : null;
+		if (hueco == null || antigua.getDescartados() != aparcada.descartados
+				|| hueco.size() + antigua.getProfundidadCola() >= capacidadCola) {
+			metricas.reanudacion(Metricas.Reanudacion.FALLIDA, 0);
+			terminar(antigua);
+			return false;
+		}
+
+		// Primero el SESION y el hueco, y solo después la sesión nueva se hace visible
+		nueva.setNombreUsuario(antigua.getNombreUsuario());
+		emitir(nueva, true);
+		hueco.addAll(antigua.sacarPendientes());
+		for (byte[] datos : hueco) {
+			nueva.enviarBytes(datos);
+		}
+		servidor.sustituirSesion(antigua, nueva);
+		// Lo que aún llegó a la aparcada mientras se sustituía
+		List<byte[]> rezagadas = antigua.sacarPendientes();
+		for (byte[] datos : rezagadas) {
+			nueva.enviarBytes(datos);
+		}
+		metricas.reanudacion(Metricas.Reanudacion.REANUDADA, hueco.size() + rezagadas.size());
+		servidor.escribirLog("Sesión reanudada: " + nueva.getNombreUsuario() + " (" + (hueco.size() + rezagadas.size())
+				+ " tramas reenviadas)");
+		return true;
+	}
+
+	// Un inicio normal con el nombre de una sesión aparcada la da por terminada (el cliente perdió el token)
+	public void liberar(String nombre) {
+		Sesion sesion = servidor.buscarLocal(nombre);
+		AnilloSalida anillo = sesion != null ? sesion.getAnillo() : null;
+		if (anillo == null) {
+			return;
+		}
+		Aparcada aparcada = aparcadas.get(anillo.getToken());
+		if (aparcada != null && aparcada.sesion == sesion && aparcadas.remove(anillo.getToken(), aparcada)) {
+			terminar(sesion);
+		}
+	}
+
+	private void terminar(Sesion sesion) {
+		sesion.setAnillo(null);
+		sesion.sacarPendientes();
+		servidor.finalizarSesion(sesion);
+	}
+
+	public int getAparcadas() {
+		return aparcadas.size();
+	}
+}
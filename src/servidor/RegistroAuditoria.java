@@ -0,0 +1,229 @@
+package servidor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log de auditoría (log.txt) escrito en segundo plano.
+ *
+ * Quien registra solo encola la línea (sin cerrojos ni E/S); un único hilo la
+ * saca por lotes y escribe cada lote con una sola escritura sobre un canal
+ * abierto una vez. Si la cola se llena las líneas se descartan y se cuentan.
+ *
+ * El fichero rota al superar el tamaño máximo o cuando pasa el intervalo
+ * configurado: el actual se renombra a log-AAAAMMDD-HHMMSS.txt y se abre otro.
+ */
+public class RegistroAuditoria {
+
+	private static final DateTimeFormatter FORMATO = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+	private static final DateTimeFormatter FORMATO_ROTADO = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+	private static final int TAMAÑO_LOTE = 64 * 1024;
+
+	// Una línea pendiente: la hora se toma al registrar, no al escribir
+	private static final class Registro {
+		final long marcaTiempo;
+		final String texto;
+
+		Registro(long marcaTiempo, String texto) {
+			this.marcaTiempo = marcaTiempo;
+			this.texto = texto;
+		}
+	}
+
+	private final File fichero;
+	private final long maxBytes;
+	private final long intervaloRotacion;
+	private final int capacidad;
+
+	private final Queue<Registro> cola = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pendientes = new AtomicInteger();
+	private final AtomicLong descartados = new AtomicLong();
+	private long descartadosAnotados;
+	private final Thread escritor;
+	private volatile boolean dormido;
+	private volatile boolean cerrado;
+
+	// Estado del hilo escritor
+	private FileChannel canal;
+	private long bytesEscritos;
+	private long proximaRotacion;
+	private final ByteBuffer lote = ByteBuffer.allocate(TAMAÑO_LOTE);
+	private long segundoFormateado = -1;
+	private String horaFormateada;
+
+	// maxBytes o intervalo <= 0 desactivan ese tipo de rotación
+	public RegistroAuditoria(File fichero, long maxBytes, long intervaloRotacion, TimeUnit unidad, int capacidad) {
+		this.fichero = fichero;
+		this.maxBytes = maxBytes;
+		this.intervaloRotacion = intervaloRotacion > 0 ? unidad.toMillis(intervaloRotacion) : 0;
+		this.capacidad = capacidad;
+		this.escritor = new Thread(this::bucleEscritura, "log-auditoria");
+		this.escritor.setDaemon(true);
+		this.escritor.start();
+	}
+
+	// Puede llamarse desde cualquier hilo; nunca bloquea
+	public void registrar(String texto) {
+		if (cerrado) {
+			descartados.incrementAndGet();
+			return;
+		}
+		if (pendientes.incrementAndGet() > capacidad) {
+			pendientes.decrementAndGet();
+			descartados.incrementAndGet();
+			return;
+		}
+		cola.add(new Registro(System.currentTimeMillis(), texto));
+		if (dormido) {
+			LockSupport.unpark(escritor);
+		}
+	}
+
+	public long getDescartados() {
+		return descartados.get();
+	}
+
+	public int getPendientes() {
+		return pendientes.get();
+	}
+
+	// Escribe lo pendiente y cierra el fichero (espera como mucho un segundo)
+	public void cerrar() {
+		cerrado = true;
+		LockSupport.unpark(escritor);
+		try {
+			escritor.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// ===========================
+	// HILO ESCRITOR
+	// ===========================
+
+	private void bucleEscritura() {
+		while (true) {
+			Registro registro = cola.poll();
+			if (registro == null) {
+				escribirLote();
+				if (cerrado && cola.isEmpty()) {
+					break;
+				}
+				// Se comprueba de nuevo tras anunciar que se duerme para no perder un aviso
+				dormido = true;
+				if (cola.isEmpty() && !cerrado) {
+					LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1));
+				}
+				dormido = false;
+				continue;
+			}
+			pendientes.decrementAndGet();
+			añadir(registro.marcaTiempo, registro.texto);
+		}
+		cerrarCanal();
+	}
+
+	private void añadir(long marcaTiempo, String texto) {
+		byte[] linea = ("[" + hora(marcaTiempo) + "] " + texto + System.lineSeparator())
+				.getBytes(StandardCharsets.UTF_8);
+		if (linea.length > lote.remaining()) {
+			escribirLote();
+		}
+		if (linea.length > lote.capacity()) {
+			escribir(ByteBuffer.wrap(linea));
+		} else {
+			lote.put(linea);
+		}
+	}
+
+	// La hora solo se formatea una vez por segundo
+	private String hora(long marcaTiempo) {
+		long segundo = marcaTiempo / 1000;
+		if (segundo != segundoFormateado) {
+			segundoFormateado = segundo;
+			horaFormateada = FORMATO.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(marcaTiempo),
+					ZoneId.systemDefault()));
+		}
+		return horaFormateada;
+	}
+
+	// Una escritura por lote; si hubo descartes desde el último lote se deja constancia
+	private void escribirLote() {
+		long total = descartados.get();
+		if (total != descartadosAnotados && lote.remaining() > 200) {
+			String aviso = "[" + hora(System.currentTimeMillis()) + "] ⚠️ " + (total - descartadosAnotados)
+					+ " registros descartados (log saturado)" + System.lineSeparator();
+			lote.put(aviso.getBytes(StandardCharsets.UTF_8));
+			descartadosAnotados = total;
+		}
+		if (lote.position() == 0) {
+			return;
+		}
+		lote.flip();
+		escribir(lote);
+		lote.clear();
+	}
+
+	private void escribir(ByteBuffer datos) {
+		try {
+			if (canal == null || tocaRotar()) {
+				abrir();
+			}
+			while (datos.hasRemaining()) {
+				bytesEscritos += canal.write(datos);
+			}
+		} catch (IOException e) {
+			System.err.println("No se pudo escribir en log: " + e.getMessage());
+			cerrarCanal();
+		}
+	}
+
+	private boolean tocaRotar() {
+		return (maxBytes > 0 && bytesEscritos >= maxBytes)
+				|| (intervaloRotacion > 0 && System.currentTimeMillis() >= proximaRotacion);
+	}
+
+	private void abrir() throws IOException {
+		if (canal != null) {
+			cerrarCanal();
+			File carpeta = fichero.getAbsoluteFile().getParentFile();
+			String base = "log-" + FORMATO_ROTADO.format(LocalDateTime.now());
+			File rotado = new File(carpeta, base + ".txt");
+			for (int i = 1; rotado.exists(); i++) {
+				rotado = new File(carpeta, base + "-" + i + ".txt"); // varias rotaciones en el mismo segundo
+			}
+			if (!fichero.renameTo(rotado)) {
+				System.err.println("No se pudo rotar el log a " + rotado.getName());
+			}
+		}
+		canal = FileChannel.open(fichero.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		bytesEscritos = canal.size();
+		proximaRotacion = System.currentTimeMillis() + intervaloRotacion;
+	}
+
+	private void cerrarCanal() {
+		if (canal != null) {
+			try {
+				canal.close();
+			} catch (IOException ignored) {
+			}
+			canal = null;
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package servidor;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Usuarios conectados, indexados por nombre sin distinguir mayúsculas.
+ *
+ * Registrar, buscar y eliminar son O(1) y no bloquean: el registro es un
+ * putIfAbsent atómico, así que dos clientes con el mismo nombre no pueden
+ * entrar a la vez. Los recorridos (broadcast, listados) usan la vista de
+ * ConcurrentHashMap, que no toma cerrojos y tolera altas y bajas simultáneas.
+ *
+ * El registro va en dos pasos: reservar() aparta el nombre sin que la sesión
+ * sea visible (en un cluster, mientras el nodo propietario decide) y
+ * confirmar() la pasa a los conectados. Una sesión reservada no recibe
+ * difusiones ni aparece en las listas.
+ */
+public class RegistroClientes {
+
+	private final ConcurrentHashMap<String, Sesion> porNombre = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Sesion> reservados = new ConcurrentHashMap<>(); // aún sin confirmar
+	private final Collection<Sesion> sesiones = Collections.unmodifiableCollection(porNombre.values());
+
+	// Clave normalizada: "Ana", "ANA" y "ana" son el mismo usuario
+	public static String clave(String nombre) {
+		return nombre.toLowerCase(Locale.ROOT);
+	}
+
+	// Aparta el nombre; false si ya hay un usuario conectado o reservado con él.
+	// Un nombre solo entra en porNombre desde reservados, así que basta mirar después.
+	public boolean reservar(Sesion sesion) {
+		String clave = clave(sesion.getNombreUsuario());
+		if (reservados.putIfAbsent(clave, sesion) != null) {
+			return false;
+		}
+		if (porNombre.containsKey(clave)) {
+			reservados.remove(clave, sesion);
+			return false;
+		}
+		return true;
+	}
+
+	// Pasa la sesión reservada a los conectados; false si la reserva ya se canceló.
+	// Dentro del compute, un cancelar() simultáneo espera: o se confirma o se cancela.
+	public boolean confirmar(Sesion sesion) {
+		boolean[] confirmada = new boolean[1];
+		reservados.computeIfPresent(clave(sesion.getNombreUsuario()), (clave, actual) -> {
+			if (actual != sesion) {
+				return actual;
+			}
+			porNombre.put(clave, sesion);
+			confirmada[0] = true;
+			return null;
+		});
+		return confirmada[0];
+	}
+
+	// Libera una reserva sin confirmar; false si la sesión no la tenía
+	public boolean cancelar(Sesion sesion) {
+		String nombre = sesion.getNombreUsuario();
+		return nombre != null && reservados.remove(clave(nombre), sesion);
+	}
+
+	// Solo elimina la entrada si pertenece a esta sesión (no a otra con el mismo nombre)
+	public boolean eliminar(Sesion sesion) {
+		String nombre = sesion.getNombreUsuario();
+		return nombre != null && porNombre.remove(clave(nombre), sesion);
+	}
+
+	// La sesión nueva ocupa la entrada de la antigua (reanudación); false si la antigua ya no estaba
+	public boolean reemplazar(Sesion antigua, Sesion nueva) {
+		return porNombre.replace(clave(antigua.getNombreUsuario()), antigua, nueva);
+	}
+
+	// Sesión registrada con ese nombre, o null
+	public Sesion buscar(String nombre) {
+		return nombre == null ? null : porNombre.get(clave(nombre));
+	}
+
+	// Vista en vivo, sin copiar: refleja las altas y bajas mientras se recorre
+	public Collection<Sesion> sesiones() {
+		return sesiones;
+	}
+
+	public int tamaño() {
+		return porNombre.size();
+	}
+}
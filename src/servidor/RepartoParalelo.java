@@ -0,0 +1,104 @@
+package servidor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import comun.CodecMensaje;
+import servidor.metricas.Histograma;
+
+/**
+ * Reparto de una trama entre muchos destinatarios, por trozos en paralelo.
+ *
+ * Con pocos destinatarios (menos de MINIMO_PARALELO) se recorren en el hilo
+ * que llama, sin coste añadido. Con más, el conjunto se parte en trozos que
+ * escriben en sus colas los hilos de un ForkJoinPool propio: los trozos salen
+ * del Spliterator de la vista en vivo (ConcurrentHashMap), así que no se copia
+ * la lista de destinatarios. El tamaño del trozo se adapta a la cantidad (unos
+ * cuatro trozos por hilo, para repartir bien la carga) sin bajar de
+ * MINIMO_TROZO, para que el coste de lanzar un trozo no supere al de
+ * escribirlo.
+ *
+ * Quien llama espera a que terminen todos los trozos: así un destinatario
+ * nunca recibe un mensaje antes que el anterior de la misma difusión.
+ */
+public class RepartoParalelo {
+
+	static final int MINIMO_PARALELO = 1024;
+	static final int MINIMO_TROZO = 256;
+	private static final int TROZOS_POR_HILO = 4;
+
+	private final ForkJoinPool hilos; // null con un solo hilo: siempre en el que llama
+	private final int paralelismo;
+	private final Histograma tiempoTrozo;
+
+	public RepartoParalelo(int paralelismo, Histograma tiempoTrozo) {
+		this.paralelismo = Math.max(1, paralelismo);
+		this.tiempoTrozo = tiempoTrozo;
+		AtomicInteger contador = new AtomicInteger();
+		this.hilos = this.paralelismo == 1 ? null : new ForkJoinPool(this.paralelismo, pool -> {
+			ForkJoinWorkerThread hilo = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			hilo.setName("reparto-" + contador.incrementAndGet());
+			return hilo;
+		}, null, false);
+	}
+
+	// aviso != null: los clientes anteriores a la v2 reciben el aviso en lugar de la trama (presencia)
+	public void repartir(Collection<Sesion> destinatarios, Trama trama, Trama aviso, Sesion excluido) {
+		int cantidad = destinatarios.size();
+		if (hilos == null || cantidad < MINIMO_PARALELO) {
+			for (Sesion c : destinatarios) {
+				enviar(c, trama, aviso, excluido);
+			}
+			return;
+		}
+		long tamaño = Math.max(MINIMO_TROZO, cantidad / (paralelismo * TROZOS_POR_HILO));
+		hilos.invoke(new Trozo(destinatarios.spliterator(), tamaño, trama, aviso, excluido));
+	}
+
+	private static void enviar(Sesion c, Trama trama, Trama aviso, Sesion excluido) {
+		if (c != excluido) {
+			c.enviarTrama(aviso == null || c.getVersion() >= CodecMensaje.VERSION_PRESENCIA ? trama : aviso);
+		}
+	}
+
+	// Se parte por mitades hasta el tamaño pedido; cada mitad sobrante se lanza aparte
+	@SuppressWarnings("serial") // nunca se serializa
+	private final class Trozo extends RecursiveAction {
+		private final Spliterator<Sesion> parte;
+		private final long tamaño;
+		private final Trama trama;
+		private final Trama aviso;
+		private final Sesion excluido;
+
+		Trozo(Spliterator<Sesion> parte, long tamaño, Trama trama, Trama aviso, Sesion excluido) {
+			this.parte = parte;
+			this.tamaño = tamaño;
+			this.trama = trama;
+			this.aviso = aviso;
+			this.excluido = excluido;
+		}
+
+		@Override
+		protected void compute() {
+			List<Trozo> lanzados = new ArrayList<>();
+			Spliterator<Sesion> mitad;
+			while (parte.estimateSize() > tamaño && (mitad = parte.trySplit()) != null) {
+				Trozo otro = new Trozo(mitad, tamaño, trama, aviso, excluido);
+				otro.fork();
+				lanzados.add(otro);
+			}
+			long inicio = System.nanoTime();
+			parte.forEachRemaining(c -> enviar(c, trama, aviso, excluido));
+			tiempoTrozo.registrar(System.nanoTime() - inicio);
+			for (int i = lanzados.size() - 1; i >= 0; i--) {
+				lanzados.get(i).join(); // del último lanzado al primero: los que sigan en la cola se hacen aquí
+			}
+		}
+	}
+}
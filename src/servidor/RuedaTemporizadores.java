@@ -0,0 +1,101 @@
+package servidor;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Temporizadores de baja precisión para muchas conexiones (rueda hashed).
+ *
+ * Un único tick periódico, en un hilo propio, avanza la rueda: cada
+ * ranura es una lista enlazada con las tareas que vencen en ese tick (o en
+ * una vuelta posterior). Programar es encolar en una cola sin cerrojos y el
+ * coste por tick es proporcional a lo que vence, no al número de tareas
+ * pendientes, así que 100.000 conexiones cuestan lo mismo que 100 por tick.
+ *
+ * El hilo es solo de la rueda para que las tareas de disco del scheduler del
+ * servidor (caducidad, buzones, informe) no retrasen latidos ni reanudaciones.
+ * Las tareas se ejecutan en ese hilo: deben ser cortas.
+ */
+public class RuedaTemporizadores {
+
+	private static final int RANURAS = 512; // potencia de dos
+
+	private final long milisTick;
+	private final Entrada[] ranuras = new Entrada[RANURAS];
+	private final Queue<Entrada> nuevas = new ConcurrentLinkedQueue<>();
+	private final long origen = System.nanoTime();
+	private volatile long tick;
+	private volatile long ahora; // ms desde el arranque, actualizado en cada tick
+
+	public RuedaTemporizadores(long milisTick) {
+		this.milisTick = milisTick;
+		ScheduledExecutorService hilo = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "rueda-temporizadores");
+			t.setDaemon(true);
+			return t;
+		});
+		hilo.scheduleAtFixedRate(this::avanzar, milisTick, milisTick, TimeUnit.MILLISECONDS);
+	}
+
+	// Ejecuta la tarea pasados (al menos) milis, redondeado al tick; desde cualquier hilo
+	public void programar(long milis, Runnable tarea) {
+		long ticks = Math.max(1, (milis + milisTick - 1) / milisTick);
+		nuevas.add(new Entrada(tick + ticks, tarea));
+	}
+
+	// Reloj barato (una lectura volátil) con la resolución de un tick
+	public long ahora() {
+		return ahora;
+	}
+
+	private void avanzar() {
+		ahora = (System.nanoTime() - origen) / 1_000_000;
+		long actual = tick;
+		Entrada nueva;
+		while ((nueva = nuevas.poll()) != null) {
+			int indice = (int) (Math.max(nueva.vencimiento, actual) & (RANURAS - 1));
+			nueva.siguiente = ranuras[indice];
+			ranuras[indice] = nueva;
+		}
+
+		// Se separan las que vencen en este tick y se dejan las de vueltas posteriores
+		int indice = (int) (actual & (RANURAS - 1));
+		Entrada quedan = null;
+		Entrada vencidas = null;
+		for (Entrada e = ranuras[indice]; e != null;) {
+			Entrada siguiente = e.siguiente;
+			if (e.vencimiento <= actual) {
+				e.siguiente = vencidas;
+				vencidas = e;
+			} else {
+				e.siguiente = quedan;
+				quedan = e;
+			}
+			e = siguiente;
+		}
+		ranuras[indice] = quedan;
+		tick = actual + 1;
+
+		for (Entrada e = vencidas; e != null; e = e.siguiente) {
+			try {
+				e.tarea.run();
+			} catch (RuntimeException ex) {
+				System.err.println("Error en temporizador: " + ex);
+			}
+		}
+	}
+
+	private static final class Entrada {
+		private final long vencimiento; // tick
+		private final Runnable tarea;
+		private Entrada siguiente;
+
+		Entrada(long vencimiento, Runnable tarea) {
+			this.vencimiento = vencimiento;
+			this.tarea = tarea;
+		}
+	}
+}
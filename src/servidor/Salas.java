@@ -0,0 +1,137 @@
+package servidor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Salas de chat con nombre, además de la sala general (todos los conectados).
+ *
+ * Cada sala guarda su propio conjunto de miembros, así que un mensaje a una
+ * sala solo recorre a sus suscriptores. Cada sesión guarda también sus salas
+ * para poder sacarla de todas al desconectarse sin recorrer las demás.
+ * Las salas vacías se eliminan.
+ */
+public class Salas {
+
+	public static final String GENERAL = "general";
+
+	private static final Pattern NOMBRE_VALIDO = Pattern.compile("[\\p{L}\\p{N}_-]{1,32}");
+
+	private static final class Sala {
+		final String nombre;
+		final Set<Sesion> miembros = ConcurrentHashMap.newKeySet();
+
+		Sala(String nombre) {
+			this.nombre = nombre;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Sala> porNombre = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Sesion, Set<String>> salasDeSesion = new ConcurrentHashMap<>();
+
+	public static boolean nombreValido(String nombre) {
+		return nombre != null && NOMBRE_VALIDO.matcher(nombre).matches();
+	}
+
+	// null o "general" es la sala general
+	public static boolean esGeneral(String nombre) {
+		return nombre == null || nombre.isEmpty() || nombre.equalsIgnoreCase(GENERAL);
+	}
+
+	// Devuelve el nombre con el que se creó la sala, o null si la sesión ya estaba dentro
+	public String unirse(Sesion sesion, String nombre) {
+		String clave = RegistroClientes.clave(nombre);
+		boolean[] añadida = new boolean[1];
+		// compute es atómico por clave: no se cruza con quitar() vaciando la misma sala
+		Sala sala = porNombre.compute(clave, (c, actual) -> {
+			Sala destino = actual != null ? actual : new Sala(nombre);
+			añadida[0] = destino.miembros.add(sesion);
+			return destino;
+		});
+		if (!añadida[0]) {
+			return null;
+		}
+		salasDeSesion.computeIfAbsent(sesion, s -> ConcurrentHashMap.newKeySet()).add(clave);
+		return sala.nombre;
+	}
+
+	// Devuelve el nombre de la sala, o null si la sesión no estaba dentro
+	public String abandonar(Sesion sesion, String nombre) {
+		String clave = RegistroClientes.clave(nombre);
+		Set<String> propias = salasDeSesion.get(sesion);
+		if (propias == null || !propias.remove(clave)) {
+			return null;
+		}
+		Sala sala = porNombre.get(clave);
+		quitar(sesion, clave);
+		return sala != null ? sala.nombre : nombre;
+	}
+
+	// Al desconectarse: sale de todas sus salas
+	public void abandonarTodas(Sesion sesion) {
+		Set<String> propias = salasDeSesion.remove(sesion);
+		if (propias != null) {
+			for (String clave : propias) {
+				quitar(sesion, clave);
+			}
+		}
+	}
+
+	// Reanudación: la sesión nueva hereda las salas de la antigua
+	public void reemplazar(Sesion antigua, Sesion nueva) {
+		Set<String> propias = salasDeSesion.remove(antigua);
+		if (propias == null) {
+			return;
+		}
+		salasDeSesion.put(nueva, propias);
+		for (String clave : propias) {
+			porNombre.computeIfPresent(clave, (c, sala) -> {
+				sala.miembros.add(nueva);
+				sala.miembros.remove(antigua);
+				return sala;
+			});
+		}
+	}
+
+	private void quitar(Sesion sesion, String clave) {
+		porNombre.computeIfPresent(clave, (c, sala) -> {
+			sala.miembros.remove(sesion);
+			return sala.miembros.isEmpty() ? null : sala;
+		});
+	}
+
+	// Miembros de la sala (vista en vivo), o null si no existe
+	public Set<Sesion> miembros(String nombre) {
+		Sala sala = porNombre.get(RegistroClientes.clave(nombre));
+		return sala == null ? null : Collections.unmodifiableSet(sala.miembros);
+	}
+
+	public boolean esMiembro(Sesion sesion, String nombre) {
+		Set<String> propias = salasDeSesion.get(sesion);
+		return propias != null && propias.contains(RegistroClientes.clave(nombre));
+	}
+
+	// Nombres de las salas de la sesión, empezando por la general
+	public List<String> salasDe(Sesion sesion) {
+		List<String> nombres = new ArrayList<>();
+		nombres.add(GENERAL);
+		Set<String> propias = salasDeSesion.get(sesion);
+		if (propias != null) {
+			for (String clave : propias) {
+				Sala sala = porNombre.get(clave);
+				if (sala != null) {
+					nombres.add(sala.nombre);
+				}
+			}
+		}
+		return nombres;
+	}
+
+	public int getNumeroSalas() {
+		return porNombre.size();
+	}
+}
@@ -4,128 +4,751 @@ import java.io.*;
 import java.net.*;
 import java.time.Duration;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import comun.CodecMensaje;
 import comun.Mensaje;
+import servidor.busqueda.IndiceBusqueda;
+import servidor.cluster.Cluster;
+import servidor.metricas.Metricas;
+import servidor.metricas.ServidorMetricas;
+import servidor.nio.MotorNio;
 
 public class ServidorMain {
 
     private final int puerto;
-    private final ServerSocket serverSocket;
-    private final List<ClienteHandler> clientes = new ArrayList<>();
-    private final File logFile = new File("log.txt");
-    private final int MAX_CLIENTES;
+    private final ConfiguracionServidor config;
+    private final RegistroClientes clientes = new RegistroClientes();
+    private final Salas salas = new Salas();
+    private final RegistroAuditoria log;
+    private final HistorialMensajes historial; // null si está desactivado
+    private final Buzones buzones; // null si están desactivados
+    private final IndiceBusqueda indice; // null sin historial o con la búsqueda desactivada
+    private final Cluster cluster; // null si el servidor no forma parte de un cluster
+    private final Metricas metricas = new Metricas();
+    private final Admision admision;
+    private final RuedaTemporizadores rueda;
+    private final Latidos latidos; // null si están desactivados
+    private final Reanudaciones reanudaciones; // null si está desactivada
+    private final TuberiaDifusion tuberia; // null: se difunde en el hilo que recibe el mensaje
+    private final RepartoParalelo reparto;
+    // Conexiones ya admitidas que esperan a que la etapa de admisión arranque su hilo
+    private final BlockingQueue<Socket> admitidas = new LinkedBlockingQueue<>();
     private volatile String ultimoMensaje = "Ninguno";
     private final LocalDateTime inicio;
 
+    private final ThreadFactory hilosClientes;
+
+    private static final int NOMBRES_POR_LISTA = 1000;
+    private static final int BACKLOG = 4096;
+    private static final long MILIS_TICK = 250;
+    private static final Trama PONG = new Trama(new Mensaje("SERVER", null, "", Mensaje.Tipo.PONG));
+
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
 
-    public ServidorMain(int puerto, int maxClientes) throws IOException {
-        this.puerto = puerto;
-        this.MAX_CLIENTES = maxClientes;
-        this.serverSocket = new ServerSocket(this.puerto);
+    public ServidorMain(int puerto, int maxClientes) {
+        this(configuracion(puerto, maxClientes));
+    }
+
+    public ServidorMain(ConfiguracionServidor config) {
+        this.config = config;
+        this.puerto = config.getPuerto();
+        this.admision = new Admision(config);
+        this.rueda = new RuedaTemporizadores(MILIS_TICK);
+        this.latidos = config.getSegundosLatido() > 0 ? new Latidos(rueda, this, config) : null;
+        this.reanudaciones = config.getSegundosReanudar() > 0 ? new Reanudaciones(this, config) : null;
         this.inicio = LocalDateTime.now();
-        escribirLog("SERVIDOR INICIADO en puerto " + puerto + " - " + timestamp());
-        arrancarInformePeriodico(10); // muestra info cada 10 segundos
+        this.hilosClientes = config.getMotor() == ConfiguracionServidor.Motor.VIRTUALES
+                ? FabricaHilos.virtuales("cliente-")
+                : FabricaHilos.plataforma("cliente-");
+        this.log = new RegistroAuditoria(new File(config.getLogArchivo()), config.getLogMaxMb() * 1024L * 1024L,
+                config.getLogHorasRotacion(), TimeUnit.HOURS, config.getLogCapacidad());
+        Runtime.getRuntime().addShutdownHook(new Thread(log::cerrar, "cierre-log"));
+        escribirLog("SERVIDOR INICIADO en puerto " + puerto + " (motor " + config.getMotor() + ")");
+        this.historial = abrirHistorial(config);
+        this.buzones = abrirBuzones(config);
+        this.indice = historial != null && config.isBusqueda() ? new IndiceBusqueda(historial, metricas) : null;
+        this.cluster = config.isCluster() ? new Cluster(this, config) : null;
+        this.reparto = new RepartoParalelo(config.getHilosReparto(), metricas.getTrozoReparto());
+        this.tuberia = config.getCapacidadTuberia() > 0
+                ? new TuberiaDifusion(config.getCapacidadTuberia(), this::registrarDifusion, this::repartirDifusion)
+                : null;
+        if (config.getSegundosInforme() > 0) {
+            arrancarInformePeriodico(config.getSegundosInforme()); // muestra info cada 10 segundos por defecto
+        }
     }
 
-    public static void main(String[] args) {
-        int puerto = 3040;
-        int maxClientes = 5;
-        if (args.length >= 1) puerto = Integer.parseInt(args[0]);
-        if (args.length >= 2) maxClientes = Integer.parseInt(args[1]);
+    private HistorialMensajes abrirHistorial(ConfiguracionServidor config) {
+        if (config.getHistorialMensajes() <= 0) {
+            return null;
+        }
+        try {
+            HistorialMensajes h = new HistorialMensajes(new File(config.getHistorialCarpeta()),
+                    config.getHistorialSegmentoMb() * 1024 * 1024, TimeUnit.DAYS.toMillis(config.getHistorialDias()));
+            scheduler.scheduleAtFixedRate(h::caducar, 0, 10, TimeUnit.MINUTES);
+            return h;
+        } catch (IOException e) {
+            System.err.println("Historial desactivado: " + e.getMessage());
+            return null;
+        }
+    }
 
+    private Buzones abrirBuzones(ConfiguracionServidor config) {
+        if (config.getBuzonMensajes() <= 0) {
+            return null;
+        }
         try {
-            ServidorMain servidor = new ServidorMain(puerto, maxClientes);
-            servidor.aceptarConexiones();
+            Buzones b = new Buzones(this, config);
+            scheduler.scheduleAtFixedRate(b::caducar, 0, 10, TimeUnit.MINUTES);
+            return b;
         } catch (IOException e) {
+            System.err.println("Buzones desactivados: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static ConfiguracionServidor configuracion(int puerto, int maxClientes) {
+        ConfiguracionServidor config = new ConfiguracionServidor();
+        config.setPuerto(puerto);
+        config.setMaxClientes(maxClientes);
+        return config;
+    }
+
+    public static void main(String[] args) {
+        try {
+            ServidorMain servidor = new ServidorMain(ConfiguracionServidor.desdeArgumentos(args));
+            servidor.arrancar();
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
             System.err.println("No se pudo arrancar el servidor: " + e.getMessage());
         }
     }
 
-    public void aceptarConexiones() {
+    // Arranca el motor elegido en la configuración y bloquea mientras el servidor esté activo
+    public void arrancar() throws IOException {
+        if (cluster != null) {
+            cluster.arrancar();
+        }
+        if (config.getPuertoMetricas() > 0) {
+            new ServidorMetricas(config.getPuertoMetricas(), this::exportarMetricas).arrancar();
+        }
+        switch (config.getMotor()) {
+        case NIO:
+            new MotorNio(this, config).ejecutar();
+            break;
+        default:
+            aceptarConexiones();
+        }
+    }
+
+    // El hilo que acepta solo reserva plaza (o rechaza) y pasa el socket a la etapa de admisión,
+    // así que una avalancha de conexiones no se queda esperando a que se creen hilos.
+    // Con todos los saludos pendientes ocupados deja de aceptar (ver Admision).
+    public void aceptarConexiones() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(puerto, BACKLOG);
         System.out.println("Servidor escuchando en puerto " + puerto);
+        Thread etapa = new Thread(this::admitirConexiones, "admision");
+        etapa.setDaemon(true);
+        etapa.start();
         while (true) {
+            try {
+                admision.esperarSaludo();
+            } catch (InterruptedException e) {
+                return;
+            }
             try {
                 Socket socket = serverSocket.accept();
 
-                synchronized (this) {
-                    if (clientes.size() >= MAX_CLIENTES) {
-                        ObjectOutputStream salida = new ObjectOutputStream(socket.getOutputStream());
-                        Mensaje error = new Mensaje("SERVER", "ERROR:SERVIDOR_LLENO");
-                        salida.writeObject(error);
-                        salida.flush();
-                        salida.close();
-                        escribirLog("Conexión rechazada (servidor lleno) desde " + socket.getRemoteSocketAddress());
-                        socket.close();
-                        continue;
-                    }
+                if (!admision.reservarPlaza()) {
+                    admision.saludoTerminado();
+                    rechazar(socket);
+                    continue;
                 }
 
-                ClienteHandler handler = new ClienteHandler(socket, this);
-                handler.start();
+                metricas.conexionAceptada();
+                admitidas.add(socket);
 
             } catch (IOException e) {
+                admision.saludoTerminado();
                 System.err.println("Error aceptando conexión: " + e.getMessage());
             }
         }
     }
 
+    // ⛔ Rechazo ya codificado: cabe en el buffer de envío de un socket nuevo, así que no bloquea
+    private void rechazar(Socket socket) {
+        metricas.rechazo(Metricas.Rechazo.SERVIDOR_LLENO);
+        try {
+            socket.getOutputStream().write(Admision.RECHAZO);
+            escribirLog("Conexión rechazada (servidor lleno) desde " + socket.getRemoteSocketAddress());
+        } catch (IOException ignored) {
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // Etapa de admisión (motor de hilos): ajusta cada socket admitido y arranca su hilo.
+    // El saludo tiene un tiempo máximo (SO_TIMEOUT) que ClienteHandler quita al terminarlo.
+    private void admitirConexiones() {
+        while (true) {
+            Socket socket;
+            try {
+                socket = admitidas.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setKeepAlive(true); // clientes anteriores a los latidos
+                socket.setSoTimeout(admision.getMilisSaludo());
+                nuevoHiloCliente(new ClienteHandler(socket, this)).start();
+            } catch (IOException | RuntimeException | OutOfMemoryError e) {
+                System.err.println("No se pudo admitir la conexión: " + e.getMessage());
+                admision.saludoTerminado();
+                admision.liberar();
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    public ConfiguracionServidor getConfig() {
+        return config;
+    }
+
+    public Metricas getMetricas() {
+        return metricas;
+    }
+
+    // Hilo (de plataforma o virtual, según el motor) para el lector o el escritor de un cliente
+    public Thread nuevoHiloCliente(Runnable tarea) {
+        return hilosClientes.newThread(tarea);
+    }
+
+    public Admision getAdmision() {
+        return admision;
+    }
+
+    // Tarea corta en el hilo del scheduler pasados milis (0 = en cuanto pueda)
+    public void programar(Runnable tarea, long milis) {
+        scheduler.schedule(tarea, milis, TimeUnit.MILLISECONDS);
+    }
+
+    public RuedaTemporizadores getRueda() {
+        return rueda;
+    }
+
+    // Vigilancia de latidos para una conexión recién admitida; null si están desactivados
+    public Latidos.Vigilancia vigilar(Sesion sesion) {
+        return latidos != null ? latidos.vigilar(sesion) : null;
+    }
+
     // ===========================
-    // CLIENTES
+    // SESIONES (comunes a todos los motores)
     // ===========================
 
-    public synchronized boolean registrarCliente(ClienteHandler cliente) {
-        // Evitar nombres duplicados
-        for (ClienteHandler c : clientes) {
-            if (c.getNombreUsuario() != null && c.getNombreUsuario().equalsIgnoreCase(cliente.getNombreUsuario())) {
+    // Primer mensaje de una conexión: valida el nombre y registra al usuario.
+    // Devuelve false si la sesión ha sido rechazada y debe cerrarse.
+    // En un cluster, el hilo que llama espera a que el propietario del nombre lo reserve.
+    public boolean iniciarSesion(Sesion sesion, Mensaje mensajeInicial) {
+        return iniciarSesion(sesion, mensajeInicial, null).join();
+    }
+
+    // Igual, pero sin esperar a la reserva del nombre en el cluster: el resto del inicio
+    // se hace en ejecutor cuando llega la respuesta (el motor NIO pasa su bucle de eventos)
+    public CompletableFuture<Boolean> iniciarSesion(Sesion sesion, Mensaje mensajeInicial, Executor ejecutor) {
+        if (mensajeInicial == null || mensajeInicial.getRemitente() == null
+                || mensajeInicial.getRemitente().trim().isEmpty()
+                || mensajeInicial.getRemitente().chars().anyMatch(Character::isISOControl)) {
+            metricas.rechazo(Metricas.Rechazo.NOMBRE_INVALIDO);
+            sesion.enviarMensaje(new Mensaje("SERVER", "ERROR:NOMBRE_INVALIDO"));
+            return CompletableFuture.completedFuture(false);
+        }
+
+        sesion.setNombreUsuario(mensajeInicial.getRemitente().trim());
+        String nombreUsuario = sesion.getNombreUsuario();
+
+        // 🔁 Reanudación (v6): sigue la sesión cortada sin ENTRA, lista ni historial, solo el hueco
+        if (reanudaciones != null) {
+            if (mensajeInicial.getTipo() == Mensaje.Tipo.SESION
+                    && reanudaciones.reanudar(sesion, mensajeInicial.getContenido())) {
+                if (buzones != null) {
+                    buzones.entregar(sesion); // por si la entrega se cortó a medias
+                }
+                return CompletableFuture.completedFuture(true);
+            }
+            reanudaciones.liberar(nombreUsuario);
+        }
+
+        // 🔎 Comprobar duplicados y reservar el nombre en un solo paso (la sesión aún no es visible)
+        CompletableFuture<Boolean> reserva = reservarNombre(sesion);
+        if (ejecutor == null || reserva.isDone()) {
+            return CompletableFuture.completedFuture(continuarInicio(sesion, reserva.join()));
+        }
+        return reserva.thenApplyAsync(reservado -> continuarInicio(sesion, reservado), ejecutor);
+    }
+
+    // Tras la reserva: entrada, presencia, lista, historial y buzón, o el rechazo si el nombre está ocupado
+    private boolean continuarInicio(Sesion sesion, boolean reservado) {
+        if (!reservado) {
+            metricas.rechazo(Metricas.Rechazo.NOMBRE_DUPLICADO);
+            sesion.enviarMensaje(new Mensaje("SERVER", "ERROR:NOMBRE_DUPLICADO"));
+            return false;
+        }
+        if (!confirmarCliente(sesion)) {
+            return false; // se cerró mientras otro nodo reservaba el nombre
+        }
+        String nombreUsuario = sesion.getNombreUsuario();
+
+        // El token va antes que nada: el cliente numera las tramas desde el SESION
+        if (reanudaciones != null) {
+            reanudaciones.emitir(sesion);
+        }
+        anunciarPresencia(nombreUsuario, true, sesion);
+        enviarListaUsuarios(sesion);
+
+        // 📜 Últimos mensajes, justo después de la lista de usuarios
+        if (historial != null) {
+            historial.reproducir(sesion, config.getHistorialMensajes());
+        }
+        // 📬 Privados de cuando no estaba conectado (se entregan por lotes, ver Buzones)
+        if (buzones != null) {
+            buzones.entregar(sesion);
+        }
+        return true;
+    }
+
+    // Mensajes posteriores al inicio. Devuelve false si el cliente pide desconectarse.
+    public boolean procesarMensaje(Sesion sesion, Mensaje recibido) {
+        metricas.mensajeEntrante();
+        String texto = recibido.getContenido();
+
+        // 🚫 Ningún cliente manda tramas sin contenido (ni en binario ni en el protocolo antiguo)
+        if (texto == null) {
+            sesion.setAnillo(null);
+            escribirLog("Mensaje sin contenido, conexión cerrada: " + sesion.getNombreUsuario());
+            return false;
+        }
+
+        // 📴 Desconexión
+        if (texto.equalsIgnoreCase("/quit") || texto.equalsIgnoreCase("DESCONECTAR")) {
+            sesion.setAnillo(null); // salida voluntaria: no se aparca
+            return false;
+        }
+
+        // La presencia solo la genera el servidor
+        if (esPresencia(recibido.getTipo())) {
+            return true;
+        }
+
+        // 💓 Latidos: la llegada ya cuenta como actividad; a un PING del cliente se responde
+        if (recibido.getTipo() == Mensaje.Tipo.PING) {
+            sesion.enviarTrama(PONG);
+            return true;
+        }
+        if (recibido.getTipo() == Mensaje.Tipo.PONG) {
+            return true;
+        }
+
+        // 🔍 Búsqueda en el historial (v5): se resuelve en otro hilo, ver IndiceBusqueda
+        if (recibido.getTipo() == Mensaje.Tipo.BUSQUEDA) {
+            if (indice != null) {
+                indice.buscar(sesion, texto);
+            } else {
+                IndiceBusqueda.sinResultados(sesion, "⚠️ Este servidor no tiene activada la búsqueda.");
+            }
+            return true;
+        }
+        if (recibido.getTipo() == Mensaje.Tipo.RESULTADO || recibido.getTipo() == Mensaje.Tipo.SESION) {
+            return true; // solo los genera el servidor (SESION del cliente, solo como primer mensaje)
+        }
+
+        // 🚪 Salas
+        if (texto.regionMatches(true, 0, "/unirse ", 0, 8)) {
+            unirseASala(sesion, texto.substring(8).trim());
+            return true;
+        }
+        if (texto.regionMatches(true, 0, "/abandonar ", 0, 11)) {
+            abandonarSala(sesion, texto.substring(11).trim());
+            return true;
+        }
+
+        // 📬 Mensaje privado, a una sala o a la sala general
+        if (recibido.getDestinatario() != null && !recibido.getDestinatario().isEmpty()) {
+            boolean enviado = enviarPrivado(recibido, sesion);
+            if (!enviado) {
+                sesion.enviarMensaje(new Mensaje("SERVER",
+                        "El usuario '" + recibido.getDestinatario() + "' no está conectado."));
+            }
+        } else if (Salas.esGeneral(recibido.getSala())) {
+            recibido.setSala(null);
+            broadcast(recibido, sesion);
+        } else {
+            difundirEnSala(recibido, sesion);
+        }
+        return true;
+    }
+
+    // Mensaje que supera el límite de su conexión (ver LimiteMensajes) y no se procesa.
+    // Devuelve false si hay que desconectar al cliente.
+    public boolean limiteSuperado(Sesion sesion, LimiteMensajes limite, LimiteMensajes.Resultado resultado) {
+        switch (resultado) {
+            case RETRASADO:
+                metricas.limite(Metricas.Limite.RETRASADO);
+                return true;
+            case DEMASIADO_GRANDE:
+                metricas.limite(Metricas.Limite.DEMASIADO_GRANDE);
+                sesion.enviarMensaje(new Mensaje("SERVER",
+                        "⚠️ Mensaje descartado: supera los " + config.getMaxContenido() + " caracteres."));
+                return true;
+            case DESCARTADO:
+                metricas.limite(Metricas.Limite.DESCARTADO);
+                if (limite.avisarDescarte()) {
+                    sesion.enviarMensaje(new Mensaje("SERVER",
+                            "⚠️ Estás enviando demasiados mensajes; se descartarán hasta que bajes el ritmo."));
+                }
+                return true;
+            default:
+                metricas.limite(Metricas.Limite.DESCONECTADO);
+                escribirLog("Cliente desconectado por superar el límite de mensajes: " + sesion.getNombreUsuario());
+                sesion.enviarMensaje(new Mensaje("SERVER", "ERROR:LIMITE_MENSAJES"));
+                sesion.setAnillo(null);
                 return false;
+        }
+    }
+
+    private void unirseASala(Sesion sesion, String nombre) {
+        if (Salas.esGeneral(nombre)) {
+            sesion.enviarMensaje(new Mensaje("SERVER", "Ya estás en la sala general."));
+            return;
+        }
+        if (!Salas.nombreValido(nombre)) {
+            sesion.enviarMensaje(new Mensaje("SERVER", "Nombre de sala inválido: '" + nombre + "'"));
+            return;
+        }
+        String sala = salas.unirse(sesion, nombre);
+        if (sala == null) {
+            sesion.enviarMensaje(new Mensaje("SERVER", "Ya estás en la sala #" + nombre + "."));
+            return;
+        }
+        escribirLog("Usuario " + sesion.getNombreUsuario() + " entra en la sala " + sala);
+        avisarSala(sala, sesion.getNombreUsuario() + " entra en la sala #" + sala, sesion);
+        enviarListaSalas(sesion);
+    }
+
+    private void abandonarSala(Sesion sesion, String nombre) {
+        String sala = salas.abandonar(sesion, nombre);
+        if (sala == null) {
+            sesion.enviarMensaje(new Mensaje("SERVER", "No estás en la sala '" + nombre + "'."));
+            return;
+        }
+        escribirLog("Usuario " + sesion.getNombreUsuario() + " sale de la sala " + sala);
+        avisarSala(sala, sesion.getNombreUsuario() + " sale de la sala #" + sala, sesion);
+        enviarListaSalas(sesion);
+    }
+
+    // "salas: general, sala1, ..." para que el cliente actualice su selector
+    private void enviarListaSalas(Sesion sesion) {
+        sesion.enviarMensaje(new Mensaje("SERVER", sesion.getNombreUsuario(),
+                "salas: " + String.join(", ", salas.salasDe(sesion)), Mensaje.Tipo.SISTEMA));
+    }
+
+    private void avisarSala(String sala, String texto, Sesion excluido) {
+        Mensaje aviso = new Mensaje("SERVER", null, texto, Mensaje.Tipo.SISTEMA);
+        aviso.setSala(sala);
+        Trama trama = new Trama(aviso);
+        enviarASala(sala, trama, excluido);
+        if (cluster != null) {
+            cluster.difundir(trama);
+        }
+    }
+
+    // Fin de la conexión, haya llegado o no a registrarse
+    public void finalizarSesion(Sesion sesion) {
+        // 🔁 Un corte de una sesión v6 no es una salida: se aparca por si vuelve (ver Reanudaciones)
+        if (reanudaciones != null && reanudaciones.aparcar(sesion)) {
+            return;
+        }
+        salas.abandonarTodas(sesion);
+        if (eliminarCliente(sesion)) {
+            anunciarPresencia(sesion.getNombreUsuario(), false, sesion);
+        }
+    }
+
+    // ===========================
+    // PRESENCIA
+    // ===========================
+
+    private static boolean esPresencia(Mensaje.Tipo tipo) {
+        return tipo == Mensaje.Tipo.LISTA_USUARIOS || tipo == Mensaje.Tipo.ENTRA || tipo == Mensaje.Tipo.SALE;
+    }
+
+    // Entrada o salida de un usuario (de este nodo o de otro) para los clientes de este nodo.
+    // Los clientes v2 reciben solo el cambio; los demás, el aviso en texto de siempre.
+    public void anunciarPresencia(String nombre, boolean entra, Sesion excluido) {
+        Trama cambio = new Trama(new Mensaje("SERVER", null, nombre,
+                entra ? Mensaje.Tipo.ENTRA : Mensaje.Tipo.SALE));
+        Trama aviso = new Trama(new Mensaje("SERVER", null,
+                entra ? ">> " + nombre + " se ha unido al chat" : "<< " + nombre + " ha abandonado el chat",
+                Mensaje.Tipo.SISTEMA));
+        difundir(TuberiaDifusion.Clase.PRESENCIA, cambio, aviso, excluido);
+    }
+
+    // Lista completa, solo para quien acaba de entrar; a partir de ahí le llegan los cambios.
+    // Va en tramas de hasta NOMBRES_POR_LISTA nombres (siempre al menos una, aunque esté vacía).
+    private void enviarListaUsuarios(Sesion sesion) {
+        Stream<String> nombres = Stream.concat(getClientes().stream()
+                .filter(c -> c != sesion)  // Excluir al cliente actual para evitar duplicados
+                .map(Sesion::getNombreUsuario),
+                cluster != null ? cluster.getUsuariosRemotos().stream() : Stream.<String>empty())
+                .filter(nombre -> nombre != null && !nombre.isEmpty());
+
+        if (sesion.getVersion() < CodecMensaje.VERSION_PRESENCIA) {
+            String listaUsuarios = nombres.collect(Collectors.joining(", "));  // "usuario1, usuario2, usuario3"
+            sesion.enviarMensaje(new Mensaje("SERVER", sesion.getNombreUsuario(),
+                    "usuarios_conectados: " + listaUsuarios, Mensaje.Tipo.SISTEMA));
+            return;
+        }
+        StringBuilder lista = new StringBuilder();
+        int enLista = 0;
+        Iterator<String> it = nombres.iterator();
+        while (it.hasNext()) {
+            if (enLista > 0) {
+                lista.append('\n');
+            }
+            lista.append(it.next());
+            if (++enLista == NOMBRES_POR_LISTA && it.hasNext()) {
+                enviarLista(sesion, lista);
+                enLista = 0;
             }
         }
-        clientes.add(cliente);
-        escribirLog("Usuario entra: " + cliente.getNombreUsuario());
+        enviarLista(sesion, lista);
+    }
+
+    private static void enviarLista(Sesion sesion, StringBuilder lista) {
+        sesion.enviarMensaje(new Mensaje("SERVER", sesion.getNombreUsuario(), lista.toString(),
+                Mensaje.Tipo.LISTA_USUARIOS));
+        lista.setLength(0);
+    }
+
+    // ===========================
+    // CLIENTES
+    // ===========================
+
+    // Evita nombres duplicados: comprobar y registrar es una sola operación atómica
+    public boolean registrarCliente(Sesion cliente) {
+        return reservarNombre(cliente).join() && confirmarCliente(cliente);
+    }
+
+    // Aparta el nombre sin hacer visible la sesión. En un cluster, además, el nombre se
+    // reserva en el nodo propietario (el resultado llega con su respuesta)
+    private CompletableFuture<Boolean> reservarNombre(Sesion cliente) {
+        if (!clientes.reservar(cliente)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        if (cluster == null) {
+            return CompletableFuture.completedFuture(true);
+        }
+        return cluster.reservar(cliente.getNombreUsuario()).thenApply(reservado -> {
+            if (!reservado) {
+                clientes.cancelar(cliente);
+            }
+            return reservado;
+        });
+    }
+
+    // Hace visible la sesión reservada y la anuncia al cluster; false si se cerró antes
+    private boolean confirmarCliente(Sesion cliente) {
+        String nombre = cliente.getNombreUsuario();
+        if (!clientes.confirmar(cliente)) {
+            if (cluster != null) {
+                cluster.anunciarSalida(nombre); // se libera la reserva en el propietario
+            }
+            return false;
+        }
+        if (cluster != null) {
+            cluster.anunciarEntrada(nombre);
+        }
+        conocerUsuario(nombre);
+        escribirLog("Usuario entra: " + nombre);
         return true;
     }
 
-    public synchronized void eliminarCliente(ClienteHandler cliente) {
-        if (clientes.remove(cliente)) {
-            escribirLog("Usuario sale: " + cliente.getNombreUsuario());
+    // Nombre que ha entrado aquí o en otro nodo: desde ahora se le guardan privados en su buzón
+    public void conocerUsuario(String nombre) {
+        if (buzones != null) {
+            buzones.conocer(nombre);
         }
     }
 
-    public synchronized List<ClienteHandler> getClientes() {
-        return new ArrayList<>(clientes);
+    public boolean eliminarCliente(Sesion cliente) {
+        if (!clientes.eliminar(cliente)) {
+            // Aún reservando el nombre: nadie la vio entrar, así que no hay salida que anunciar
+            // (si el cluster confirma la reserva después, confirmarCliente la libera)
+            clientes.cancelar(cliente);
+            return false;
+        }
+        if (cluster != null) {
+            cluster.anunciarSalida(cliente.getNombreUsuario());
+        }
+        escribirLog("Usuario sale: " + cliente.getNombreUsuario());
+        return true;
+    }
+
+    // Reanudación: la sesión nueva ocupa el sitio de la cortada (nombre y salas) sin avisar a nadie
+    public void sustituirSesion(Sesion antigua, Sesion nueva) {
+        clientes.reemplazar(antigua, nueva);
+        salas.reemplazar(antigua, nueva);
+    }
+
+    // Vista sin copia ni cerrojo de los usuarios conectados
+    public Collection<Sesion> getClientes() {
+        return clientes.sesiones();
     }
 
     // ===========================
     // MENSAJES
     // ===========================
 
-    // Mensaje público
-    public synchronized void broadcast(Mensaje mensaje, ClienteHandler emisor) {
-        ultimoMensaje = mensaje.getContenido();
-        escribirLog("Mensaje público de " + mensaje.getRemitente() + ": " + mensaje.getContenido());
+    // Mensaje público: se codifica una vez y todos los destinatarios reciben los mismos bytes
+    public void broadcast(Mensaje mensaje, Sesion emisor) {
+        difundir(TuberiaDifusion.Clase.LOCAL, new Trama(mensaje), null, emisor);
+    }
+
+    // Mensaje público o de sala que llega de otro nodo, para los clientes de este
+    public void difundirLocal(Trama trama, Sesion emisor) {
+        difundir(TuberiaDifusion.Clase.REMOTO, trama, null, emisor);
+    }
+
+    // Con tubería solo se publica el evento; sin ella, las dos etapas en este mismo hilo
+    private void difundir(TuberiaDifusion.Clase clase, Trama trama, Trama aviso, Sesion excluido) {
+        if (tuberia != null) {
+            tuberia.publicar(clase, trama, aviso, excluido);
+        } else {
+            registrarDifusion(clase, trama, aviso, excluido);
+            repartirDifusion(clase, trama, aviso, excluido);
+        }
+    }
 
-        for (ClienteHandler c : clientes) {
-            if (c != emisor) {
-                c.enviarMensaje(mensaje);
+    // Etapa de registro (ver TuberiaDifusion): log, último mensaje e historial de la sala general
+    private void registrarDifusion(TuberiaDifusion.Clase clase, Trama trama, Trama aviso, Sesion excluido) {
+        if (clase == TuberiaDifusion.Clase.PRESENCIA) {
+            return;
+        }
+        Mensaje mensaje = trama.getMensaje();
+        if (clase == TuberiaDifusion.Clase.LOCAL) {
+            if (mensaje.getSala() != null) {
+                ultimoMensaje = "[#" + mensaje.getSala() + "] " + mensaje.getContenido();
+                escribirLog("Mensaje en sala " + mensaje.getSala() + " de " + mensaje.getRemitente() + ": "
+                        + mensaje.getContenido());
+            } else {
+                ultimoMensaje = mensaje.getContenido();
+                escribirLog("Mensaje público de " + mensaje.getRemitente() + ": " + mensaje.getContenido());
             }
         }
+        if (historial != null && mensaje.getSala() == null && mensaje.getTipo() == Mensaje.Tipo.PUBLICO) {
+            historial.guardar(trama);
+        }
+    }
+
+    // Etapa de reparto: colas de los destinatarios de este nodo y, si es de aquí, los demás nodos
+    private void repartirDifusion(TuberiaDifusion.Clase clase, Trama trama, Trama aviso, Sesion excluido) {
+        if (clase == TuberiaDifusion.Clase.PRESENCIA) {
+            reparto.repartir(clientes.sesiones(), trama, aviso, excluido);
+            return;
+        }
+        repartirLocal(trama, excluido);
+        if (clase == TuberiaDifusion.Clase.LOCAL && cluster != null) {
+            cluster.difundir(trama);
+        }
+    }
+
+    private void repartirLocal(Trama trama, Sesion emisor) {
+        Mensaje mensaje = trama.getMensaje();
+        if (mensaje.getSala() != null) {
+            enviarASala(mensaje.getSala(), trama, emisor);
+            return;
+        }
+        long inicioReparto = System.nanoTime();
+        reparto.repartir(clientes.sesiones(), trama, null, emisor);
+        metricas.getDifusion().registrar(System.nanoTime() - inicioReparto);
+    }
+
+    // Privado que llega de otro nodo para un cliente de este
+    public void entregarLocal(String destinatario, Trama trama) {
+        Sesion receptor = clientes.buscar(destinatario);
+        if (receptor != null) {
+            receptor.enviarTrama(trama);
+        }
+    }
+
+    public Sesion buscarLocal(String nombre) {
+        return clientes.buscar(nombre);
+    }
+
+    // Mensaje a una sala: solo se recorre a sus miembros
+    public void difundirEnSala(Mensaje mensaje, Sesion emisor) {
+        String sala = mensaje.getSala();
+        if (!salas.esMiembro(emisor, sala)) {
+            emisor.enviarMensaje(new Mensaje("SERVER",
+                    "No estás en la sala '" + sala + "'. Usa /unirse " + sala));
+            return;
+        }
+        difundir(TuberiaDifusion.Clase.LOCAL, new Trama(mensaje), null, emisor);
+    }
+
+    private void enviarASala(String sala, Trama trama, Sesion excluido) {
+        Set<Sesion> miembros = salas.miembros(sala);
+        if (miembros == null) {
+            return;
+        }
+        long inicioReparto = System.nanoTime();
+        reparto.repartir(miembros, trama, null, excluido);
+        metricas.getDifusion().registrar(System.nanoTime() - inicioReparto);
     }
 
     // Mensaje privado
-    public synchronized boolean enviarPrivado(Mensaje mensaje, ClienteHandler emisor) {
+    public boolean enviarPrivado(Mensaje mensaje, Sesion emisor) {
         String destinatario = mensaje.getDestinatario();
         ultimoMensaje = "[PRIVADO] " + mensaje.getRemitente() + " -> " + destinatario + ": " + mensaje.getContenido();
         escribirLog("Mensaje privado: " + ultimoMensaje);
 
-        for (ClienteHandler c : clientes) {
-            if (c.getNombreUsuario() != null && c.getNombreUsuario().equalsIgnoreCase(destinatario)) {
-                c.enviarMensaje(mensaje);
-                return true;
-            }
+        long inicioRuta = System.nanoTime();
+        Sesion receptor = clientes.buscar(destinatario);
+        if (receptor != null) {
+            guardarPrivado(mensaje);
+            receptor.enviarMensaje(mensaje);
+            metricas.getPrivados().registrar(System.nanoTime() - inicioRuta);
+            return true;
+        }
+
+        // 🌐 Conectado a otro nodo del cluster: se envía directamente a ese nodo
+        if (cluster != null && cluster.enviarPrivado(destinatario, new Trama(mensaje))) {
+            guardarPrivado(mensaje);
+            metricas.getPrivados().registrar(System.nanoTime() - inicioRuta);
+            return true;
+        }
+
+        // 📪 No está conectado en ningún nodo: se guarda en su buzón hasta que vuelva
+        Buzones.Resultado guardado = buzones != null ? buzones.guardar(mensaje) : Buzones.Resultado.DESCONOCIDO;
+        if (guardado == Buzones.Resultado.GUARDADO) {
+            guardarPrivado(mensaje);
+            emisor.enviarMensaje(new Mensaje("SERVER",
+                    "📪 '" + destinatario + "' no está conectado: recibirá el mensaje cuando vuelva."));
+            return true;
+        }
+        if (guardado == Buzones.Resultado.CUOTA) {
+            emisor.enviarMensaje(new Mensaje("SERVER",
+                    "📪 Ya tienes demasiados mensajes esperando a usuarios desconectados: '"
+                            + destinatario + "' no recibirá este."));
+            return false;
         }
 
         // Si no se encuentra el destinatario
@@ -133,47 +756,163 @@ public class ServidorMain {
         return false;
     }
 
+    // Con historial de privados, cada uno se guarda una sola vez: en el nodo del remitente, llegue por donde llegue
+    private void guardarPrivado(Mensaje mensaje) {
+        if (historial != null && config.isHistorialPrivados()) {
+            historial.guardar(new Trama(mensaje));
+        }
+    }
+
     // ===========================
     // LOG Y ESTADÍSTICAS
     // ===========================
 
-    public synchronized void escribirLog(String texto) {
-        try (FileWriter fw = new FileWriter(logFile, true);
-             BufferedWriter bw = new BufferedWriter(fw);
-             PrintWriter out = new PrintWriter(bw)) {
-            out.println("[" + timestamp() + "] " + texto);
-        } catch (IOException e) {
-            System.err.println("No se pudo escribir en log: " + e.getMessage());
-        }
+    // Solo encola la línea: la escribe en log.txt el hilo de RegistroAuditoria
+    public void escribirLog(String texto) {
+        log.registrar(texto);
     }
 
-    private String timestamp() {
-        return LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-    }
-
-    public synchronized int getNumeroConectados() {
-        return clientes.size();
+    public int getNumeroConectados() {
+        return clientes.tamaño();
     }
 
     public Duration getTiempoActivo() {
         return Duration.between(inicio, LocalDateTime.now());
     }
 
-    public synchronized String getUltimoMensaje() {
+    public String getUltimoMensaje() {
         return ultimoMensaje;
     }
 
     private void arrancarInformePeriodico(int segundos) {
+        long[] anterior = new long[3]; // entrantes, salientes y bytes salientes del informe anterior
         scheduler.scheduleAtFixedRate(() -> {
             String info = String.format(
-                "INFO -> Usuarios conectados: %d | Tiempo activo: %s | Último mensaje: %s",
+                "INFO -> Usuarios conectados: %d%s | Salas: %d | Tiempo activo: %s | Último mensaje: %s",
                 getNumeroConectados(),
+                cluster != null ? " (+" + cluster.getUsuariosRemotos().size() + " en " + cluster.getNodosConectados()
+                        + " nodos más)" : "",
+                salas.getNumeroSalas(),
                 formatearDuracion(getTiempoActivo()),
                 getUltimoMensaje());
             System.out.println(info);
+
+            long entrantes = metricas.getMensajesEntrantes();
+            long salientes = metricas.getMensajesSalientes();
+            long bytesSalientes = metricas.getBytesSalientes();
+            System.out.printf("   Tráfico: %d msg/s entrada, %d msg/s salida (%d KB/s) | Difusión p50/p99: %d/%d µs"
+                    + " | Privados p99: %d µs | Compresión: %.0f%% del tamaño, p99 %d µs"
+                    + " | Conexiones: %d aceptadas, %d rechazadas (lleno)%n",
+                    (entrantes - anterior[0]) / segundos, (salientes - anterior[1]) / segundos,
+                    (bytesSalientes - anterior[2]) / 1024 / segundos,
+                    metricas.getDifusion().percentil(0.5), metricas.getDifusion().percentil(0.99),
+                    metricas.getPrivados().percentil(0.99), metricas.getRatioCompresion() * 100,
+                    metricas.getCompresion().percentil(0.99), metricas.getConexionesAceptadas(),
+                    metricas.getRechazos(Metricas.Rechazo.SERVIDOR_LLENO));
+            anterior[0] = entrantes;
+            anterior[1] = salientes;
+            anterior[2] = bytesSalientes;
+
+            if (log.getDescartados() > 0) {
+                System.out.println("   Log: " + log.getDescartados() + " registros descartados, "
+                        + log.getPendientes() + " pendientes");
+            }
+            informarColas(20);
         }, segundos, segundos, TimeUnit.SECONDS);
     }
 
+    // Profundidad de la cola de salida de cada cliente con mensajes pendientes (los más cargados primero)
+    private void informarColas(int maxLineas) {
+        List<FotoCola> conCola = new ArrayList<>();
+        for (FotoCola c : fotografiarColas()) {
+            if (c.profundidad > 0 || c.descartados > 0) {
+                conCola.add(c);
+            }
+        }
+        for (int i = 0; i < conCola.size() && i < maxLineas; i++) {
+            FotoCola c = conCola.get(i);
+            System.out.printf("   Cola de %s: %d pendientes, %d descartados%n",
+                    c.usuario, c.profundidad, c.descartados);
+        }
+        if (conCola.size() > maxLineas) {
+            System.out.println("   ... y " + (conCola.size() - maxLineas) + " clientes más con cola");
+        }
+    }
+
+    // Cola de un cliente en un instante: las profundidades cambian mientras se ordena,
+    // así que se ordenan copias (con las sesiones vivas el orden puede no ser coherente)
+    private static final class FotoCola {
+        final String usuario;
+        final int profundidad;
+        final long descartados;
+
+        FotoCola(Sesion sesion) {
+            this.usuario = sesion.getNombreUsuario();
+            this.profundidad = sesion.getProfundidadCola();
+            this.descartados = sesion.getDescartados();
+        }
+    }
+
+    // Colas de todos los clientes, de la más profunda a la menos
+    private List<FotoCola> fotografiarColas() {
+        List<FotoCola> fotos = new ArrayList<>();
+        for (Sesion c : getClientes()) {
+            fotos.add(new FotoCola(c));
+        }
+        fotos.sort((a, b) -> Integer.compare(b.profundidad, a.profundidad));
+        return fotos;
+    }
+
+    // Métricas en formato de texto de Prometheus (punto /metrics de ServidorMetricas)
+    public String exportarMetricas() {
+        StringBuilder sb = new StringBuilder(4096);
+        metricas.exportar(sb);
+        Metricas.indicador(sb, "cherrychat_usuarios_conectados", "Usuarios conectados a este nodo",
+                getNumeroConectados());
+        Metricas.indicador(sb, "cherrychat_conexiones_abiertas", "Conexiones admitidas, con o sin sesión iniciada",
+                admision.getConexiones());
+        Metricas.indicador(sb, "cherrychat_saludos_pendientes", "Conexiones admitidas que aún no han terminado el saludo",
+                admision.getSaludosPendientes());
+        Metricas.indicador(sb, "cherrychat_buzon_pendientes", "Privados guardados para usuarios desconectados",
+                buzones != null ? buzones.getPendientes() : 0);
+        Metricas.indicador(sb, "cherrychat_tuberia_pendientes", "Eventos de difusión publicados y aún sin procesar",
+                tuberia != null ? tuberia.getPendientes() : 0);
+        Metricas.contador(sb, "cherrychat_tuberia_esperas_total", "Publicaciones que esperaron por tener la tubería llena",
+                tuberia != null ? tuberia.getEsperas() : 0);
+        Metricas.indicador(sb, "cherrychat_sesiones_aparcadas", "Sesiones cortadas a la espera de que el cliente vuelva",
+                reanudaciones != null ? reanudaciones.getAparcadas() : 0);
+        Metricas.indicador(sb, "cherrychat_busqueda_indexados", "Mensajes del historial que ya se pueden buscar",
+                indice != null ? indice.getIndexados() : 0);
+        Metricas.indicador(sb, "cherrychat_salas", "Salas con algún miembro", salas.getNumeroSalas());
+        Metricas.indicador(sb, "cherrychat_tiempo_activo_segundos", "Tiempo desde el arranque",
+                getTiempoActivo().getSeconds());
+        Metricas.contador(sb, "cherrychat_log_descartados_total", "Líneas de log descartadas por saturación",
+                log.getDescartados());
+
+        // Colas de salida: totales y las 20 más profundas por usuario
+        List<FotoCola> colas = fotografiarColas();
+        long pendientes = 0;
+        long descartados = 0;
+        for (FotoCola c : colas) {
+            pendientes += c.profundidad;
+            descartados += c.descartados;
+        }
+        Metricas.indicador(sb, "cherrychat_cola_salida_pendientes", "Tramas pendientes en todas las colas de salida",
+                pendientes);
+        Metricas.indicador(sb, "cherrychat_cola_salida_descartados",
+                "Tramas descartadas por cola llena (usuarios conectados)", descartados);
+        sb.append("# HELP cherrychat_cola_salida_profundidad Tramas pendientes por usuario (las 20 colas mayores)\n");
+        sb.append("# TYPE cherrychat_cola_salida_profundidad gauge\n");
+        for (int i = 0; i < colas.size() && i < 20 && colas.get(i).profundidad > 0; i++) {
+            FotoCola c = colas.get(i);
+            sb.append("cherrychat_cola_salida_profundidad{usuario=\"")
+                    .append(String.valueOf(c.usuario).replace("\\", "\\\\").replace("\"", "\\\"")
+                            .replace("\n", "\\n"))
+                    .append("\"} ").append(c.profundidad).append('\n');
+        }
+        return sb.toString();
+    }
+
     private String formatearDuracion(Duration d) {
         long s = d.getSeconds();
         long h = s / 3600;
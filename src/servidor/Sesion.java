@@ -0,0 +1,51 @@
+package servidor;
+
+import java.util.List;
+
+import comun.Mensaje;
+
+/**
+ * Una conexión de cliente vista desde ServidorMain, independientemente del
+ * motor que la atienda (hilo por cliente o bucle de eventos NIO).
+ */
+public interface Sesion {
+
+	String getNombreUsuario();
+
+	void setNombreUsuario(String nombreUsuario);
+
+	// Envía (o deja encolados) los bytes de la trama en el formato de esta sesión
+	void enviarTrama(Trama trama);
+
+	// Bytes ya codificados en el formato de esta sesión (las tramas de otra que se reanuda en esta)
+	void enviarBytes(byte[] datos);
+
+	// Ejecuta el aviso cuando lo encolado hasta ahora haya salido al socket (ver ColaSalida.avisar)
+	void alEscribir(Runnable aviso);
+
+	// Versión acordada en el saludo binario; 0 con el protocolo antiguo
+	int getVersion();
+
+	// Tramas encoladas pendientes de escribir (ColaSalida)
+	int getProfundidadCola();
+
+	// Tramas descartadas por tener la cola llena
+	long getDescartados();
+
+	// Cierra la conexión desde fuera (por ejemplo, si no responde a los latidos)
+	void desconectar();
+
+	// Tramas escritas para reanudar la sesión tras un corte (v6); null si no se puede reanudar.
+	// Con anillo, una sesión cerrada sigue aceptando tramas en su cola (ver Reanudaciones).
+	AnilloSalida getAnillo();
+
+	void setAnillo(AnilloSalida anillo);
+
+	// Saca lo que quedó en la cola sin escribir (de una sesión cortada)
+	List<byte[]> sacarPendientes();
+
+	// Envío a un único destinatario: la trama solo se codifica para esta sesión
+	default void enviarMensaje(Mensaje mensaje) {
+		enviarTrama(new Trama(mensaje));
+	}
+}
@@ -0,0 +1,87 @@
+package servidor;
+
+import comun.CodecMensaje;
+import comun.CompresionTramas;
+import comun.Mensaje;
+import servidor.metricas.Metricas;
+
+/**
+ * Un Mensaje ya codificado, compartido por todos los destinatarios de un envío.
+ *
+ * Cada formato (binario y antiguo) se codifica una sola vez, la primera vez que
+ * lo pide una sesión; el resto escribe los mismos bytes. Si lo piden a la vez
+ * varios hilos (los trozos de RepartoParalelo), uno codifica y los demás
+ * esperan a su resultado. Los arrays no deben modificarse.
+ */
+public final class Trama {
+
+	private final Mensaje mensaje;
+	private volatile byte[] binario;
+	private volatile byte[] comprimida;
+	private volatile byte[] legado;
+
+	public Trama(Mensaje mensaje) {
+		this.mensaje = mensaje;
+	}
+
+	// Mensaje del que ya se tiene la trama binaria (por ejemplo, leído del historial)
+	public Trama(Mensaje mensaje, byte[] binario) {
+		this.mensaje = mensaje;
+		this.binario = binario;
+	}
+
+	public Mensaje getMensaje() {
+		return mensaje;
+	}
+
+	// Trama del protocolo binario (CodecMensaje)
+	public byte[] binario() {
+		byte[] bytes = binario;
+		if (bytes == null) {
+			synchronized (this) {
+				bytes = binario;
+				if (bytes == null) {
+					binario = bytes = CodecMensaje.codificar(mensaje);
+				}
+			}
+		}
+		return bytes;
+	}
+
+	// Trama binaria para clientes v3: comprimida si el cuerpo llega a minimo bytes y
+	// compensa, o la misma que binario(). En una difusión se comprime una sola vez.
+	public byte[] comprimida(int minimo, Metricas metricas) {
+		byte[] bytes = comprimida;
+		if (bytes == null) {
+			synchronized (this) {
+				bytes = comprimida;
+				if (bytes == null) {
+					byte[] original = binario();
+					if (minimo <= 0 || original.length < minimo) {
+						bytes = original;
+					} else {
+						long inicio = System.nanoTime();
+						bytes = CompresionTramas.comprimir(original, minimo);
+						metricas.compresion(original.length, bytes.length, System.nanoTime() - inicio);
+					}
+					comprimida = bytes;
+				}
+			}
+		}
+		return bytes;
+	}
+
+	// Trozo autocontenido del protocolo antiguo (CodificadorLegado)
+	public byte[] legado() {
+		byte[] bytes = legado;
+		if (bytes == null) {
+			synchronized (this) {
+				bytes = legado;
+				if (bytes == null) {
+					legado = bytes = CodificadorLegado.codificar(mensaje);
+				}
+			}
+		}
+		return bytes;
+	}
+}
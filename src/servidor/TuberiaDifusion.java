@@ -0,0 +1,175 @@
+package servidor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Tubería de difusión, al estilo de un Disruptor: los hilos que reciben
+ * mensajes (lectores de ClienteHandler, bucles NIO, enlaces del cluster) solo
+ * publican el evento en un anillo preasignado y siguen leyendo; dos etapas con
+ * hilo propio lo procesan después, cada una a su ritmo:
+ *
+ *   registro: log de auditoría, último mensaje e historial
+ *   reparto:  escritura en las colas de los destinatarios y envío al cluster
+ *
+ * No hay cerrojos. Publicar es reservar una secuencia con un getAndIncrement,
+ * rellenar el hueco y marcarlo disponible con esa secuencia (escritura
+ * volátil). Cada etapa avanza hasta la última secuencia contigua
+ * disponible, procesa ese lote entero y anuncia su progreso una sola vez por
+ * lote. Un hueco no se reutiliza hasta que las dos etapas lo han pasado: con
+ * el anillo lleno quien publica espera (contrapresión) en vez de descartar.
+ *
+ * Como todos los eventos pasan por el mismo anillo, todos los destinatarios
+ * reciben los mensajes y los cambios de presencia en el mismo orden, y el
+ * historial guarda ese mismo orden.
+ */
+public class TuberiaDifusion {
+
+	// Origen del evento: decide qué hace cada etapa con él
+	public enum Clase {
+		LOCAL, // mensaje de un cliente de este nodo (público o de sala)
+		REMOTO, // mensaje que llega de otro nodo del cluster
+		PRESENCIA // entrada o salida de un usuario
+	}
+
+	// Lo que hace una etapa con cada evento, en el hilo de la etapa
+	public interface Etapa {
+		void procesar(Clase clase, Trama trama, Trama aviso, Sesion excluido);
+	}
+
+	// Un hueco del anillo: se crean todos al principio y se reutilizan
+	private static final class Evento {
+		Clase clase;
+		Trama trama;
+		Trama aviso; // presencia en texto para clientes anteriores a la v2
+		Sesion excluido;
+	}
+
+	private static final int ESPERAS_ACTIVAS = 200;
+	private static final long NANOS_ESPERA_LLENO = 20_000;
+
+	private final Evento[] eventos;
+	private final int mascara;
+	private final AtomicLongArray disponibles; // secuencia publicada en cada hueco
+	private final AtomicLong reservadas = new AtomicLong();
+	private final Consumidor registro;
+	private final Consumidor reparto;
+	private final LongAdder esperas = new LongAdder();
+
+	// La capacidad se redondea a potencia de dos
+	public TuberiaDifusion(int capacidad, Etapa registro, Etapa reparto) {
+		int tamaño = Integer.highestOneBit(Math.max(2, capacidad - 1)) << 1;
+		this.eventos = new Evento[tamaño];
+		this.mascara = tamaño - 1;
+		this.disponibles = new AtomicLongArray(tamaño);
+		for (int i = 0; i < tamaño; i++) {
+			eventos[i] = new Evento();
+			disponibles.set(i, -1);
+		}
+		this.registro = new Consumidor("difusion-registro", registro);
+		this.reparto = new Consumidor("difusion-reparto", reparto);
+		this.registro.hilo.start();
+		this.reparto.hilo.start();
+	}
+
+	// Desde cualquier hilo salvo los de las etapas; espera si el anillo está lleno
+	public void publicar(Clase clase, Trama trama, Trama aviso, Sesion excluido) {
+		long secuencia = reservadas.getAndIncrement();
+		if (secuencia - eventos.length > minimoProcesado()) {
+			esperas.increment();
+			do {
+				LockSupport.parkNanos(this, NANOS_ESPERA_LLENO);
+			} while (secuencia - eventos.length > minimoProcesado());
+		}
+		int indice = (int) secuencia & mascara;
+		Evento evento = eventos[indice];
+		evento.clase = clase;
+		evento.trama = trama;
+		evento.aviso = aviso;
+		evento.excluido = excluido;
+		// Escritura volátil: con la lectura de dormido, ninguna etapa se queda dormida con trabajo
+		disponibles.set(indice, secuencia);
+		registro.despertar();
+		reparto.despertar();
+	}
+
+	private long minimoProcesado() {
+		return Math.min(registro.procesado.get(), reparto.procesado.get());
+	}
+
+	// Eventos publicados que alguna etapa aún no ha terminado
+	public long getPendientes() {
+		return Math.max(0, reservadas.get() - 1 - minimoProcesado());
+	}
+
+	// Veces que alguien tuvo que esperar a que hubiera hueco
+	public long getEsperas() {
+		return esperas.sum();
+	}
+
+	// ===========================
+	// ETAPAS (un hilo cada una)
+	// ===========================
+
+	private final class Consumidor implements Runnable {
+		final Etapa etapa;
+		final Thread hilo;
+		final AtomicLong procesado = new AtomicLong(-1); // última secuencia terminada
+		volatile boolean dormido;
+
+		Consumidor(String nombre, Etapa etapa) {
+			this.etapa = etapa;
+			this.hilo = new Thread(this, nombre);
+			this.hilo.setDaemon(true);
+		}
+
+		void despertar() {
+			if (dormido) {
+				LockSupport.unpark(hilo);
+			}
+		}
+
+		@Override
+		public void run() {
+			long siguiente = 0;
+			int vacias = 0;
+			while (true) {
+				// Lote: hasta la última secuencia contigua ya publicada
+				long hasta = siguiente;
+				while (hasta - siguiente < eventos.length && disponibles.get((int) hasta & mascara) == hasta) {
+					hasta++;
+				}
+				if (hasta == siguiente) {
+					esperar(siguiente, ++vacias);
+					continue;
+				}
+				vacias = 0;
+				for (long s = siguiente; s < hasta; s++) {
+					Evento evento = eventos[(int) s & mascara];
+					try {
+						etapa.procesar(evento.clase, evento.trama, evento.aviso, evento.excluido);
+					} catch (RuntimeException e) {
+						System.err.println("Error en " + hilo.getName() + ": " + e);
+					}
+				}
+				procesado.lazySet(hasta - 1);
+				siguiente = hasta;
+			}
+		}
+
+		// Primero unas vueltas activas; después se anuncia que se duerme y se vuelve a mirar
+		private void esperar(long siguiente, int vacias) {
+			if (vacias < ESPERAS_ACTIVAS) {
+				Thread.onSpinWait();
+				return;
+			}
+			dormido = true;
+			if (disponibles.get((int) siguiente & mascara) != siguiente) {
+				LockSupport.park(this);
+			}
+			dormido = false;
+		}
+	}
+}
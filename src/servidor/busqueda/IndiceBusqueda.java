@@ -0,0 +1,291 @@
+package servidor.busqueda;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import comun.ConsultaBusqueda;
+import comun.Mensaje;
+import servidor.HistorialMensajes;
+import servidor.Sesion;
+import servidor.Trama;
+import servidor.metricas.Metricas;
+
+/**
+ * Búsqueda de texto en el historial con un índice invertido incremental.
+ *
+ * El índice no está en el camino de los mensajes: un hilo propio sigue al
+ * HistorialMensajes por número de mensaje (como quien hace "tail" de un
+ * fichero), y al arrancar lo recorre entero, así que no hace falta
+ * guardarlo en disco. Lo leído se acumula en un tramo en construcción que se
+ * sella (SegmentoIndice) cada TRAMO mensajes; cuando se juntan FUSION tramos
+ * de un mismo nivel, el mismo hilo los fusiona en uno (como en un LSM). Las
+ * consultas leen una lista inmutable de tramos, sin cerrojos: cada vez que el
+ * historial se queda quieto, la lista se vuelve a publicar con una copia del
+ * tramo en construcción al final, así que lo último se encuentra enseguida
+ * sin sellar tramos pequeños que luego habría que fusionar una y otra vez.
+ *
+ * Además de las palabras del contenido (en minúsculas y sin tildes), cada
+ * mensaje se indexa por "@remitente". Las consultas se resuelven en un hilo
+ * aparte, del tramo más reciente al más antiguo, y devuelven POR_PAGINA
+ * mensajes como mucho (ver ConsultaBusqueda).
+ */
+public class IndiceBusqueda {
+
+	static final int TRAMO = 4096;
+	private static final int FUSION = 8;
+	private static final long MILIS_ESPERA = 50;
+	private static final int POR_PAGINA = 20;
+	private static final int MAX_TERMINO = 40;
+	private static final int MAX_CONSULTAS_PENDIENTES = 256;
+
+	private final HistorialMensajes historial;
+	private final Metricas metricas;
+	private final ExecutorService consultas;
+	private List<SegmentoIndice> sellados = Collections.emptyList(); // solo el hilo que indexa
+	// Los sellados y, si hay, una copia del tramo en construcción; del más antiguo al más reciente
+	private volatile List<SegmentoIndice> tramos = Collections.emptyList();
+	private volatile long indexados;
+
+	public IndiceBusqueda(HistorialMensajes historial, Metricas metricas) {
+		this.historial = historial;
+		this.metricas = metricas;
+		this.consultas = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(MAX_CONSULTAS_PENDIENTES), tarea -> {
+					Thread hilo = new Thread(tarea, "busquedas");
+					hilo.setDaemon(true);
+					return hilo;
+				});
+		Thread hilo = new Thread(this::indexar, "indice-busqueda");
+		hilo.setDaemon(true);
+		hilo.setPriority(Thread.MIN_PRIORITY);
+		hilo.start();
+	}
+
+	// ===========================
+	// INDEXACIÓN (hilo propio)
+	// ===========================
+
+	private void indexar() {
+		long siguiente = historial.getPrimero();
+		SegmentoIndice.Constructor construccion = null;
+		boolean copiar = false; // hay mensajes en construcción que las consultas aún no ven
+		while (true) {
+			long fin = historial.getSiguiente();
+			siguiente = Math.max(siguiente, historial.getPrimero());
+			if (siguiente >= fin) {
+				if (copiar) {
+					copiar = false;
+					copiarConstruccion(construccion.sellar()); // sellar() no lo cierra: sigue creciendo
+				}
+				try {
+					Thread.sleep(MILIS_ESPERA);
+				} catch (InterruptedException e) {
+					return;
+				}
+				continue;
+			}
+			if (construccion == null) {
+				construccion = new SegmentoIndice.Constructor(siguiente);
+			}
+			SegmentoIndice.Constructor actual = construccion;
+			long hasta = Math.min(fin, siguiente + TRAMO - actual.cantidad());
+			try {
+				historial.recorrer(siguiente, hasta, (numero, trama) -> {
+					Mensaje mensaje = trama.getMensaje();
+					actual.añadir(numero, terminos(mensaje), mensaje.getMarcaTiempo());
+				});
+			} catch (RuntimeException e) {
+				System.err.println("Error indexando el historial: " + e);
+			}
+			siguiente = hasta;
+			if (actual.cantidad() >= TRAMO) {
+				publicar(actual.sellar());
+				construccion = null;
+				copiar = false;
+			} else {
+				copiar = true;
+			}
+		}
+	}
+
+	// Añade un tramo sellado, fusiona los del mismo nivel y olvida los ya caducados del historial
+	private void publicar(SegmentoIndice nuevo) {
+		List<SegmentoIndice> lista = new ArrayList<>(sellados);
+		lista.add(nuevo);
+		while (true) {
+			int n = lista.size();
+			int nivel = nivel(lista.get(n - 1));
+			int iguales = 0;
+			while (iguales < n && nivel(lista.get(n - 1 - iguales)) == nivel) {
+				iguales++;
+			}
+			if (iguales < FUSION) {
+				break;
+			}
+			List<SegmentoIndice> fusionados = new ArrayList<>(lista.subList(n - iguales, n));
+			lista.subList(n - iguales, n).clear();
+			lista.add(SegmentoIndice.fusionar(fusionados));
+		}
+		long primero = historial.getPrimero();
+		lista.removeIf(tramo -> tramo.fin <= primero);
+		sellados = Collections.unmodifiableList(lista);
+		tramos = sellados;
+		indexados = nuevo.fin;
+	}
+
+	// Publica los sellados con la copia del tramo en construcción al final (la sustituye la siguiente)
+	private void copiarConstruccion(SegmentoIndice copia) {
+		List<SegmentoIndice> lista = new ArrayList<>(sellados.size() + 1);
+		lista.addAll(sellados);
+		lista.add(copia);
+		tramos = Collections.unmodifiableList(lista);
+		indexados = copia.fin;
+	}
+
+	// 0 hasta TRAMO mensajes y uno más cada vez que se multiplica por FUSION
+	private static int nivel(SegmentoIndice tramo) {
+		int nivel = 0;
+		for (long n = tramo.cantidad(); n > TRAMO; n /= FUSION) {
+			nivel++;
+		}
+		return nivel;
+	}
+
+	// Términos de un mensaje: las palabras del contenido y "@remitente"
+	private static List<String> terminos(Mensaje mensaje) {
+		List<String> terminos = new ArrayList<>();
+		palabras(mensaje.getContenido(), terminos);
+		if (mensaje.getRemitente() != null) {
+			terminos.add("@" + normalizar(mensaje.getRemitente().trim()));
+		}
+		return terminos;
+	}
+
+	// Palabras en minúsculas y sin tildes ("Canción" y "cancion" son lo mismo)
+	static void palabras(String texto, List<String> destino) {
+		if (texto == null || texto.isEmpty()) {
+			return;
+		}
+		String normal = normalizar(texto);
+		int inicio = -1;
+		for (int i = 0; i <= normal.length(); i++) {
+			boolean letra = i < normal.length() && Character.isLetterOrDigit(normal.charAt(i));
+			if (letra && inicio < 0) {
+				inicio = i;
+			} else if (!letra && inicio >= 0) {
+				destino.add(normal.substring(inicio, Math.min(i, inicio + MAX_TERMINO)));
+				inicio = -1;
+			}
+		}
+	}
+
+	private static String normalizar(String texto) {
+		String sinTildes = Normalizer.normalize(texto, Normalizer.Form.NFD).replaceAll("\\p{M}+", "");
+		return sinTildes.toLowerCase(Locale.ROOT);
+	}
+
+	// Mensajes del historial que ya se pueden encontrar (hasta este número)
+	public long getIndexados() {
+		return indexados;
+	}
+
+	// ===========================
+	// CONSULTAS
+	// ===========================
+
+	// Resuelve la consulta fuera del hilo que la recibe y responde a la sesión
+	public void buscar(Sesion sesion, String contenido) {
+		try {
+			consultas.execute(() -> responder(sesion, contenido));
+		} catch (RejectedExecutionException e) {
+			sinResultados(sesion, "⚠️ Hay demasiadas búsquedas en curso; inténtalo en un momento.");
+		}
+	}
+
+	// Cierra la búsqueda sin resultados (y sin página siguiente), con un aviso
+	public static void sinResultados(Sesion sesion, String aviso) {
+		sesion.enviarMensaje(new Mensaje("SERVER", sesion.getNombreUsuario(), aviso, Mensaje.Tipo.SISTEMA));
+		sesion.enviarMensaje(new Mensaje("SERVER", sesion.getNombreUsuario(), "", Mensaje.Tipo.BUSQUEDA));
+	}
+
+	private void responder(Sesion sesion, String contenido) {
+		long inicio = System.nanoTime();
+		ConsultaBusqueda consulta;
+		try {
+			consulta = ConsultaBusqueda.decodificar(contenido);
+		} catch (IllegalArgumentException e) {
+			sinResultados(sesion, "⚠️ Búsqueda inválida.");
+			return;
+		}
+		List<String> buscados = new ArrayList<>();
+		palabras(consulta.getTexto(), buscados);
+		if (consulta.getRemitente() != null) {
+			buscados.add("@" + normalizar(consulta.getRemitente()));
+		}
+		if (buscados.isEmpty()) {
+			sinResultados(sesion, "⚠️ Escribe al menos una palabra o un remitente para buscar.");
+			return;
+		}
+
+		String nombre = sesion.getNombreUsuario();
+		long antes = consulta.getAntes() > 0 ? consulta.getAntes() : Long.MAX_VALUE;
+		List<Mensaje> pagina = new ArrayList<>(POR_PAGINA);
+		long ultimo = 0;
+		List<SegmentoIndice> lista = tramos;
+		buscar:
+		for (int i = lista.size() - 1; i >= 0; i--) {
+			SegmentoIndice tramo = lista.get(i);
+			long desde = tramo.desdeNumero(consulta.getDesde());
+			long hasta = Math.min(antes, tramo.hastaNumero(consulta.getHasta()));
+			if (desde >= hasta) {
+				continue;
+			}
+			int[] coincidencias = tramo.coincidencias(buscados);
+			if (coincidencias == null) {
+				continue;
+			}
+			for (int j = coincidencias.length - 1; j >= 0; j--) {
+				long numero = tramo.primero + coincidencias[j];
+				if (numero >= hasta) {
+					continue;
+				}
+				if (numero < desde) {
+					break;
+				}
+				Trama trama = historial.leer(numero);
+				if (trama == null) {
+					break; // caducado: los anteriores también
+				}
+				Mensaje mensaje = trama.getMensaje();
+				long marca = mensaje.getMarcaTiempo();
+				if (!HistorialMensajes.visiblePara(mensaje, nombre)
+						|| (consulta.getDesde() > 0 && marca < consulta.getDesde())
+						|| (consulta.getHasta() > 0 && marca > consulta.getHasta())) {
+					continue;
+				}
+				pagina.add(mensaje);
+				ultimo = numero;
+				if (pagina.size() == POR_PAGINA) {
+					break buscar;
+				}
+			}
+		}
+
+		for (Mensaje mensaje : pagina) {
+			sesion.enviarMensaje(new Mensaje(mensaje.getRemitente(), mensaje.getDestinatario(),
+					mensaje.getContenido(), Mensaje.Tipo.RESULTADO, mensaje.getMarcaTiempo()));
+		}
+		// Antes del #0 no hay nada, y una consulta con antes = 0 volvería a empezar por el último
+		String siguiente = pagina.size() == POR_PAGINA && ultimo > 0 ? consulta.siguiente(ultimo).codificar() : "";
+		sesion.enviarMensaje(new Mensaje("SERVER", nombre, siguiente, Mensaje.Tipo.BUSQUEDA));
+		metricas.getBusqueda().registrar(System.nanoTime() - inicio);
+	}
+}
@@ -0,0 +1,386 @@
+package servidor.busqueda;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Un tramo inmutable del índice invertido: para cada término, la lista
+ * ordenada de mensajes (números del historial) que lo contienen.
+ *
+ * Los términos van ordenados en un String[] y las listas, una detrás de otra,
+ * en un único byte[] como diferencias entre números consecutivos en varint:
+ * en un chat casi todas ocupan uno o dos bytes por aparición. Cada tramo
+ * cubre un rango contiguo de números, así que fusionar tramos vecinos es
+ * copiar bytes recodificando solo la primera diferencia de cada lista.
+ *
+ * Para filtrar por fecha se guardan la marca de tiempo mínima y la máxima de
+ * cada bloque de BLOQUE números (alineados a múltiplos de BLOQUE, para que
+ * los bloques de tramos distintos encajen al fusionarlos).
+ */
+final class SegmentoIndice {
+
+	static final int BLOQUE = 64;
+
+	final long primero;
+	final long fin; // primer número que ya no cubre
+
+	private final String[] terminos;
+	private final int[] inicios; // la lista del término i está en listas[inicios[i], inicios[i + 1])
+	private final int[] apariciones;
+	private final int[] ultimos; // último número (relativo a primero) de cada lista
+	private final byte[] listas;
+
+	private final long primerBloque;
+	private final long[] minimos; // por bloque
+	private final long[] maximos;
+	private final long[] maximoHasta; // máximo de los bloques 0..b
+	private final long[] minimoDesde; // mínimo de los bloques b..último
+
+	private SegmentoIndice(long primero, long fin, String[] terminos, int[] inicios, int[] apariciones,
+			int[] ultimos, byte[] listas, long[] minimos, long[] maximos) {
+		this.primero = primero;
+		this.fin = fin;
+		this.terminos = terminos;
+		this.inicios = inicios;
+		this.apariciones = apariciones;
+		this.ultimos = ultimos;
+		this.listas = listas;
+		this.primerBloque = primero / BLOQUE;
+		this.minimos = minimos;
+		this.maximos = maximos;
+		this.maximoHasta = new long[maximos.length];
+		this.minimoDesde = new long[minimos.length];
+		long maximo = Long.MIN_VALUE;
+		for (int b = 0; b < maximos.length; b++) {
+			maximo = Math.max(maximo, maximos[b]);
+			maximoHasta[b] = maximo;
+		}
+		long minimo = Long.MAX_VALUE;
+		for (int b = minimos.length - 1; b >= 0; b--) {
+			minimo = Math.min(minimo, minimos[b]);
+			minimoDesde[b] = minimo;
+		}
+	}
+
+	long cantidad() {
+		return fin - primero;
+	}
+
+	// ===========================
+	// CONSULTA
+	// ===========================
+
+	/**
+	 * Números (relativos a primero, en orden) de los mensajes que contienen
+	 * todos los términos, o null si ninguno. Se empieza por la lista más corta.
+	 */
+	int[] coincidencias(List<String> buscados) {
+		int[] indices = new int[buscados.size()];
+		for (int i = 0; i < indices.length; i++) {
+			indices[i] = Arrays.binarySearch(terminos, buscados.get(i));
+			if (indices[i] < 0) {
+				return null;
+			}
+		}
+		Integer[] orden = new Integer[indices.length];
+		for (int i = 0; i < orden.length; i++) {
+			orden[i] = indices[i];
+		}
+		Arrays.sort(orden, (a, b) -> Integer.compare(apariciones[a], apariciones[b]));
+
+		int[] resultado = lista(orden[0]);
+		int n = resultado.length;
+		for (int k = 1; k < orden.length && n > 0; k++) {
+			n = intersectar(resultado, n, orden[k]);
+		}
+		return n == 0 ? null : Arrays.copyOf(resultado, n);
+	}
+
+	// Deja en actual[0..n) los que también están en la lista del término t; devuelve cuántos quedan
+	private int intersectar(int[] actual, int n, int t) {
+		int p = inicios[t];
+		int hasta = inicios[t + 1];
+		int valor = -1;
+		int quedan = 0;
+		for (int i = 0; i < n; i++) {
+			while (valor < actual[i]) {
+				if (p == hasta) {
+					return quedan; // se acabó la lista
+				}
+				int delta = 0;
+				for (int desplazamiento = 0;; desplazamiento += 7) {
+					int b = listas[p++];
+					delta |= (b & 0x7F) << desplazamiento;
+					if ((b & 0x80) == 0) {
+						break;
+					}
+				}
+				valor = valor < 0 ? delta : valor + delta;
+			}
+			if (valor == actual[i]) {
+				actual[quedan++] = valor;
+			}
+		}
+		return quedan;
+	}
+
+	private int[] lista(int t) {
+		int[] numeros = new int[apariciones[t]];
+		int p = inicios[t];
+		int valor = 0;
+		for (int i = 0; i < numeros.length; i++) {
+			int delta = 0;
+			for (int desplazamiento = 0;; desplazamiento += 7) {
+				int b = listas[p++];
+				delta |= (b & 0x7F) << desplazamiento;
+				if ((b & 0x80) == 0) {
+					break;
+				}
+			}
+			valor = i == 0 ? delta : valor + delta;
+			numeros[i] = valor;
+		}
+		return numeros;
+	}
+
+	// Primer número que puede tener una marca de tiempo >= desde (0 = sin límite)
+	long desdeNumero(long desde) {
+		if (desde <= 0) {
+			return primero;
+		}
+		int b = 0;
+		while (b < maximoHasta.length && maximoHasta[b] < desde) {
+			b++;
+		}
+		return Math.max(primero, (primerBloque + b) * BLOQUE);
+	}
+
+	// Primer número a partir del cual todas las marcas de tiempo son > hasta (0 = sin límite)
+	long hastaNumero(long hasta) {
+		if (hasta <= 0) {
+			return fin;
+		}
+		int b = minimoDesde.length;
+		while (b > 0 && minimoDesde[b - 1] > hasta) {
+			b--;
+		}
+		return Math.min(fin, (primerBloque + b) * BLOQUE);
+	}
+
+	// ===========================
+	// CONSTRUCCIÓN
+	// ===========================
+
+	// Tramo en construcción (solo desde el hilo que indexa)
+	static final class Constructor {
+		private final long primero;
+		private long fin;
+		private final Map<String, Lista> listas = new HashMap<>();
+		private long[] minimos = new long[8];
+		private long[] maximos = new long[8];
+
+		Constructor(long primero) {
+			this.primero = primero;
+			this.fin = primero;
+			Arrays.fill(minimos, Long.MAX_VALUE);
+			Arrays.fill(maximos, Long.MIN_VALUE);
+		}
+
+		long cantidad() {
+			return fin - primero;
+		}
+
+		// Números crecientes; los que falten (historial dañado) quedan como huecos
+		void añadir(long numero, List<String> terminos, long marcaTiempo) {
+			int relativo = (int) (numero - primero);
+			for (String termino : terminos) {
+				listas.computeIfAbsent(termino, t -> new Lista()).añadir(relativo);
+			}
+			int b = (int) (numero / BLOQUE - primero / BLOQUE);
+			if (b >= minimos.length) {
+				int anterior = minimos.length;
+				minimos = Arrays.copyOf(minimos, Math.max(b + 1, anterior * 2));
+				maximos = Arrays.copyOf(maximos, minimos.length);
+				Arrays.fill(minimos, anterior, minimos.length, Long.MAX_VALUE);
+				Arrays.fill(maximos, anterior, maximos.length, Long.MIN_VALUE);
+			}
+			minimos[b] = Math.min(minimos[b], marcaTiempo);
+			maximos[b] = Math.max(maximos[b], marcaTiempo);
+			fin = numero + 1;
+		}
+
+		SegmentoIndice sellar() {
+			String[] terminos = listas.keySet().toArray(new String[0]);
+			Arrays.sort(terminos);
+			Salida salida = new Salida(terminos.length);
+			for (String termino : terminos) {
+				Lista lista = listas.get(termino);
+				salida.empezar(termino, lista.apariciones, lista.ultimo);
+				salida.escribir(lista.datos, 0, lista.tamaño);
+			}
+			int bloques = (int) ((fin - 1) / BLOQUE - primero / BLOQUE + 1);
+			return salida.tramo(primero, fin, Arrays.copyOf(minimos, bloques), Arrays.copyOf(maximos, bloques));
+		}
+	}
+
+	// Lista de un término en construcción: diferencias en varint, la primera respecto a 0
+	private static final class Lista {
+		byte[] datos = new byte[8];
+		int tamaño;
+		int apariciones;
+		int ultimo = -1;
+
+		void añadir(int numero) {
+			if (numero == ultimo) {
+				return; // el término ya salía en este mensaje
+			}
+			if (tamaño + 5 > datos.length) {
+				datos = Arrays.copyOf(datos, datos.length * 2);
+			}
+			tamaño = escribirVarint(datos, tamaño, ultimo < 0 ? numero : numero - ultimo);
+			ultimo = numero;
+			apariciones++;
+		}
+	}
+
+	// ===========================
+	// FUSIÓN
+	// ===========================
+
+	// Un tramo con los de la lista, que deben ser consecutivos y estar en orden
+	static SegmentoIndice fusionar(List<SegmentoIndice> tramos) {
+		long primero = tramos.get(0).primero;
+		long fin = tramos.get(tramos.size() - 1).fin;
+		int k = tramos.size();
+		int[] cursores = new int[k];
+		int estimados = 0;
+		for (SegmentoIndice tramo : tramos) {
+			estimados = Math.max(estimados, tramo.terminos.length);
+		}
+		Salida salida = new Salida(estimados * 2);
+		byte[] varint = new byte[5];
+
+		while (true) {
+			String menor = null;
+			for (int i = 0; i < k; i++) {
+				SegmentoIndice tramo = tramos.get(i);
+				if (cursores[i] < tramo.terminos.length
+						&& (menor == null || tramo.terminos[cursores[i]].compareTo(menor) < 0)) {
+					menor = tramo.terminos[cursores[i]];
+				}
+			}
+			if (menor == null) {
+				break;
+			}
+			int apariciones = 0;
+			int ultimo = -1;
+			for (int i = 0; i < k; i++) {
+				SegmentoIndice tramo = tramos.get(i);
+				if (cursores[i] < tramo.terminos.length && tramo.terminos[cursores[i]].equals(menor)) {
+					int t = cursores[i];
+					apariciones += tramo.apariciones[t];
+					int desplazado = (int) (tramo.primero - primero);
+					ultimo = desplazado + tramo.ultimos[t];
+				}
+			}
+			salida.empezar(menor, apariciones, ultimo);
+			int anterior = -1;
+			for (int i = 0; i < k; i++) {
+				SegmentoIndice tramo = tramos.get(i);
+				if (cursores[i] >= tramo.terminos.length || !tramo.terminos[cursores[i]].equals(menor)) {
+					continue;
+				}
+				int t = cursores[i]++;
+				int p = tramo.inicios[t];
+				// La primera diferencia del tramo era respecto a su propio inicio
+				int primerNumero = 0;
+				for (int desplazamiento = 0;; desplazamiento += 7) {
+					int b = tramo.listas[p++];
+					primerNumero |= (b & 0x7F) << desplazamiento;
+					if ((b & 0x80) == 0) {
+						break;
+					}
+				}
+				int numero = (int) (tramo.primero - primero) + primerNumero;
+				int n = escribirVarint(varint, 0, anterior < 0 ? numero : numero - anterior);
+				salida.escribir(varint, 0, n);
+				salida.escribir(tramo.listas, p, tramo.inicios[t + 1] - p);
+				anterior = (int) (tramo.primero - primero) + tramo.ultimos[t];
+			}
+		}
+
+		// Bloques: los de los extremos de dos tramos vecinos pueden coincidir
+		int bloques = (int) ((fin - 1) / BLOQUE - primero / BLOQUE + 1);
+		long[] minimos = new long[bloques];
+		long[] maximos = new long[bloques];
+		Arrays.fill(minimos, Long.MAX_VALUE);
+		Arrays.fill(maximos, Long.MIN_VALUE);
+		for (SegmentoIndice tramo : tramos) {
+			int base = (int) (tramo.primerBloque - primero / BLOQUE);
+			for (int b = 0; b < tramo.minimos.length; b++) {
+				minimos[base + b] = Math.min(minimos[base + b], tramo.minimos[b]);
+				maximos[base + b] = Math.max(maximos[base + b], tramo.maximos[b]);
+			}
+		}
+		return salida.tramo(primero, fin, minimos, maximos);
+	}
+
+	// Acumula términos y listas de un tramo nuevo
+	private static final class Salida {
+		private final List<String> terminos;
+		private int[] inicios;
+		private int[] apariciones;
+		private int[] ultimos;
+		private byte[] listas = new byte[1024];
+		private int tamaño;
+		private int n;
+
+		Salida(int estimados) {
+			int capacidad = Math.max(16, estimados);
+			terminos = new ArrayList<>(capacidad);
+			inicios = new int[capacidad + 1];
+			apariciones = new int[capacidad];
+			ultimos = new int[capacidad];
+		}
+
+		void empezar(String termino, int veces, int ultimo) {
+			if (n == apariciones.length) {
+				apariciones = Arrays.copyOf(apariciones, n * 2);
+				ultimos = Arrays.copyOf(ultimos, n * 2);
+				inicios = Arrays.copyOf(inicios, n * 2 + 1);
+			}
+			terminos.add(termino);
+			inicios[n] = tamaño;
+			apariciones[n] = veces;
+			ultimos[n] = ultimo;
+			n++;
+		}
+
+		void escribir(byte[] datos, int desde, int largo) {
+			if (tamaño + largo > listas.length) {
+				listas = Arrays.copyOf(listas, Math.max(listas.length * 2, tamaño + largo));
+			}
+			System.arraycopy(datos, desde, listas, tamaño, largo);
+			tamaño += largo;
+		}
+
+		SegmentoIndice tramo(long primero, long fin, long[] minimos, long[] maximos) {
+			inicios[n] = tamaño;
+			return new SegmentoIndice(primero, fin, terminos.toArray(new String[0]), Arrays.copyOf(inicios, n + 1),
+					Arrays.copyOf(apariciones, n), Arrays.copyOf(ultimos, n), Arrays.copyOf(listas, tamaño),
+					minimos, maximos);
+		}
+	}
+
+	private static int escribirVarint(byte[] destino, int p, int valor) {
+		while ((valor & ~0x7F) != 0) {
+			destino[p++] = (byte) ((valor & 0x7F) | 0x80);
+			valor >>>= 7;
+		}
+		destino[p++] = (byte) valor;
+		return p;
+	}
+}
@@ -0,0 +1,460 @@
+package servidor.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import comun.CodecMensaje;
+import servidor.ConfiguracionServidor;
+import servidor.RegistroClientes;
+import servidor.ServidorMain;
+import servidor.Sesion;
+import servidor.Trama;
+
+/**
+ * Varios ServidorMain forman un cluster con una lista fija de nodos
+ * ("--cluster=localhost:4001,localhost:4002,..."), la misma en todos.
+ *
+ * Cada nodo abre una conexión saliente hacia cada uno de los demás (EnlaceNodo)
+ * y atiende las entrantes en su puerto de cluster. Por los enlaces viajan:
+ *
+ * - las altas y bajas de usuarios, con las que cada nodo mantiene un directorio
+ *   de quién está conectado y en qué nodo (los privados van directos a él) y
+ *   avisa a sus clientes de la entrada o salida;
+ * - los mensajes públicos y de sala, ya codificados con CodecMensaje, que cada
+ *   nodo reparte solo entre sus propios clientes;
+ * - las reservas de nombre: cada nombre tiene un nodo propietario (hashing de
+ *   rendezvous entre los nodos activos) que decide si está libre, así que la
+ *   comprobación de duplicados vale para todo el cluster sin preguntar a todos.
+ *
+ * Tramas entre nodos: int con la longitud | operación (1 byte) | datos.
+ *
+ * Los enlaces no llevan autenticación, así que el puerto de cluster escucha
+ * solo en la dirección de este nodo y una conexión entrante solo se acepta si
+ * su HOLA nombra a un nodo de la lista y llega desde la dirección de ese nodo.
+ */
+public class Cluster {
+
+	private static final byte HOLA = 1;
+	private static final byte ENTRA = 2;
+	private static final byte SALE = 3;
+	private static final byte DIFUNDIR = 4;
+	private static final byte PRIVADO = 5;
+	private static final byte RESERVAR = 6;
+	private static final byte RESPUESTA = 7;
+
+	private static final long ESPERA_RESERVA_MS = 2000;
+
+	// Usuario conectado a otro nodo
+	private static final class UsuarioRemoto {
+		final String nombre;
+		final String nodo;
+
+		UsuarioRemoto(String nombre, String nodo) {
+			this.nombre = nombre;
+			this.nodo = nodo;
+		}
+	}
+
+	private final ServidorMain servidor;
+	private final String idPropio;
+	private final int puertoCluster;
+	private final Map<String, EnlaceNodo> enlaces = new ConcurrentHashMap<>();
+
+	// Directorio de usuarios de otros nodos, por nombre normalizado
+	private final ConcurrentHashMap<String, UsuarioRemoto> directorio = new ConcurrentHashMap<>();
+	// Nombres de los que este nodo es propietario -> nodo que los tiene reservados
+	private final ConcurrentHashMap<String, String> reservas = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Long, CompletableFuture<Boolean>> respuestas = new ConcurrentHashMap<>();
+	private final AtomicLong siguienteReserva = new AtomicLong();
+
+	public Cluster(ServidorMain servidor, ConfiguracionServidor config) {
+		this.servidor = servidor;
+		this.idPropio = config.getNodo();
+		this.puertoCluster = config.getPuertoCluster();
+		for (String nodo : config.getNodosCluster()) {
+			if (!nodo.equals(idPropio)) {
+				enlaces.put(nodo, new EnlaceNodo(this, nodo));
+			}
+		}
+	}
+
+	public void arrancar() throws IOException {
+		InetSocketAddress propia = direccion(idPropio);
+		if (propia.isUnresolved()) {
+			throw new UnknownHostException("No se resuelve la dirección del nodo " + idPropio);
+		}
+		ServerSocket servidorCluster = new ServerSocket();
+		servidorCluster.bind(new InetSocketAddress(propia.getAddress(), puertoCluster));
+		Thread aceptador = new Thread(() -> aceptar(servidorCluster), "cluster-aceptador");
+		aceptador.setDaemon(true);
+		aceptador.start();
+		for (EnlaceNodo enlace : enlaces.values()) {
+			enlace.arrancar();
+		}
+		System.out.println("Nodo " + idPropio + " del cluster escuchando en puerto " + puertoCluster + " ("
+				+ enlaces.size() + " nodos más)");
+	}
+
+	// ===========================
+	// API PARA ServidorMain
+	// ===========================
+
+	/**
+	 * Reserva el nombre en todo el cluster. Si el propietario del nombre es otro
+	 * nodo, el resultado se completa con su respuesta (en el hilo que la lee) o
+	 * con false pasados ESPERA_RESERVA_MS; quien llama no se bloquea.
+	 */
+	public CompletableFuture<Boolean> reservar(String nombre) {
+		String clave = RegistroClientes.clave(nombre);
+		if (directorio.containsKey(clave)) {
+			return CompletableFuture.completedFuture(false);
+		}
+		EnlaceNodo propietario = propietario(clave);
+		if (propietario == null) {
+			return CompletableFuture.completedFuture(reservarLocal(clave, idPropio));
+		}
+
+		long id = siguienteReserva.incrementAndGet();
+		CompletableFuture<Boolean> respuesta = new CompletableFuture<>();
+		respuestas.put(id, respuesta);
+		propietario.enviar(trama(RESERVAR, out -> {
+			out.writeLong(id);
+			out.writeUTF(clave);
+		}));
+		return respuesta.orTimeout(ESPERA_RESERVA_MS, TimeUnit.MILLISECONDS).handle((libre, error) -> {
+			respuestas.remove(id);
+			if (error != null) {
+				System.err.println("Sin respuesta del nodo " + propietario.getId() + " al reservar " + nombre);
+				return false;
+			}
+			return libre;
+		});
+	}
+
+	public void anunciarEntrada(String nombre) {
+		enviarATodos(trama(ENTRA, out -> out.writeUTF(nombre)));
+	}
+
+	// Libera la reserva (aquí y en el propietario) y da de baja al usuario en el directorio de los demás
+	public void anunciarSalida(String nombre) {
+		reservas.remove(RegistroClientes.clave(nombre), idPropio);
+		enviarATodos(trama(SALE, out -> out.writeUTF(nombre)));
+	}
+
+	// Mensaje público o de sala: los mismos bytes para todos los nodos
+	public void difundir(Trama trama) {
+		byte[] datos = trama(DIFUNDIR, out -> escribirBytes(out, trama.binario()));
+		enviarATodos(datos);
+	}
+
+	// Devuelve false si el destinatario no está en ningún otro nodo
+	public boolean enviarPrivado(String destinatario, Trama trama) {
+		UsuarioRemoto usuario = directorio.get(RegistroClientes.clave(destinatario));
+		EnlaceNodo enlace = usuario == null ? null : enlaces.get(usuario.nodo);
+		if (enlace == null || !enlace.isConectado()) {
+			return false;
+		}
+		enlace.enviar(trama(PRIVADO, out -> {
+			out.writeUTF(destinatario);
+			escribirBytes(out, trama.binario());
+		}));
+		return true;
+	}
+
+	public List<String> getUsuariosRemotos() {
+		List<String> nombres = new ArrayList<>();
+		for (UsuarioRemoto usuario : directorio.values()) {
+			nombres.add(usuario.nombre);
+		}
+		return nombres;
+	}
+
+	public int getNodosConectados() {
+		int n = 0;
+		for (EnlaceNodo enlace : enlaces.values()) {
+			if (enlace.isConectado()) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	// ===========================
+	// RESERVAS DE NOMBRE
+	// ===========================
+
+	// Nodo propietario del nombre entre los activos; null si es este
+	private EnlaceNodo propietario(String clave) {
+		EnlaceNodo mejor = null;
+		long mejorPeso = peso(idPropio, clave);
+		for (EnlaceNodo enlace : enlaces.values()) {
+			long p = peso(enlace.getId(), clave);
+			if (enlace.isConectado() && p > mejorPeso) {
+				mejor = enlace;
+				mejorPeso = p;
+			}
+		}
+		return mejor;
+	}
+
+	// Hashing de rendezvous: al entrar o salir un nodo solo cambian de dueño sus nombres
+	private static long peso(String nodo, String clave) {
+		long h = 0xcbf29ce484222325L;
+		for (char c : (nodo + '|' + clave).toCharArray()) {
+			h = (h ^ c) * 0x100000001b3L;
+		}
+		return h ^ (h >>> 29);
+	}
+
+	private boolean reservarLocal(String clave, String nodo) {
+		String actual = reservas.putIfAbsent(clave, nodo);
+		return actual == null || actual.equals(nodo);
+	}
+
+	// ===========================
+	// ENLACES
+	// ===========================
+
+	byte[] saludo() {
+		return trama(HOLA, out -> out.writeUTF(idPropio));
+	}
+
+	// Al (re)conectar con un nodo se le envían los usuarios de este: rehace su
+	// directorio y, si es el propietario de alguno de los nombres, su reserva
+	void alConectar(EnlaceNodo enlace) {
+		for (Sesion sesion : servidor.getClientes()) {
+			String nombre = sesion.getNombreUsuario();
+			enlace.enviar(trama(ENTRA, out -> out.writeUTF(nombre)));
+		}
+	}
+
+	private void aceptar(ServerSocket servidorCluster) {
+		while (true) {
+			try {
+				Socket socket = servidorCluster.accept();
+				socket.setTcpNoDelay(true);
+				Thread lector = new Thread(() -> leer(socket), "cluster-lector");
+				lector.setDaemon(true);
+				lector.start();
+			} catch (IOException e) {
+				System.err.println("Error aceptando nodo del cluster: " + e.getMessage());
+			}
+		}
+	}
+
+	// Conexión entrante: solo se lee; las respuestas salen por el EnlaceNodo hacia ese nodo
+	private void leer(Socket socket) {
+		String nodo = null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+			while (true) {
+				int largo = in.readInt();
+				if (largo <= 0 || largo > CodecMensaje.MAX_TRAMA + 1024) {
+					throw new StreamCorruptedException("Trama de cluster inválida: " + largo);
+				}
+				byte[] datos = new byte[largo];
+				in.readFully(datos);
+				DataInputStream trama = new DataInputStream(new ByteArrayInputStream(datos));
+				byte operacion = trama.readByte();
+				if (nodo == null) {
+					if (operacion != HOLA) {
+						throw new StreamCorruptedException("Se esperaba HOLA");
+					}
+					String id = trama.readUTF();
+					if (!nodoConocido(id, socket.getInetAddress())) {
+						System.err.println("Conexión de cluster rechazada desde " + socket.getInetAddress() + " (" + id + ")");
+						return;
+					}
+					nodo = id;
+					System.out.println("Nodo " + nodo + " conectado al cluster");
+				} else {
+					procesar(nodo, operacion, trama);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			// Una trama corrupta corta el enlace igual que un error de red
+			if (nodo != null) {
+				System.err.println("Nodo " + nodo + " desconectado: " + e.getMessage());
+				nodoCaido(nodo);
+			}
+		}
+	}
+
+	// Otro nodo de la lista (este no), conectando desde una de las direcciones de su nombre
+	private boolean nodoConocido(String id, InetAddress origen) {
+		if (!enlaces.containsKey(id)) {
+			return false;
+		}
+		try {
+			for (InetAddress direccion : InetAddress.getAllByName(direccion(id).getHostString())) {
+				if (direccion.equals(origen)) {
+					return true;
+				}
+			}
+		} catch (UnknownHostException e) {
+			System.err.println("No se resuelve la dirección del nodo " + id);
+		}
+		return false;
+	}
+
+	// "host:puerto" tal y como aparece en la lista del cluster
+	static InetSocketAddress direccion(String id) {
+		int separador = id.lastIndexOf(':');
+		return new InetSocketAddress(id.substring(0, separador), Integer.parseInt(id.substring(separador + 1)));
+	}
+
+	private void procesar(String nodo, byte operacion, DataInputStream in) throws IOException {
+		switch (operacion) {
+		case ENTRA: {
+			String nombre = in.readUTF();
+			String clave = RegistroClientes.clave(nombre);
+			UsuarioRemoto anterior = directorio.put(clave, new UsuarioRemoto(nombre, nodo));
+			if (propietario(clave) == null) {
+				reservarLocal(clave, nodo);
+			}
+			// Al reconectar un enlace se reenvían todos: solo se anuncian los nuevos
+			if (anterior == null) {
+				servidor.conocerUsuario(nombre);
+				servidor.anunciarPresencia(nombre, true, null);
+			}
+			break;
+		}
+		case SALE: {
+			String nombre = in.readUTF();
+			String clave = RegistroClientes.clave(nombre);
+			boolean[] quitado = new boolean[1];
+			directorio.computeIfPresent(clave, (c, u) -> {
+				quitado[0] = u.nodo.equals(nodo);
+				return quitado[0] ? null : u;
+			});
+			reservas.remove(clave, nodo);
+			if (quitado[0]) {
+				servidor.anunciarPresencia(nombre, false, null);
+			}
+			break;
+		}
+		case DIFUNDIR: {
+			byte[] datos = leerBytes(in);
+			servidor.difundirLocal(new Trama(CodecMensaje.decodificarTrama(datos, 0, datos.length), datos), null);
+			break;
+		}
+		case PRIVADO: {
+			String destinatario = in.readUTF();
+			byte[] datos = leerBytes(in);
+			servidor.entregarLocal(destinatario,
+					new Trama(CodecMensaje.decodificarTrama(datos, 0, datos.length), datos));
+			break;
+		}
+		case RESERVAR: {
+			long id = in.readLong();
+			String clave = in.readUTF();
+			UsuarioRemoto conocido = directorio.get(clave);
+			boolean libre = servidor.buscarLocal(clave) == null && (conocido == null || conocido.nodo.equals(nodo))
+					&& reservarLocal(clave, nodo);
+			EnlaceNodo enlace = enlaces.get(nodo);
+			if (enlace != null) {
+				enlace.enviar(trama(RESPUESTA, out -> {
+					out.writeLong(id);
+					out.writeBoolean(libre);
+				}));
+			}
+			break;
+		}
+		case RESPUESTA: {
+			CompletableFuture<Boolean> respuesta = respuestas.get(in.readLong());
+			boolean libre = in.readBoolean();
+			if (respuesta != null) {
+				respuesta.complete(libre);
+			}
+			break;
+		}
+		default:
+			throw new StreamCorruptedException("Operación de cluster desconocida: " + operacion);
+		}
+	}
+
+	// Un nodo caído se lleva a sus usuarios: se avisa a los clientes de este nodo
+	private void nodoCaido(String nodo) {
+		reservas.values().removeIf(nodo::equals);
+		List<UsuarioRemoto> caidos = new ArrayList<>();
+		directorio.values().removeIf(u -> {
+			if (u.nodo.equals(nodo)) {
+				caidos.add(u);
+				return true;
+			}
+			return false;
+		});
+		for (UsuarioRemoto u : caidos) {
+			servidor.anunciarPresencia(u.nombre, false, null);
+		}
+	}
+
+	private void enviarATodos(byte[] datos) {
+		Collection<EnlaceNodo> todos = enlaces.values();
+		for (EnlaceNodo enlace : todos) {
+			enlace.enviar(datos);
+		}
+	}
+
+	// ===========================
+	// CODIFICACIÓN
+	// ===========================
+
+	private interface Escritura {
+		void escribir(DataOutputStream out) throws IOException;
+	}
+
+	private static byte[] trama(byte operacion, Escritura escritura) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0); // se rellena al final
+			out.writeByte(operacion);
+			escritura.escribir(out);
+			out.flush();
+			byte[] datos = bytes.toByteArray();
+			int largo = datos.length - 4;
+			datos[0] = (byte) (largo >>> 24);
+			datos[1] = (byte) (largo >>> 16);
+			datos[2] = (byte) (largo >>> 8);
+			datos[3] = (byte) largo;
+			return datos;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); // no ocurre en memoria
+		}
+	}
+
+	private static void escribirBytes(DataOutputStream out, byte[] datos) throws IOException {
+		out.writeInt(datos.length);
+		out.write(datos);
+	}
+
+	// Una longitud imposible es un enlace roto: con la excepción se da el nodo por caído
+	private static byte[] leerBytes(DataInputStream in) throws IOException {
+		int largo = in.readInt();
+		if (largo < 0 || largo > CodecMensaje.MAX_TRAMA) {
+			throw new StreamCorruptedException("Longitud inválida en trama de cluster: " + largo);
+		}
+		byte[] datos = new byte[largo];
+		in.readFully(datos);
+		return datos;
+	}
+}
@@ -0,0 +1,110 @@
+package servidor.cluster;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.locks.LockSupport;
+
+import servidor.ColaSalida;
+
+/**
+ * Conexión saliente hacia otro nodo del cluster.
+ *
+ * Igual que el escritor de ClienteHandler: quien envía solo encola tramas ya
+ * codificadas y un hilo propio las escribe. Si la conexión cae, el hilo vuelve
+ * a intentarlo cada segundo; mientras tanto lo que se envía se descarta (el
+ * otro nodo recibe el estado completo al reconectar).
+ */
+class EnlaceNodo implements Runnable {
+
+	private static final int ESPERA_RECONEXION_MS = 1000;
+	private static final int CAPACIDAD_COLA = 64 * 1024;
+
+	private final Cluster cluster;
+	private final String id; // "host:puerto" del nodo
+	private final ColaSalida cola;
+	private volatile Thread hilo;
+	private volatile Socket socket;
+	private volatile boolean conectado;
+
+	EnlaceNodo(Cluster cluster, String id) {
+		this.cluster = cluster;
+		this.id = id;
+		// Un nodo que no da abasto se desconecta y se resincroniza al volver
+		this.cola = new ColaSalida(CAPACIDAD_COLA, ColaSalida.Politica.DESCONECTAR, () -> LockSupport.unpark(hilo));
+	}
+
+	String getId() {
+		return id;
+	}
+
+	boolean isConectado() {
+		return conectado;
+	}
+
+	void arrancar() {
+		hilo = new Thread(this, "cluster-" + id);
+		hilo.setDaemon(true);
+		hilo.start();
+	}
+
+	void enviar(byte[] trama) {
+		if (conectado && !cola.ofrecer(trama)) {
+			System.err.println("Nodo " + id + " saturado: se reinicia el enlace");
+			cortar();
+		}
+	}
+
+	@Override
+	public void run() {
+		InetSocketAddress direccion = Cluster.direccion(id);
+		while (true) {
+			try (Socket s = new Socket()) {
+				s.connect(direccion, ESPERA_RECONEXION_MS);
+				s.setTcpNoDelay(true);
+				socket = s;
+				OutputStream salida = new BufferedOutputStream(s.getOutputStream());
+				salida.write(cluster.saludo());
+				conectado = true;
+				cluster.alConectar(this);
+				escribir(salida);
+			} catch (IOException e) {
+				if (conectado) {
+					System.err.println("Enlace con el nodo " + id + " perdido: " + e.getMessage());
+				}
+			} finally {
+				conectado = false;
+				socket = null;
+				cola.limpiar();
+			}
+			LockSupport.parkNanos(ESPERA_RECONEXION_MS * 1_000_000L);
+		}
+	}
+
+	// Escribe lo encolado y hace un único flush cada vez que la cola se vacía
+	private void escribir(OutputStream salida) throws IOException {
+		while (conectado) {
+			byte[] datos = cola.sacar();
+			if (datos != null) {
+				salida.write(datos);
+			} else {
+				salida.flush();
+				LockSupport.park(this);
+			}
+		}
+	}
+
+	private void cortar() {
+		conectado = false;
+		Socket s = socket;
+		if (s != null) {
+			try {
+				s.close();
+			} catch (IOException ignored) {
+			}
+		}
+		LockSupport.unpark(hilo);
+	}
+}
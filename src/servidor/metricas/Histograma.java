@@ -0,0 +1,83 @@
+package servidor.metricas;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograma de latencias con cubetas de potencias de dos (en microsegundos).
+ *
+ * Registrar un valor es un cálculo de índice y un LongAdder: ni reserva memoria
+ * ni toma cerrojos, así que se puede llamar en el camino de cada mensaje.
+ */
+public final class Histograma {
+
+	// La cubeta i cuenta los valores menores que 2^i µs; la última, el resto
+	private static final int CUBETAS = 26;
+
+	private final LongAdder[] cubetas = new LongAdder[CUBETAS];
+	private final LongAdder sumaNanos = new LongAdder();
+	private final LongAdder cuenta = new LongAdder();
+
+	public Histograma() {
+		for (int i = 0; i < CUBETAS; i++) {
+			cubetas[i] = new LongAdder();
+		}
+	}
+
+	public void registrar(long nanos) {
+		long micros = Math.max(0, nanos) / 1000;
+		int i = Math.min(CUBETAS - 1, 64 - Long.numberOfLeadingZeros(micros));
+		cubetas[i].increment();
+		sumaNanos.add(nanos);
+		cuenta.increment();
+	}
+
+	public long getCuenta() {
+		return cuenta.sum();
+	}
+
+	// Cota superior (µs) del percentil p (0-1); 0 si no hay datos
+	public long percentil(double p) {
+		long[] valores = instantanea();
+		long total = 0;
+		for (long v : valores) {
+			total += v;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long objetivo = (long) Math.ceil(total * p);
+		long acumulado = 0;
+		for (int i = 0; i < CUBETAS; i++) {
+			acumulado += valores[i];
+			if (acumulado >= objetivo) {
+				return 1L << i;
+			}
+		}
+		return 1L << (CUBETAS - 1);
+	}
+
+	// Formato de histograma de Prometheus, en segundos
+	void exportar(StringBuilder sb, String nombre, String ayuda) {
+		sb.append("# HELP ").append(nombre).append(' ').append(ayuda).append('\n');
+		sb.append("# TYPE ").append(nombre).append(" histogram\n");
+		long[] valores = instantanea();
+		long acumulado = 0;
+		for (int i = 0; i < CUBETAS - 1; i++) {
+			acumulado += valores[i];
+			sb.append(nombre).append("_bucket{le=\"").append((1L << i) / 1e6).append("\"} ").append(acumulado)
+					.append('\n');
+		}
+		acumulado += valores[CUBETAS - 1];
+		sb.append(nombre).append("_bucket{le=\"+Inf\"} ").append(acumulado).append('\n');
+		sb.append(nombre).append("_sum ").append(sumaNanos.sum() / 1e9).append('\n');
+		sb.append(nombre).append("_count ").append(acumulado).append('\n');
+	}
+
+	private long[] instantanea() {
+		long[] valores = new long[CUBETAS];
+		for (int i = 0; i < CUBETAS; i++) {
+			valores[i] = cubetas[i].sum();
+		}
+		return valores;
+	}
+}
@@ -0,0 +1,259 @@
+package servidor.metricas;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contadores e histogramas del servidor.
+ *
+ * Todo se registra con LongAdder (sin cerrojos ni reservas de memoria en el
+ * camino de los mensajes); los totales solo se suman al exportar. Las tasas
+ * por segundo se calculan a partir de los contadores (rate() en Prometheus,
+ * o la diferencia entre dos informes en la consola).
+ */
+public final class Metricas {
+
+	// Motivos por los que se rechaza una conexión o un inicio de sesión
+	public enum Rechazo {
+		SERVIDOR_LLENO, SALUDO_CADUCADO, NOMBRE_DUPLICADO, NOMBRE_INVALIDO
+	}
+
+	// Mensajes que han superado el límite de su conexión, según lo que se hizo con ellos
+	public enum Limite {
+		RETRASADO, DESCARTADO, DEMASIADO_GRANDE, DESCONECTADO
+	}
+
+	// Mensajes privados para usuarios desconectados (ver Buzones)
+	public enum Buzon {
+		GUARDADO, ENTREGADO, LLENO, CUOTA, CADUCADO
+	}
+
+	// Sesiones v6 cortadas: aparcadas a la espera del cliente y qué pasó después (ver Reanudaciones)
+	public enum Reanudacion {
+		APARCADA, REANUDADA, FALLIDA, CADUCADA
+	}
+
+	private final LongAdder mensajesEntrantes = new LongAdder();
+	private final LongAdder mensajesSalientes = new LongAdder();
+	private final LongAdder bytesEntrantes = new LongAdder();
+	private final LongAdder bytesSalientes = new LongAdder();
+	private final LongAdder conexionesAceptadas = new LongAdder();
+	private final LongAdder conexionesInactivas = new LongAdder();
+	private final LongAdder[] rechazos = new LongAdder[Rechazo.values().length];
+	private final LongAdder[] limites = new LongAdder[Limite.values().length];
+	private final LongAdder[] buzones = new LongAdder[Buzon.values().length];
+	private final LongAdder[] reanudaciones = new LongAdder[Reanudacion.values().length];
+	private final LongAdder tramasReenviadas = new LongAdder();
+	private final LongAdder compresionEntrada = new LongAdder();
+	private final LongAdder compresionSalida = new LongAdder();
+
+	private final Histograma difusion = new Histograma();
+	private final Histograma privados = new Histograma();
+	private final Histograma compresion = new Histograma();
+	private final Histograma busqueda = new Histograma();
+	private final Histograma trozoReparto = new Histograma();
+
+	public Metricas() {
+		for (int i = 0; i < rechazos.length; i++) {
+			rechazos[i] = new LongAdder();
+		}
+		for (int i = 0; i < limites.length; i++) {
+			limites[i] = new LongAdder();
+		}
+		for (int i = 0; i < buzones.length; i++) {
+			buzones[i] = new LongAdder();
+		}
+		for (int i = 0; i < reanudaciones.length; i++) {
+			reanudaciones[i] = new LongAdder();
+		}
+	}
+
+	public void mensajeEntrante() {
+		mensajesEntrantes.increment();
+	}
+
+	public void bytesEntrantes(long n) {
+		bytesEntrantes.add(n);
+	}
+
+	// Tramas completas escritas a un cliente y sus bytes
+	public void salida(long tramas, long bytes) {
+		mensajesSalientes.add(tramas);
+		bytesSalientes.add(bytes);
+	}
+
+	public void conexionAceptada() {
+		conexionesAceptadas.increment();
+	}
+
+	// Conexión cerrada por no responder a los latidos
+	public void conexionInactiva() {
+		conexionesInactivas.increment();
+	}
+
+	public void rechazo(Rechazo motivo) {
+		rechazos[motivo.ordinal()].increment();
+	}
+
+	// Una trama candidata a comprimirse: bytes antes y después (iguales si no compensó) y tiempo
+	public void compresion(long bytesOriginales, long bytesComprimidos, long nanos) {
+		compresionEntrada.add(bytesOriginales);
+		compresionSalida.add(bytesComprimidos);
+		compresion.registrar(nanos);
+	}
+
+	// Tiempo de reparto de un mensaje público o de sala entre los clientes del nodo
+	public Histograma getDifusion() {
+		return difusion;
+	}
+
+	// Tiempo de encaminar un privado (búsqueda del destinatario y encolado)
+	public Histograma getPrivados() {
+		return privados;
+	}
+
+	public Histograma getCompresion() {
+		return compresion;
+	}
+
+	// Tiempo de resolver una búsqueda en el historial
+	public Histograma getBusqueda() {
+		return busqueda;
+	}
+
+	// Cada trozo de una difusión repartida en paralelo (ver RepartoParalelo)
+	public Histograma getTrozoReparto() {
+		return trozoReparto;
+	}
+
+	// Bytes comprimidos / originales de las tramas candidatas (1 si no se ha comprimido nada)
+	public double getRatioCompresion() {
+		long entrada = compresionEntrada.sum();
+		return entrada == 0 ? 1.0 : (double) compresionSalida.sum() / entrada;
+	}
+
+	public long getMensajesEntrantes() {
+		return mensajesEntrantes.sum();
+	}
+
+	public long getMensajesSalientes() {
+		return mensajesSalientes.sum();
+	}
+
+	public long getBytesEntrantes() {
+		return bytesEntrantes.sum();
+	}
+
+	public long getBytesSalientes() {
+		return bytesSalientes.sum();
+	}
+
+	public long getConexionesAceptadas() {
+		return conexionesAceptadas.sum();
+	}
+
+	public long getRechazos(Rechazo motivo) {
+		return rechazos[motivo.ordinal()].sum();
+	}
+
+	public void limite(Limite accion) {
+		limites[accion.ordinal()].increment();
+	}
+
+	public long getLimites(Limite accion) {
+		return limites[accion.ordinal()].sum();
+	}
+
+	public void buzon(Buzon accion, long n) {
+		buzones[accion.ordinal()].add(n);
+	}
+
+	public long getBuzon(Buzon accion) {
+		return buzones[accion.ordinal()].sum();
+	}
+
+	// reenviadas: tramas del hueco que se vuelven a enviar al reanudar
+	public void reanudacion(Reanudacion resultado, long reenviadas) {
+		reanudaciones[resultado.ordinal()].increment();
+		tramasReenviadas.add(reenviadas);
+	}
+
+	public long getReanudaciones(Reanudacion resultado) {
+		return reanudaciones[resultado.ordinal()].sum();
+	}
+
+	public long getTramasReenviadas() {
+		return tramasReenviadas.sum();
+	}
+
+	// ===========================
+	// EXPORTACIÓN (formato de texto de Prometheus)
+	// ===========================
+
+	public void exportar(StringBuilder sb) {
+		contador(sb, "cherrychat_mensajes_entrantes_total", "Mensajes recibidos de los clientes",
+				getMensajesEntrantes());
+		contador(sb, "cherrychat_mensajes_salientes_total", "Tramas escritas a los clientes", getMensajesSalientes());
+		contador(sb, "cherrychat_bytes_entrantes_total", "Bytes leídos de los clientes", getBytesEntrantes());
+		contador(sb, "cherrychat_bytes_salientes_total", "Bytes escritos a los clientes", getBytesSalientes());
+		contador(sb, "cherrychat_conexiones_aceptadas_total", "Conexiones de clientes aceptadas",
+				getConexionesAceptadas());
+		contador(sb, "cherrychat_conexiones_inactivas_total", "Conexiones cerradas por no responder a los latidos",
+				conexionesInactivas.sum());
+
+		sb.append("# HELP cherrychat_rechazos_total Conexiones o inicios de sesión rechazados\n");
+		sb.append("# TYPE cherrychat_rechazos_total counter\n");
+		for (Rechazo motivo : Rechazo.values()) {
+			sb.append("cherrychat_rechazos_total{motivo=\"").append(motivo.name().toLowerCase()).append("\"} ")
+					.append(getRechazos(motivo)).append('\n');
+		}
+
+		sb.append("# HELP cherrychat_limite_mensajes_total Mensajes que superaron el límite de su conexión\n");
+		sb.append("# TYPE cherrychat_limite_mensajes_total counter\n");
+		for (Limite accion : Limite.values()) {
+			sb.append("cherrychat_limite_mensajes_total{accion=\"").append(accion.name().toLowerCase())
+					.append("\"} ").append(getLimites(accion)).append('\n');
+		}
+
+		sb.append("# HELP cherrychat_buzon_mensajes_total Privados para usuarios desconectados\n");
+		sb.append("# TYPE cherrychat_buzon_mensajes_total counter\n");
+		for (Buzon accion : Buzon.values()) {
+			sb.append("cherrychat_buzon_mensajes_total{accion=\"").append(accion.name().toLowerCase())
+					.append("\"} ").append(getBuzon(accion)).append('\n');
+		}
+
+		sb.append("# HELP cherrychat_reanudaciones_total Sesiones cortadas, según cómo terminaron\n");
+		sb.append("# TYPE cherrychat_reanudaciones_total counter\n");
+		for (Reanudacion resultado : Reanudacion.values()) {
+			sb.append("cherrychat_reanudaciones_total{resultado=\"").append(resultado.name().toLowerCase())
+					.append("\"} ").append(getReanudaciones(resultado)).append('\n');
+		}
+		contador(sb, "cherrychat_tramas_reenviadas_total", "Tramas reenviadas al reanudar una sesión",
+				getTramasReenviadas());
+
+		difusion.exportar(sb, "cherrychat_difusion_segundos", "Tiempo de reparto de un mensaje público o de sala");
+		privados.exportar(sb, "cherrychat_privado_segundos", "Tiempo de encaminar un mensaje privado");
+
+		contador(sb, "cherrychat_compresion_bytes_entrada_total", "Bytes de las tramas candidatas a comprimirse",
+				compresionEntrada.sum());
+		contador(sb, "cherrychat_compresion_bytes_salida_total", "Bytes de esas tramas tras comprimirlas",
+				compresionSalida.sum());
+		compresion.exportar(sb, "cherrychat_compresion_segundos", "Tiempo de CPU de comprimir una trama");
+		busqueda.exportar(sb, "cherrychat_busqueda_segundos", "Tiempo de resolver una búsqueda en el historial");
+		trozoReparto.exportar(sb, "cherrychat_reparto_trozo_segundos",
+				"Tiempo de escribir un trozo de una difusión repartida en paralelo");
+	}
+
+	public static void contador(StringBuilder sb, String nombre, String ayuda, long valor) {
+		metrica(sb, nombre, ayuda, "counter", valor);
+	}
+
+	public static void indicador(StringBuilder sb, String nombre, String ayuda, long valor) {
+		metrica(sb, nombre, ayuda, "gauge", valor);
+	}
+
+	private static void metrica(StringBuilder sb, String nombre, String ayuda, String tipo, long valor) {
+		sb.append("# HELP ").append(nombre).append(' ').append(ayuda).append('\n');
+		sb.append("# TYPE ").append(nombre).append(' ').append(tipo).append('\n');
+		sb.append(nombre).append(' ').append(valor).append('\n');
+	}
+}
@@ -0,0 +1,43 @@
+package servidor.metricas;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Punto de administración local: GET /metrics devuelve las métricas en el
+ * formato de texto de Prometheus. Solo escucha en la interfaz de loopback.
+ */
+public final class ServidorMetricas {
+
+	private final HttpServer http;
+
+	public ServidorMetricas(int puerto, Supplier<String> exportacion) throws IOException {
+		http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), puerto), 0);
+		http.createContext("/metrics", intercambio -> {
+			byte[] cuerpo = exportacion.get().getBytes(StandardCharsets.UTF_8);
+			intercambio.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			intercambio.sendResponseHeaders(200, cuerpo.length);
+			try (OutputStream out = intercambio.getResponseBody()) {
+				out.write(cuerpo);
+			}
+		});
+		http.setExecutor(Executors.newSingleThreadExecutor(r -> {
+			Thread hilo = new Thread(r, "metricas-http");
+			hilo.setDaemon(true);
+			return hilo;
+		}));
+	}
+
+	public void arrancar() {
+		http.start();
+		System.out.println("Métricas en http://" + http.getAddress().getHostString() + ":"
+				+ http.getAddress().getPort() + "/metrics");
+	}
+}
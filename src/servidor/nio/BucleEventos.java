@@ -0,0 +1,206 @@
+package servidor.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import servidor.ServidorMain;
+
+/**
+ * Un hilo con su propio Selector que atiende lecturas y escrituras de las
+ * sesiones que tiene asignadas (y las aceptaciones, si es el bucle 0).
+ *
+ * Todo lo que toca el canal o las claves se hace en este hilo; el resto de
+ * hilos le pasan trabajo con ejecutar().
+ */
+class BucleEventos implements Runnable {
+
+	private static final int TAMAÑO_LECTURA = 64 * 1024;
+	private static final int MAX_LOTE_ESCRITURA = 64;
+
+	private final MotorNio motor;
+	private final ServidorMain servidor;
+	private final Selector selector;
+	private final Queue<Runnable> tareas = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean despertado = new AtomicBoolean();
+	// Tareas con retraso, ordenadas por instante (solo las toca este hilo)
+	private final PriorityQueue<Programada> programadas = new PriorityQueue<>(
+			Comparator.comparingLong(Programada::getInstante));
+
+	// Buffers compartidos por todas las sesiones del bucle (solo los usa este hilo)
+	private final ByteBuffer lectura = ByteBuffer.allocate(TAMAÑO_LECTURA);
+	private final ByteBuffer[] loteEscritura = new ByteBuffer[MAX_LOTE_ESCRITURA];
+
+	private volatile Thread hilo;
+
+	BucleEventos(MotorNio motor, ServidorMain servidor) throws IOException {
+		this.motor = motor;
+		this.servidor = servidor;
+		this.selector = Selector.open();
+	}
+
+	// Encola una tarea para este hilo y lo despierta si está bloqueado en select()
+	void ejecutar(Runnable tarea) {
+		tareas.add(tarea);
+		if (Thread.currentThread() != hilo && despertado.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+	// Solo desde el hilo del bucle: ejecuta la tarea en este hilo pasados (al menos) nanos
+	void programar(long nanos, Runnable tarea) {
+		programadas.add(new Programada(System.nanoTime() + nanos, tarea));
+	}
+
+	void registrarAceptador(ServerSocketChannel canal) {
+		ejecutar(() -> {
+			try {
+				canal.register(selector, SelectionKey.OP_ACCEPT, canal);
+			} catch (IOException e) {
+				System.err.println("No se pudo registrar el aceptador: " + e.getMessage());
+			}
+		});
+	}
+
+	// Solo desde el hilo del bucle: deja de aceptar durante nanos y después vuelve a intentarlo
+	void pausarAceptacion(ServerSocketChannel canal, long nanos) {
+		SelectionKey clave = canal.keyFor(selector);
+		clave.interestOps(0);
+		programar(nanos, () -> clave.interestOps(SelectionKey.OP_ACCEPT));
+	}
+
+	void registrar(SocketChannel canal) {
+		ejecutar(() -> {
+			try {
+				SesionNio sesion = new SesionNio(canal, this, servidor);
+				sesion.setClave(canal.register(selector, SelectionKey.OP_READ, sesion));
+				int milisSaludo = servidor.getAdmision().getMilisSaludo();
+				if (milisSaludo > 0) {
+					programar(milisSaludo * 1_000_000L, sesion::caducarSaludo);
+				}
+			} catch (IOException e) {
+				System.err.println("No se pudo registrar la conexión: " + e.getMessage());
+				servidor.getAdmision().saludoTerminado();
+				servidor.getAdmision().liberar();
+				try {
+					canal.close();
+				} catch (IOException ignored) {
+				}
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		hilo = Thread.currentThread();
+		while (true) {
+			try {
+				long espera = ejecutarProgramadas();
+				if (tareas.isEmpty()) {
+					selector.select(espera); // 0 = sin plazo
+				} else {
+					selector.selectNow();
+				}
+				despertado.set(false);
+				ejecutarTareas();
+
+				Iterator<SelectionKey> claves = selector.selectedKeys().iterator();
+				while (claves.hasNext()) {
+					SelectionKey clave = claves.next();
+					claves.remove();
+					procesar(clave);
+				}
+			} catch (IOException e) {
+				System.err.println("Error en bucle de eventos: " + e.getMessage());
+			} catch (RuntimeException e) {
+				System.err.println("Error en bucle de eventos: " + e);
+			}
+		}
+	}
+
+	private void ejecutarTareas() {
+		Runnable tarea;
+		while ((tarea = tareas.poll()) != null) {
+			try {
+				tarea.run();
+			} catch (RuntimeException e) {
+				System.err.println("Error en tarea del bucle de eventos: " + e);
+			}
+		}
+	}
+
+	// Ejecuta las tareas programadas que ya han vencido; devuelve los ms hasta la siguiente (0 si no hay)
+	private long ejecutarProgramadas() {
+		Programada siguiente;
+		while ((siguiente = programadas.peek()) != null) {
+			long resto = siguiente.getInstante() - System.nanoTime();
+			if (resto > 0) {
+				return Math.max(1, (resto + 999_999) / 1_000_000);
+			}
+			programadas.poll();
+			try {
+				siguiente.getTarea().run();
+			} catch (RuntimeException e) {
+				System.err.println("Error en tarea del bucle de eventos: " + e);
+			}
+		}
+		return 0;
+	}
+
+	private void procesar(SelectionKey clave) {
+		Object adjunto = clave.attachment();
+		try {
+			if (adjunto instanceof SesionNio) {
+				SesionNio sesion = (SesionNio) adjunto;
+				if (clave.isReadable()) {
+					sesion.leer(lectura);
+				}
+				if (clave.isValid() && clave.isWritable()) {
+					sesion.vaciar();
+				}
+			} else if (clave.isAcceptable()) {
+				motor.aceptar((ServerSocketChannel) adjunto);
+			}
+		} catch (CancelledKeyException e) {
+			// la sesión se cerró mientras se procesaba
+		} catch (RuntimeException e) {
+			// Un fallo con una sesión no puede parar el bucle (ni, en el 0, las aceptaciones)
+			System.err.println("Error en bucle de eventos: " + e);
+			if (adjunto instanceof SesionNio) {
+				((SesionNio) adjunto).cerrar();
+			}
+		}
+	}
+
+	ByteBuffer[] getLoteEscritura() {
+		return loteEscritura;
+	}
+
+	private static final class Programada {
+		private final long instante;
+		private final Runnable tarea;
+
+		Programada(long instante, Runnable tarea) {
+			this.instante = instante;
+			this.tarea = tarea;
+		}
+
+		long getInstante() {
+			return instante;
+		}
+
+		Runnable getTarea() {
+			return tarea;
+		}
+	}
+}
@@ -0,0 +1,392 @@
+package servidor.nio;
+
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import comun.Mensaje;
+
+/**
+ * Decodificador incremental del formato de ObjectOutputStream, limitado a lo
+ * que envían los clientes: objetos comun.Mensaje con campos String y el enum
+ * Mensaje.Tipo.
+ *
+ * No usa ObjectInputStream, así que nunca instancia clases que no estén en la
+ * lista blanca, y admite datos parciales: si el siguiente objeto todavía no ha
+ * llegado entero, siguiente() devuelve null y deja el estado como estaba para
+ * reintentarlo cuando lleguen más bytes.
+ */
+class LectorSerializacion {
+
+	private static final short STREAM_MAGIC = (short) 0xACED;
+	private static final short STREAM_VERSION = 5;
+	private static final int BASE_HANDLES = 0x7E0000;
+
+	private static final int TC_NULL = 0x70;
+	private static final int TC_REFERENCE = 0x71;
+	private static final int TC_CLASSDESC = 0x72;
+	private static final int TC_OBJECT = 0x73;
+	private static final int TC_STRING = 0x74;
+	private static final int TC_BLOCKDATA = 0x77;
+	private static final int TC_ENDBLOCKDATA = 0x78;
+	private static final int TC_RESET = 0x79;
+	private static final int TC_BLOCKDATALONG = 0x7A;
+	private static final int TC_LONGSTRING = 0x7C;
+	private static final int TC_ENUM = 0x7E;
+
+	private static final int SC_WRITE_METHOD = 0x01;
+	private static final int SC_EXTERNALIZABLE = 0x04;
+
+	private static final int MAX_CADENA = 1 << 20;
+
+	private static final String CLASE_MENSAJE = Mensaje.class.getName();
+	private static final String CLASE_TIPO = Mensaje.Tipo.class.getName();
+	private static final Set<String> CLASES_PERMITIDAS = Set.of(CLASE_MENSAJE, CLASE_TIPO, Enum.class.getName());
+
+	// Señal interna de "faltan bytes"; sin traza, se lanza a menudo
+	private static final class Incompleto extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		Incompleto() {
+			super(null, null, false, false);
+		}
+	}
+
+	private static final Incompleto INCOMPLETO = new Incompleto();
+
+	private static final class Descriptor {
+		final String nombre;
+		final int flags;
+		final char[] tipos;
+		final String[] campos;
+		Descriptor superclase;
+
+		Descriptor(String nombre, int flags, char[] tipos, String[] campos) {
+			this.nombre = nombre;
+			this.flags = flags;
+			this.tipos = tipos;
+			this.campos = campos;
+		}
+	}
+
+	// Tabla de handles del stream: descriptores, cadenas, constantes y mensajes
+	private List<Object> handles = new ArrayList<>();
+	private boolean cabeceraLeida;
+
+	private byte[] datos;
+	private int pos;
+	private int fin;
+	private int consumido;
+
+	/**
+	 * Decodifica el siguiente Mensaje de datos[desde, hasta). Devuelve null si
+	 * aún no está completo; en ambos casos getConsumido() indica la primera
+	 * posición no utilizada.
+	 */
+	Mensaje siguiente(byte[] datos, int desde, int hasta) throws StreamCorruptedException {
+		this.datos = datos;
+		this.pos = desde;
+		this.fin = hasta;
+
+		List<Object> handlesPrevios = handles;
+		int handlesAntes = handles.size();
+		boolean cabeceraAntes = cabeceraLeida;
+		try {
+			if (!cabeceraLeida) {
+				if (leerShort() != STREAM_MAGIC || leerShort() != STREAM_VERSION) {
+					throw new StreamCorruptedException("Cabecera de stream inválida");
+				}
+				cabeceraLeida = true;
+			}
+
+			int tc;
+			while ((tc = leerByte()) == TC_RESET) {
+				handles = new ArrayList<>();
+			}
+			Object objeto = leerContenido(tc);
+			if (!(objeto instanceof Mensaje)) {
+				throw new StreamCorruptedException("Se esperaba un Mensaje");
+			}
+			consumido = pos;
+			return (Mensaje) objeto;
+		} catch (Incompleto e) {
+			handles = handlesPrevios;
+			handles.subList(handlesAntes, handles.size()).clear();
+			cabeceraLeida = cabeceraAntes;
+			consumido = desde;
+			return null;
+		} finally {
+			this.datos = null;
+		}
+	}
+
+	int getConsumido() {
+		return consumido;
+	}
+
+	private Object leerContenido(int tc) throws Incompleto, StreamCorruptedException {
+		switch (tc) {
+		case TC_NULL:
+			return null;
+		case TC_REFERENCE:
+			return leerReferencia();
+		case TC_STRING:
+			return nuevaCadena(leerUnsignedShort());
+		case TC_LONGSTRING:
+			long largo = leerLong();
+			if (largo < 0 || largo > MAX_CADENA) {
+				throw new StreamCorruptedException("Cadena demasiado larga: " + largo);
+			}
+			return nuevaCadena((int) largo);
+		case TC_ENUM:
+			return leerEnum();
+		case TC_OBJECT:
+			return leerObjeto();
+		default:
+			throw new StreamCorruptedException("Elemento no permitido: 0x" + Integer.toHexString(tc));
+		}
+	}
+
+	private Object leerReferencia() throws Incompleto, StreamCorruptedException {
+		int handle = leerInt() - BASE_HANDLES;
+		if (handle < 0 || handle >= handles.size()) {
+			throw new StreamCorruptedException("Referencia inválida: " + handle);
+		}
+		return handles.get(handle);
+	}
+
+	private String nuevaCadena(int largo) throws Incompleto, StreamCorruptedException {
+		String cadena = leerUtf(largo);
+		handles.add(cadena);
+		return cadena;
+	}
+
+	private Mensaje.Tipo leerEnum() throws Incompleto, StreamCorruptedException {
+		Descriptor descriptor = leerDescriptor(leerByte());
+		if (descriptor == null || !CLASE_TIPO.equals(descriptor.nombre)) {
+			throw new StreamCorruptedException("Enum no permitido");
+		}
+		int handle = handles.size();
+		handles.add(null);
+		Object nombre = leerContenido(leerByte());
+		if (!(nombre instanceof String)) {
+			throw new StreamCorruptedException("Constante de enum inválida");
+		}
+		try {
+			Mensaje.Tipo tipo = Mensaje.Tipo.valueOf((String) nombre);
+			handles.set(handle, tipo);
+			return tipo;
+		} catch (IllegalArgumentException e) {
+			throw new StreamCorruptedException("Tipo de mensaje desconocido: " + nombre);
+		}
+	}
+
+	private Mensaje leerObjeto() throws Incompleto, StreamCorruptedException {
+		Descriptor descriptor = leerDescriptor(leerByte());
+		if (descriptor == null || !CLASE_MENSAJE.equals(descriptor.nombre)) {
+			throw new StreamCorruptedException("Clase no permitida");
+		}
+		int handle = handles.size();
+		handles.add(null);
+
+		// Los datos van de la superclase serializable más alta hacia abajo
+		List<Descriptor> jerarquia = new ArrayList<>();
+		for (Descriptor d = descriptor; d != null; d = d.superclase) {
+			jerarquia.add(0, d);
+		}
+		Map<String, Object> valores = new HashMap<>();
+		for (Descriptor d : jerarquia) {
+			for (int i = 0; i < d.campos.length; i++) {
+				char tipo = d.tipos[i];
+				if (tipo == 'L' || tipo == '[') {
+					valores.put(d.campos[i], leerContenido(leerByte()));
+				} else {
+					saltar(tamañoPrimitivo(tipo));
+				}
+			}
+			if ((d.flags & SC_WRITE_METHOD) != 0) {
+				leerAnotacion();
+			}
+		}
+
+		Mensaje mensaje = new Mensaje(cadena(valores, "remitente"), cadena(valores, "destinatario"),
+				cadena(valores, "contenido"), tipo(valores.get("tipo")), cadena(valores, "timestamp"));
+		mensaje.setSala(cadena(valores, "sala")); // null con clientes anteriores a las salas
+		handles.set(handle, mensaje);
+		return mensaje;
+	}
+
+	private Descriptor leerDescriptor(int tc) throws Incompleto, StreamCorruptedException {
+		if (tc == TC_NULL) {
+			return null;
+		}
+		if (tc == TC_REFERENCE) {
+			Object referencia = leerReferencia();
+			if (!(referencia instanceof Descriptor)) {
+				throw new StreamCorruptedException("Se esperaba un descriptor de clase");
+			}
+			return (Descriptor) referencia;
+		}
+		if (tc != TC_CLASSDESC) {
+			throw new StreamCorruptedException("Descriptor no permitido: 0x" + Integer.toHexString(tc));
+		}
+
+		String nombre = leerUtf(leerUnsignedShort());
+		if (!CLASES_PERMITIDAS.contains(nombre)) {
+			throw new StreamCorruptedException("Clase no permitida: " + nombre);
+		}
+		leerLong(); // serialVersionUID
+		int handle = handles.size();
+		handles.add(null);
+
+		int flags = leerByte();
+		if ((flags & SC_EXTERNALIZABLE) != 0) {
+			throw new StreamCorruptedException("Externalizable no permitido");
+		}
+		int numCampos = leerUnsignedShort();
+		char[] tipos = new char[numCampos];
+		String[] campos = new String[numCampos];
+		for (int i = 0; i < numCampos; i++) {
+			tipos[i] = (char) leerByte();
+			campos[i] = leerUtf(leerUnsignedShort());
+			if (tipos[i] == 'L' || tipos[i] == '[') {
+				leerContenido(leerByte()); // nombre de la clase del campo
+			} else {
+				tamañoPrimitivo(tipos[i]);
+			}
+		}
+		Descriptor descriptor = new Descriptor(nombre, flags, tipos, campos);
+		handles.set(handle, descriptor);
+		leerAnotacion();
+		descriptor.superclase = leerDescriptor(leerByte());
+		return descriptor;
+	}
+
+	// Datos opcionales hasta TC_ENDBLOCKDATA (anotaciones de clase y writeObject propios)
+	private void leerAnotacion() throws Incompleto, StreamCorruptedException {
+		while (true) {
+			int tc = leerByte();
+			if (tc == TC_ENDBLOCKDATA) {
+				return;
+			} else if (tc == TC_BLOCKDATA) {
+				saltar(leerByte());
+			} else if (tc == TC_BLOCKDATALONG) {
+				int largo = leerInt();
+				if (largo < 0) {
+					throw new StreamCorruptedException("Bloque de datos inválido");
+				}
+				saltar(largo);
+			} else {
+				leerContenido(tc);
+			}
+		}
+	}
+
+	private static String cadena(Map<String, Object> valores, String campo) throws StreamCorruptedException {
+		Object valor = valores.get(campo);
+		if (valor != null && !(valor instanceof String)) {
+			throw new StreamCorruptedException("Campo " + campo + " inválido");
+		}
+		return (String) valor;
+	}
+
+	private static Mensaje.Tipo tipo(Object valor) throws StreamCorruptedException {
+		if (valor != null && !(valor instanceof Mensaje.Tipo)) {
+			throw new StreamCorruptedException("Campo tipo inválido");
+		}
+		return (Mensaje.Tipo) valor;
+	}
+
+	private static int tamañoPrimitivo(char tipo) throws StreamCorruptedException {
+		switch (tipo) {
+		case 'B':
+		case 'Z':
+			return 1;
+		case 'C':
+		case 'S':
+			return 2;
+		case 'I':
+		case 'F':
+			return 4;
+		case 'J':
+		case 'D':
+			return 8;
+		default:
+			throw new StreamCorruptedException("Tipo de campo inválido: " + tipo);
+		}
+	}
+
+	// ===========================
+	// LECTURA DE BYTES
+	// ===========================
+
+	private void necesitar(int n) throws Incompleto {
+		if (fin - pos < n) {
+			throw INCOMPLETO;
+		}
+	}
+
+	private void saltar(int n) throws Incompleto {
+		necesitar(n);
+		pos += n;
+	}
+
+	private int leerByte() throws Incompleto {
+		necesitar(1);
+		return datos[pos++] & 0xFF;
+	}
+
+	private int leerUnsignedShort() throws Incompleto {
+		necesitar(2);
+		int valor = ((datos[pos] & 0xFF) << 8) | (datos[pos + 1] & 0xFF);
+		pos += 2;
+		return valor;
+	}
+
+	private short leerShort() throws Incompleto {
+		return (short) leerUnsignedShort();
+	}
+
+	private int leerInt() throws Incompleto {
+		necesitar(4);
+		int valor = ((datos[pos] & 0xFF) << 24) | ((datos[pos + 1] & 0xFF) << 16) | ((datos[pos + 2] & 0xFF) << 8)
+				| (datos[pos + 3] & 0xFF);
+		pos += 4;
+		return valor;
+	}
+
+	private long leerLong() throws Incompleto {
+		long alto = leerInt() & 0xFFFFFFFFL;
+		long bajo = leerInt() & 0xFFFFFFFFL;
+		return (alto << 32) | bajo;
+	}
+
+	// UTF-8 modificado, como DataInputStream.readUTF
+	private String leerUtf(int largo) throws Incompleto, StreamCorruptedException {
+		necesitar(largo);
+		char[] caracteres = new char[largo];
+		int n = 0;
+		int i = pos;
+		int limite = pos + largo;
+		while (i < limite) {
+			int c = datos[i] & 0xFF;
+			if (c < 0x80) {
+				caracteres[n++] = (char) c;
+				i++;
+			} else if ((c >> 5) == 0x06 && i + 1 < limite) {
+				caracteres[n++] = (char) (((c & 0x1F) << 6) | (datos[i + 1] & 0x3F));
+				i += 2;
+			} else if ((c >> 4) == 0x0E && i + 2 < limite) {
+				caracteres[n++] = (char) (((c & 0x0F) << 12) | ((datos[i + 1] & 0x3F) << 6) | (datos[i + 2] & 0x3F));
+				i += 3;
+			} else {
+				throw new StreamCorruptedException("UTF-8 inválido");
+			}
+		}
+		pos = limite;
+		return new String(caracteres, 0, n);
+	}
+}
@@ -0,0 +1,121 @@
+package servidor.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import servidor.Admision;
+import servidor.ConfiguracionServidor;
+import servidor.ServidorMain;
+import servidor.metricas.Metricas;
+
+/**
+ * Motor de conexiones sin un hilo por cliente: un ServerSocketChannel y un
+ * número fijo de bucles de eventos (por defecto uno por núcleo) que aceptan,
+ * leen y escriben sin bloquear. Las sesiones pasan por la misma lógica de
+ * registro, broadcast y privados de ServidorMain que el motor de hilos.
+ *
+ * Se activa arrancando el servidor con "--motor=nio".
+ */
+public class MotorNio {
+
+	private static final int BACKLOG = 4096;
+	private static final long PAUSA_ACEPTACION = 10_000_000L; // 10 ms
+	private final ServidorMain servidor;
+	private final ConfiguracionServidor config;
+	private BucleEventos[] bucles;
+	private int siguiente;
+
+	public MotorNio(ServidorMain servidor, ConfiguracionServidor config) {
+		this.servidor = servidor;
+		this.config = config;
+	}
+
+	// Arranca los bucles; el bucle 0 (que además acepta) se ejecuta en el hilo llamante
+	public void ejecutar() throws IOException {
+		ServerSocketChannel canalServidor = ServerSocketChannel.open();
+		canalServidor.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		canalServidor.bind(new InetSocketAddress(config.getPuerto()), BACKLOG);
+		canalServidor.configureBlocking(false);
+
+		bucles = new BucleEventos[config.getBuclesEventos()];
+		for (int i = 0; i < bucles.length; i++) {
+			bucles[i] = new BucleEventos(this, servidor);
+		}
+		bucles[0].registrarAceptador(canalServidor);
+
+		System.out.println("Servidor (NIO, " + bucles.length + " bucles) escuchando en puerto " + config.getPuerto());
+		for (int i = 1; i < bucles.length; i++) {
+			new Thread(bucles[i], "bucle-nio-" + i).start();
+		}
+		bucles[0].run();
+	}
+
+	// Llamado por el bucle 0 cuando el canal del servidor tiene conexiones pendientes
+	void aceptar(ServerSocketChannel canalServidor) {
+		Admision admision = servidor.getAdmision();
+		while (true) {
+			// Sin hueco para otro saludo se deja de aceptar: esperan en el backlog
+			if (!admision.reservarSaludo()) {
+				bucles[0].pausarAceptacion(canalServidor, PAUSA_ACEPTACION);
+				return;
+			}
+			SocketChannel canal;
+			try {
+				canal = canalServidor.accept();
+			} catch (IOException e) {
+				admision.saludoTerminado();
+				System.err.println("Error aceptando conexión: " + e.getMessage());
+				return;
+			}
+			if (canal == null) {
+				admision.saludoTerminado();
+				return;
+			}
+			if (!admision.reservarPlaza()) {
+				admision.saludoTerminado();
+				servidor.getMetricas().rechazo(Metricas.Rechazo.SERVIDOR_LLENO);
+				rechazar(canal);
+				continue;
+			}
+			servidor.getMetricas().conexionAceptada();
+			try {
+				canal.configureBlocking(false);
+				canal.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				canal.setOption(StandardSocketOptions.SO_KEEPALIVE, true); // clientes anteriores a los latidos
+				siguienteBucle().registrar(canal);
+			} catch (IOException e) {
+				System.err.println("Error aceptando conexión: " + e.getMessage());
+				admision.saludoTerminado();
+				admision.liberar();
+				try {
+					canal.close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+	}
+
+	private void rechazar(SocketChannel canal) {
+		try {
+			canal.configureBlocking(false);
+			canal.write(ByteBuffer.wrap(Admision.RECHAZO));
+			servidor.escribirLog("Conexión rechazada (servidor lleno) desde " + canal.getRemoteAddress());
+		} catch (IOException ignored) {
+		} finally {
+			try {
+				canal.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	private BucleEventos siguienteBucle() {
+		BucleEventos bucle = bucles[siguiente];
+		siguiente = (siguiente + 1) % bucles.length;
+		return bucle;
+	}
+}
@@ -0,0 +1,496 @@
+package servidor.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import comun.CodecMensaje;
+import comun.Mensaje;
+import servidor.AnilloSalida;
+import servidor.CodificadorLegado;
+import servidor.ColaSalida;
+import servidor.ConfiguracionServidor;
+import servidor.Latidos;
+import servidor.LimiteMensajes;
+import servidor.ServidorMain;
+import servidor.Sesion;
+import servidor.Trama;
+import servidor.metricas.Metricas;
+
+/**
+ * Conexión de un cliente atendida por un BucleEventos.
+ *
+ * Como en ClienteHandler, el primer byte recibido decide el protocolo: saludo
+ * binario (CodecMensaje) o stream de ObjectOutputStream de un cliente antiguo.
+ *
+ * Una sesión inactiva no reserva buffers: los bytes de lectura solo se copian a
+ * la sesión cuando queda un mensaje a medias, y la cola de salida (acotada,
+ * ver ColaSalida) está vacía mientras no haya nada pendiente de escribir.
+ */
+class SesionNio implements Sesion {
+
+	// Límite de bytes acumulados para un único mensaje incompleto
+	private static final int MAX_PENDIENTE = 1 << 20;
+
+	private final SocketChannel canal;
+	private final BucleEventos bucle;
+	private final ServidorMain servidor;
+	private SelectionKey clave;
+
+	private enum Protocolo {
+		DESCONOCIDO, BINARIO, LEGADO
+	}
+
+	private volatile Protocolo protocolo = Protocolo.DESCONOCIDO;
+	private LectorSerializacion lector; // solo protocolo antiguo
+	private volatile int version;
+
+	private volatile String nombreUsuario;
+	private volatile boolean abierta = true;
+	private volatile AnilloSalida anillo; // null si la sesión no se puede reanudar
+	private boolean iniciada;
+	private boolean iniciando; // el cluster está reservando el nombre: no se lee nada más
+	private boolean saludoTerminado;
+	private final Latidos.Vigilancia vigilancia; // null sin latidos
+	private boolean cerrarTrasVaciar;
+
+	private final LimiteMensajes limite;
+	// Mensaje retrasado por el límite: mientras no se procese no se lee nada más
+	private Mensaje retenido;
+
+	// Bytes recibidos que aún no forman un mensaje completo
+	private byte[] pendiente;
+	private int pendienteLargo;
+
+	private final ColaSalida cola;
+	private final AtomicBoolean vaciadoProgramado = new AtomicBoolean();
+	// Tramas ya sacadas de la cola que el socket no aceptó enteras (solo hilo del bucle)
+	private ArrayDeque<ByteBuffer> restantes;
+
+	SesionNio(SocketChannel canal, BucleEventos bucle, ServidorMain servidor) {
+		this.canal = canal;
+		this.bucle = bucle;
+		this.servidor = servidor;
+		ConfiguracionServidor config = servidor.getConfig();
+		this.limite = new LimiteMensajes(config);
+		this.vigilancia = servidor.vigilar(this);
+		this.cola = new ColaSalida(config.getCapacidadColaSalida(), config.getPoliticaColaSalida(),
+				this::programarVaciado);
+	}
+
+	void setClave(SelectionKey clave) {
+		this.clave = clave;
+	}
+
+	@Override
+	public String getNombreUsuario() {
+		return nombreUsuario;
+	}
+
+	@Override
+	public void setNombreUsuario(String nombreUsuario) {
+		this.nombreUsuario = nombreUsuario;
+	}
+
+	// Puede llamarse desde cualquier hilo: encola los bytes compartidos y escribe en el bucle.
+	// Cerrada pero con anillo, se sigue encolando por si la sesión se reanuda.
+	@Override
+	public void enviarTrama(Trama trama) {
+		if (abierta || anillo != null) {
+			encolar(protocolo != Protocolo.BINARIO ? trama.legado()
+					: version >= CodecMensaje.VERSION_COMPRESION
+							? trama.comprimida(servidor.getConfig().getCompresionMinimo(), servidor.getMetricas())
+							: trama.binario());
+		}
+	}
+
+	@Override
+	public void enviarBytes(byte[] datos) {
+		encolar(datos);
+	}
+
+	private void encolar(byte[] datos) {
+		if (!cola.ofrecer(datos) && abierta) {
+			servidor.escribirLog("Cliente lento desconectado (cola llena): " + nombreUsuario);
+			bucle.ejecutar(this::cerrar);
+		}
+	}
+
+	@Override
+	public AnilloSalida getAnillo() {
+		return anillo;
+	}
+
+	@Override
+	public void setAnillo(AnilloSalida anillo) {
+		this.anillo = anillo;
+	}
+
+	@Override
+	public List<byte[]> sacarPendientes() {
+		return cola.sacarTodas();
+	}
+
+	@Override
+	public void desconectar() {
+		bucle.ejecutar(this::cerrar);
+	}
+
+	@Override
+	public void alEscribir(Runnable aviso) {
+		cola.avisar(aviso);
+	}
+
+	@Override
+	public int getVersion() {
+		return version;
+	}
+
+	@Override
+	public int getProfundidadCola() {
+		return cola.getProfundidad();
+	}
+
+	@Override
+	public long getDescartados() {
+		return cola.getDescartados();
+	}
+
+	private void programarVaciado() {
+		if (vaciadoProgramado.compareAndSet(false, true)) {
+			bucle.ejecutar(this::vaciar);
+		}
+	}
+
+	// ===========================
+	// LECTURA (hilo del bucle)
+	// ===========================
+
+	void leer(ByteBuffer buffer) {
+		try {
+			int leidos;
+			do {
+				buffer.clear();
+				leidos = canal.read(buffer);
+				if (leidos < 0) {
+					cerrar();
+					return;
+				}
+				buffer.flip();
+				if (leidos > 0) {
+					servidor.getMetricas().bytesEntrantes(leidos);
+					if (vigilancia != null) {
+						vigilancia.actividad();
+					}
+					procesarEntrada(buffer);
+				}
+			} while (abierta && retenido == null && !iniciando && leidos == buffer.capacity());
+		} catch (IOException e) {
+			System.err.println("Error en conexión con cliente " + nombreUsuario + ": " + e.getMessage());
+			cerrar();
+		}
+	}
+
+	private void procesarEntrada(ByteBuffer buffer) throws IOException {
+		byte[] datos;
+		int desde;
+		int hasta;
+		if (pendienteLargo == 0) {
+			// Caso habitual: se decodifica directamente del buffer del bucle
+			datos = buffer.array();
+			desde = buffer.arrayOffset() + buffer.position();
+			hasta = buffer.arrayOffset() + buffer.limit();
+		} else {
+			añadirPendiente(buffer);
+			datos = pendiente;
+			desde = 0;
+			hasta = pendienteLargo;
+		}
+		procesarDatos(datos, desde, hasta);
+	}
+
+	private void procesarDatos(byte[] datos, int desde, int hasta) throws IOException {
+		while (abierta && !cerrarTrasVaciar && retenido == null && !iniciando && desde < hasta) {
+			Mensaje mensaje;
+			if (protocolo == Protocolo.DESCONOCIDO) {
+				int consumidos = negociarProtocolo(datos, desde, hasta);
+				if (consumidos < 0) {
+					break;
+				}
+				desde += consumidos;
+				continue;
+			} else if (protocolo == Protocolo.BINARIO) {
+				int largo = CodecMensaje.longitudTrama(datos, desde, hasta);
+				if (largo < 0) {
+					break;
+				}
+				mensaje = CodecMensaje.decodificarTrama(datos, desde, largo);
+				desde += largo;
+			} else {
+				mensaje = lector.siguiente(datos, desde, hasta);
+				desde = lector.getConsumido();
+				if (mensaje == null) {
+					break;
+				}
+			}
+			despachar(mensaje);
+		}
+
+		guardarResto(datos, desde, hasta);
+	}
+
+	// Devuelve los bytes consumidos, o -1 si aún falta parte del saludo
+	private int negociarProtocolo(byte[] datos, int desde, int hasta) throws IOException {
+		if (datos[desde] != CodecMensaje.MAGIA) {
+			lector = new LectorSerializacion();
+			protocolo = Protocolo.LEGADO;
+			encolar(CodificadorLegado.CABECERA);
+			return 0;
+		}
+		if (hasta - desde < 2) {
+			return -1;
+		}
+		int version = datos[desde + 1] & 0xFF;
+		if (version < 1) {
+			throw new IOException("Versión de protocolo inválida: " + version);
+		}
+		this.version = Math.min(version, CodecMensaje.VERSION);
+		protocolo = Protocolo.BINARIO;
+		encolar(new byte[] { CodecMensaje.MAGIA, (byte) this.version });
+		return 2;
+	}
+
+	private void despachar(Mensaje mensaje) {
+		if (!iniciada) {
+			CompletableFuture<Boolean> inicio = servidor.iniciarSesion(this, mensaje, bucle::ejecutar);
+			if (inicio.isDone()) {
+				terminarInicio(inicio.join());
+			} else {
+				// 🌐 Otro nodo decide si el nombre está libre: el bucle sigue con las demás sesiones
+				iniciando = true;
+				clave.interestOps(clave.interestOps() & ~SelectionKey.OP_READ);
+				inicio.whenComplete((resultado, error) -> bucle.ejecutar(() -> {
+					if (error != null) {
+						System.err.println("Error al iniciar la sesión de " + nombreUsuario + ": " + error);
+					}
+					reservaTerminada(Boolean.TRUE.equals(resultado));
+				}));
+			}
+			return;
+		}
+
+		// 🚦 Límite de mensajes
+		LimiteMensajes.Resultado resultado = limite.comprobar(mensaje);
+		if (resultado != LimiteMensajes.Resultado.ACEPTADO) {
+			if (!servidor.limiteSuperado(this, limite, resultado)) {
+				cerrarTrasEnviar();
+			} else if (resultado == LimiteMensajes.Resultado.RETRASADO) {
+				retener(mensaje);
+			}
+			return;
+		}
+		if (!servidor.procesarMensaje(this, mensaje)) {
+			cerrar();
+		}
+	}
+
+	private void terminarInicio(boolean iniciada) {
+		this.iniciada = iniciada;
+		terminarSaludo();
+		if (!iniciada) {
+			cerrarTrasEnviar();
+		}
+	}
+
+	private void reservaTerminada(boolean iniciada) {
+		iniciando = false;
+		if (!abierta) {
+			return;
+		}
+		terminarInicio(iniciada);
+		if (iniciada) {
+			seguirLeyendo();
+		}
+	}
+
+	// Tarea programada al registrar la conexión: si aún no ha terminado el saludo, se cierra
+	void caducarSaludo() {
+		if (abierta && !saludoTerminado) {
+			servidor.getMetricas().rechazo(Metricas.Rechazo.SALUDO_CADUCADO);
+			servidor.escribirLog("Conexión cerrada (saludo sin terminar) desde " + canal.socket().getRemoteSocketAddress());
+			cerrar();
+		}
+	}
+
+	private void terminarSaludo() {
+		if (!saludoTerminado) {
+			saludoTerminado = true;
+			servidor.getAdmision().saludoTerminado();
+		}
+	}
+
+	// El bucle no puede dormir: se deja de leer de esta conexión hasta que venza la espera
+	private void retener(Mensaje mensaje) {
+		retenido = mensaje;
+		clave.interestOps(clave.interestOps() & ~SelectionKey.OP_READ);
+		bucle.programar(limite.getEspera(), this::reanudar);
+	}
+
+	private void reanudar() {
+		if (!abierta) {
+			return;
+		}
+		Mensaje mensaje = retenido;
+		retenido = null;
+		if (!servidor.procesarMensaje(this, mensaje)) {
+			cerrar();
+			return;
+		}
+		seguirLeyendo();
+	}
+
+	// Tras una pausa en la lectura: primero lo que ya llegó y después, si se puede, más del socket
+	private void seguirLeyendo() {
+		try {
+			// Lo que llegó durante la pausa puede contener mensajes completos
+			if (pendienteLargo > 0) {
+				procesarDatos(pendiente, 0, pendienteLargo);
+			}
+		} catch (IOException e) {
+			System.err.println("Error en conexión con cliente " + nombreUsuario + ": " + e.getMessage());
+			cerrar();
+			return;
+		}
+		if (abierta && !cerrarTrasVaciar && retenido == null && !iniciando) {
+			clave.interestOps(clave.interestOps() | SelectionKey.OP_READ);
+		}
+	}
+
+	private void añadirPendiente(ByteBuffer buffer) throws IOException {
+		int nuevos = buffer.remaining();
+		if (pendienteLargo + nuevos > MAX_PENDIENTE) {
+			throw new IOException("Mensaje demasiado grande");
+		}
+		if (pendienteLargo + nuevos > pendiente.length) {
+			pendiente = Arrays.copyOf(pendiente, Math.max(pendienteLargo + nuevos, pendiente.length * 2));
+		}
+		buffer.get(pendiente, pendienteLargo, nuevos);
+		pendienteLargo += nuevos;
+	}
+
+	private void guardarResto(byte[] datos, int desde, int hasta) throws IOException {
+		int resto = hasta - desde;
+		if (resto == 0) {
+			pendiente = null;
+			pendienteLargo = 0;
+		} else if (resto > MAX_PENDIENTE) {
+			throw new IOException("Mensaje demasiado grande");
+		} else if (datos == pendiente) {
+			System.arraycopy(pendiente, desde, pendiente, 0, resto);
+			pendienteLargo = resto;
+		} else {
+			pendiente = Arrays.copyOfRange(datos, desde, desde + Math.max(resto, 256));
+			pendienteLargo = resto;
+		}
+	}
+
+	// ===========================
+	// ESCRITURA (hilo del bucle)
+	// ===========================
+
+	void vaciar() {
+		vaciadoProgramado.set(false);
+		if (!abierta) {
+			return;
+		}
+		ByteBuffer[] lote = bucle.getLoteEscritura();
+		try {
+			while (true) {
+				// Primero lo que quedó a medias y después lo nuevo, en escritura agrupada
+				int n = 0;
+				while (restantes != null && n < lote.length && !restantes.isEmpty()) {
+					lote[n++] = restantes.poll();
+				}
+				byte[] datos;
+				AnilloSalida a = anillo;
+				while (n < lote.length && (datos = cola.sacar()) != null) {
+					if (a != null) {
+						a.escrita(datos);
+					}
+					lote[n++] = ByteBuffer.wrap(datos);
+				}
+				if (n == 0) {
+					break;
+				}
+				long escritos = canal.write(lote, 0, n);
+				int completos = 0;
+				while (completos < n && !lote[completos].hasRemaining()) {
+					completos++;
+				}
+				servidor.getMetricas().salida(completos, escritos);
+				if (completos < n) {
+					// El socket está lleno: se guarda el resto y se espera a OP_WRITE
+					if (restantes == null) {
+						restantes = new ArrayDeque<>();
+					}
+					for (int i = n - 1; i >= completos; i--) {
+						restantes.addFirst(lote[i]);
+					}
+					Arrays.fill(lote, 0, n, null);
+					clave.interestOps(clave.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+				Arrays.fill(lote, 0, n, null);
+			}
+			restantes = null;
+			clave.interestOps(clave.interestOps() & ~SelectionKey.OP_WRITE);
+			cola.vaciada();
+			if (cerrarTrasVaciar) {
+				cerrar();
+			}
+		} catch (IOException e) {
+			System.err.println("Error al enviar mensaje a " + nombreUsuario + ": " + e.getMessage());
+			Arrays.fill(lote, null);
+			cerrar();
+		}
+	}
+
+	// Deja salir lo pendiente (por ejemplo un ERROR:...) y después cierra
+	private void cerrarTrasEnviar() {
+		cerrarTrasVaciar = true;
+		clave.interestOps(clave.interestOps() & ~SelectionKey.OP_READ);
+		programarVaciado();
+	}
+
+	void cerrar() {
+		if (!abierta) {
+			return;
+		}
+		abierta = false;
+		retenido = null;
+		if (vigilancia != null) {
+			vigilancia.terminar();
+		}
+		if (anillo == null) {
+			cola.limpiar(); // con anillo, lo pendiente se reenvía si la sesión se reanuda
+		}
+		restantes = null;
+		pendiente = null;
+		if (clave != null) {
+			clave.cancel();
+		}
+		try {
+			canal.close();
+		} catch (IOException ignored) {
+		}
+		terminarSaludo();
+		servidor.finalizarSesion(this);
+		servidor.getAdmision().liberar();
+	}
+}